@@ -4,6 +4,7 @@
 plugins {
     java
     application
+    id("me.champeau.gradle.jmh") version "0.4.7"
 }
 
 repositories {
@@ -27,6 +28,15 @@ dependencies {
     testCompile("com.google.guava:guava:23.1-jre")
 }
 
+jmh {
+    jmhVersion = "1.21"
+    // Reports gc.alloc.rate.norm, the bytes allocated per operation
+    profilers = listOf("gc")
+    // E.g. ./gradlew jmh -Pjmh.threads=4 -Pjmh.include=KVDaoBenchmark.get
+    (findProperty("jmh.threads") as String?)?.let { threads = it.toInt() }
+    (findProperty("jmh.include") as String?)?.let { include = listOf(it) }
+}
+
 tasks {
     "test"(Test::class) {
         maxHeapSize = "128m"
@@ -34,10 +44,34 @@ tasks {
     }
 }
 
+// The socket tests once more with the raw socket calls off, as without the one-nio native library
+task<Test>("testHeapSockets") {
+    description = "Runs the socket tests with the off-heap buffers copied through the heap"
+    testClassesDirs = sourceSets["test"].output.classesDirs
+    classpath = sourceSets["test"].runtimeClasspath
+    maxHeapSize = "128m"
+    useJUnitPlatform()
+    systemProperty("highload.socket.raw", "false")
+    filter {
+        includeTestsMatching("ru.mail.polis.ReplicaClientTest.largeBodies")
+        includeTestsMatching("ru.mail.polis.SingleNodeTest")
+    }
+}
+tasks["check"].dependsOn("testHeapSockets")
+
 application {
     // Define the main class for the application
     mainClassName = "ru.mail.polis.Cluster"
 
-    // And limit Xmx
-    applicationDefaultJvmArgs = listOf("-Xmx128m")
+    // And limit Xmx, the write buffer lives in direct memory
+    applicationDefaultJvmArgs = listOf("-Xmx128m", "-XX:MaxDirectMemorySize=512m")
+}
+
+// E.g. ./gradlew loadtest --args="--rate 5000 --distribution zipfian --replicas 2/3"
+task<JavaExec>("loadtest") {
+    description = "Starts the nodes and puts them under load, see ru.mail.polis.LoadGenerator"
+    classpath = sourceSets["main"].runtimeClasspath
+    main = "ru.mail.polis.LoadGenerator"
+    // The nodes run in the same JVM and have the same limits as when started by run
+    jvmArgs = listOf("-Xmx128m", "-XX:MaxDirectMemorySize=512m")
 }
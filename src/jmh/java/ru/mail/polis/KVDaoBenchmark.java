@@ -0,0 +1,147 @@
+package ru.mail.polis;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single operations of a storage engine made by {@link KVDaoFactory}, so a new engine is measured
+ * as soon as the factory knows its name. Run with {@code ./gradlew jmh}, with
+ * {@code -Pjmh.threads=N} for concurrent callers. The {@code gc.alloc.rate.norm} of the gc profiler
+ * is the heap allocated per operation.
+ * <p>
+ * {@code -p reuseStatements=true,false} runs the {@code h2} engine with and without its prepared
+ * statements reused, next to each other.
+ * <p>
+ * The engine is filled with {@link #KEYS} keys first. A read asks for one of them with the hit ratio
+ * probability and for a key that has never been written otherwise.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx128m", "-XX:MaxDirectMemorySize=512m"})
+public class KVDaoBenchmark {
+    private static final int KEYS = 10_000;
+
+    @Param({"lsm", "h2"})
+    public String engine;
+
+    /**
+     * Bytes of the hot key cache in front of the engine, none by default to measure the engine itself.
+     */
+    @Param("0")
+    public long cache;
+
+    @Param({"16", "128"})
+    public int keySize;
+
+    @Param({"100", "4096"})
+    public int valueSize;
+
+    @Param({"1.0", "0.5"})
+    public double hitRatio;
+
+    /**
+     * Whether the {@code h2} engine reuses its prepared statements, see {@code DBDao.REUSE_STATEMENTS}.
+     */
+    @Param("true")
+    public boolean reuseStatements;
+
+    private File data;
+    private KVDao dao;
+    private byte[][] keys;
+    private byte[][] absentKeys;
+    private byte[] value;
+
+    @Setup
+    public void setUp() throws IOException {
+        System.setProperty("highload.dao", engine);
+        System.setProperty("highload.cache", Long.toString(cache));
+        // Read when the engine class is loaded, every set of params runs in a fork of its own
+        System.setProperty("highload.h2.reuse", Boolean.toString(reuseStatements));
+        data = Files.createTempDirectory();
+        dao = KVDaoFactory.create(data);
+
+        keys = randomKeys();
+        absentKeys = randomKeys();
+        value = new byte[valueSize];
+        ThreadLocalRandom.current().nextBytes(value);
+        for (final byte[] key : keys) {
+            dao.upsert(key, value);
+        }
+    }
+
+    private byte[][] randomKeys() {
+        final byte[][] result = new byte[KEYS][keySize];
+        for (final byte[] key : result) {
+            ThreadLocalRandom.current().nextBytes(key);
+        }
+        return result;
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        dao.close();
+        Files.recursiveDelete(data);
+    }
+
+    private byte[] storedKey() {
+        return keys[ThreadLocalRandom.current().nextInt(KEYS)];
+    }
+
+    private byte[] readKey() {
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        return random.nextDouble() < hitRatio ? keys[random.nextInt(KEYS)] : absentKeys[random.nextInt(KEYS)];
+    }
+
+    @Benchmark
+    public byte[] get() throws IOException {
+        try {
+            return dao.get(readKey());
+        } catch (NoSuchElementException e) {
+            return null;
+        }
+    }
+
+    @Benchmark
+    public long getUpdateTimeMillis() throws IOException {
+        try {
+            return dao.getUpdateTimeMillis(readKey());
+        } catch (NoSuchElementException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Overwrites the stored keys.
+     */
+    @Benchmark
+    public void upsert() throws IOException {
+        dao.upsert(storedKey(), value);
+    }
+
+    /**
+     * Removes the stored keys, most of which are tombstones already after the warmup.
+     */
+    @Benchmark
+    public void remove() throws IOException {
+        dao.remove(storedKey());
+    }
+}
@@ -17,9 +17,13 @@
 package ru.mail.polis;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
+import java.util.Collection;
+import java.util.Iterator;
 import java.util.NoSuchElementException;
 
 /**
@@ -37,5 +41,57 @@ public interface KVDao extends Closeable {
 
     void remove(@NotNull byte[] key) throws IOException;
 
+    /**
+     * Stores the value or the tombstone with its own timestamp
+     * unless the stored one is {@link Value#isNewerThan newer}.
+     */
+    void merge(
+            @NotNull byte[] key,
+            @NotNull Value value) throws IOException;
+
+    /**
+     * {@link #merge Merges} the records as one storage batch, which is cheaper than merging them one by one.
+     * The batch is not atomic, a failure may leave a part of it applied.
+     */
+    void mergeAll(@NotNull Collection<Record> records) throws IOException;
+
     long getUpdateTimeMillis(@NotNull byte[] key) throws NoSuchElementException, IOException;
+
+    /**
+     * Looks up the data and the update time of the key in a single pass.
+     *
+     * @return the stored value or a tombstone if the key was removed
+     * @throws NoSuchElementException if the key has never been written
+     */
+    @NotNull
+    Value getValue(@NotNull byte[] key) throws NoSuchElementException, IOException;
+
+    /**
+     * Iterates over all the keys ever written, removed ones as tombstones.
+     * Failures while iterating are thrown as {@link java.io.UncheckedIOException}.
+     */
+    @NotNull
+    default Iterator<Record> records() throws IOException {
+        return range(new byte[0], null);
+    }
+
+    /**
+     * Iterates in key order over the keys from {@code from} inclusive to {@code to} exclusive,
+     * removed ones as tombstones. The records are read lazily, so a range may be bigger than the heap.
+     * Failures while iterating are thrown as {@link java.io.UncheckedIOException}.
+     *
+     * @param to upper bound of the keys, {@code null} for no bound
+     */
+    @NotNull
+    Iterator<Record> range(
+            @NotNull byte[] from,
+            @Nullable byte[] to) throws IOException;
+
+    /**
+     * @return local disk folder the data is persisted to, {@code null} if there is none
+     */
+    @Nullable
+    default File getDirectory() {
+        return null;
+    }
 }
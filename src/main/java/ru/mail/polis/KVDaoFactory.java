@@ -21,7 +21,11 @@ import org.jetbrains.annotations.NotNull;
 import java.io.File;
 import java.io.IOException;
 
+import ru.mail.polis.klimova.CachingDao;
 import ru.mail.polis.klimova.DBDao;
+import ru.mail.polis.klimova.LSMDao;
+import ru.mail.polis.klimova.StorageConfig;
+import ru.mail.polis.klimova.ValueCache;
 
 /**
  * Custom {@link KVDao} factory
@@ -30,6 +34,9 @@ import ru.mail.polis.klimova.DBDao;
  */
 final class KVDaoFactory {
     private static final long MAX_HEAP = 128 * 1024 * 1024;
+    private static final String DAO_PROPERTY = "highload.dao";
+    private static final String DAO_LSM = "lsm";
+    private static final String DAO_H2 = "h2";
 
     private KVDaoFactory() {
         // Not instantiatable
@@ -37,6 +44,10 @@ final class KVDaoFactory {
 
     /**
      * Construct a {@link KVDao} instance.
+     * <p>
+     * The storage engine is chosen by the {@code highload.dao} system property:
+     * {@code lsm} (default) or {@code h2}, tuned as described in {@link StorageConfig}.
+     * Unless turned off, the engine is put behind a {@link CachingDao} for the hot keys.
      *
      * @param data local disk folder to persist the data to
      * @return a storage instance
@@ -55,6 +66,22 @@ final class KVDaoFactory {
             throw new IllegalArgumentException("Path is not a directory: " + data);
         }
 
-        return new DBDao(data);
+        final String engine = System.getProperty(DAO_PROPERTY, DAO_LSM);
+        final StorageConfig config = StorageConfig.fromSystemProperties();
+        final KVDao dao;
+        switch (engine) {
+            case DAO_LSM:
+                dao = new LSMDao(data, config);
+                break;
+            case DAO_H2:
+                dao = new DBDao(data, config);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown storage engine: " + engine);
+        }
+        if (config.getCacheBytes() == 0) {
+            return dao;
+        }
+        return new CachingDao(dao, new ValueCache(config.getCacheBytes(), config.isCacheOffHeap()));
     }
 }
@@ -0,0 +1,350 @@
+package ru.mail.polis;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import one.nio.http.HttpClient;
+import one.nio.http.Response;
+import one.nio.net.ConnectionString;
+import ru.mail.polis.klimova.KeyDistribution;
+import ru.mail.polis.klimova.LatencyHistogram;
+
+/**
+ * Load of {@code /v0/entity} that starts the storage nodes in this JVM, or drives the given ones,
+ * and reports the latency percentiles of each method.
+ * <p>
+ * With {@code --rate} the load is open-loop: the requests are sent on a fixed schedule whatever
+ * the responses are, and the latency is counted from the time a request was due, so a stall
+ * is paid for by all the requests it has delayed (the coordinated omission correction of wrk2).
+ * The requests still queued a while after the end of the load are given up on: each is counted
+ * as an error and recorded with the latency it had reached by then.
+ * Without it every connection sends its next request as soon as the previous one is answered.
+ * <p>
+ * Options, all of them optional:
+ * <ul>
+ * <li>{@code --nodes 3} -- nodes to start</li>
+ * <li>{@code --target http://host:port,...} -- nodes to drive instead of starting them</li>
+ * <li>{@code --keys 10000} -- keys written before the load, see {@link KeyDistribution}</li>
+ * <li>{@code --distribution uniform} -- {@code uniform}, {@code zipfian} or {@code latest}</li>
+ * <li>{@code --reads 0.9} and {@code --deletes 0} -- shares of GET and DELETE, the rest is PUT</li>
+ * <li>{@code --value 100} -- bytes of a value</li>
+ * <li>{@code --replicas ack/from} -- replicas of every request, the default ones of the nodes if not set</li>
+ * <li>{@code --rate 0} -- requests per second, {@code 0} for a closed loop</li>
+ * <li>{@code --connections 16} -- requests in flight at most</li>
+ * <li>{@code --warmup 10} and {@code --duration 60} -- seconds of the load not measured and measured</li>
+ * <li>{@code --output dir} -- where to write the full distribution of each method in {@code .hgrm} files</li>
+ * </ul>
+ */
+public final class LoadGenerator {
+    private static final String ENTITY = "/v0/entity?id=";
+    private static final long DRAIN_SECONDS = 60;
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9, 99.99};
+
+    private enum Method {
+        GET, PUT, DELETE
+    }
+
+    private final List<HttpClient> clients;
+    private final KeyDistribution keys;
+    private final long keyCount;
+    private final double reads;
+    private final double deletes;
+    private final String replicas;
+    private final byte[] value;
+    private final int connections;
+    private final LatencyHistogram[] latencies = new LatencyHistogram[Method.values().length];
+    private final LongAdder[] errors = new LongAdder[Method.values().length];
+
+    private LoadGenerator(
+            @NotNull final List<HttpClient> clients,
+            @NotNull final Map<String, String> options) {
+        this.clients = clients;
+        this.keyCount = Long.parseLong(options.getOrDefault("keys", "10000"));
+        this.keys = KeyDistribution.of(options.getOrDefault("distribution", "uniform"), keyCount);
+        this.reads = Double.parseDouble(options.getOrDefault("reads", "0.9"));
+        this.deletes = Double.parseDouble(options.getOrDefault("deletes", "0"));
+        this.replicas = options.containsKey("replicas") ? "&replicas=" + options.get("replicas") : "";
+        this.value = new byte[Integer.parseInt(options.getOrDefault("value", "100"))];
+        ThreadLocalRandom.current().nextBytes(value);
+        this.connections = Integer.parseInt(options.getOrDefault("connections", "16"));
+        if (reads < 0 || deletes < 0 || reads + deletes > 1 || connections < 1) {
+            throw new IllegalArgumentException("Bad load options: " + options);
+        }
+        reset();
+    }
+
+    private void reset() {
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = new LatencyHistogram();
+            errors[i] = new LongAdder();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        final Map<String, String> options = parse(args);
+        final List<Runnable> shutdown = new ArrayList<>();
+        final List<String> nodes = options.containsKey("target")
+                ? Arrays.asList(options.get("target").split(","))
+                : startNodes(Integer.parseInt(options.getOrDefault("nodes", "3")), shutdown);
+        final int connections = Integer.parseInt(options.getOrDefault("connections", "16"));
+        final List<HttpClient> clients = new ArrayList<>(nodes.size());
+        try {
+            for (final String node : nodes) {
+                clients.add(new HttpClient(new ConnectionString(node + "?clientMaxPoolSize=" + connections)));
+            }
+            final LoadGenerator load = new LoadGenerator(clients, options);
+            final double rate = Double.parseDouble(options.getOrDefault("rate", "0"));
+
+            System.out.println("Writing " + load.keyCount + " keys to " + nodes);
+            load.preload();
+            System.out.println("Warming up");
+            load.run(rate, Long.parseLong(options.getOrDefault("warmup", "10")));
+            load.reset();
+            final long duration = Long.parseLong(options.getOrDefault("duration", "60"));
+            System.out.println("Measuring for " + duration + " s"
+                    + (rate > 0 ? " at " + rate + " requests/s" : " in a closed loop"));
+            load.run(rate, duration);
+            load.report(duration, options.containsKey("output") ? new File(options.get("output")) : null);
+        } finally {
+            // Nodes first: one-nio may never stop a node that is still closing the connections the clients have just dropped
+            shutdown.forEach(Runnable::run);
+            for (final HttpClient client : clients) {
+                client.close();
+            }
+        }
+    }
+
+    @NotNull
+    private static Map<String, String> parse(@NotNull final String[] args) {
+        if (args.length % 2 != 0) {
+            throw new IllegalArgumentException("Options are --name value pairs: " + Arrays.toString(args));
+        }
+        final Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i += 2) {
+            if (!args[i].startsWith("--")) {
+                throw new IllegalArgumentException("Not an option: " + args[i]);
+            }
+            options.put(args[i].substring(2), args[i + 1]);
+        }
+        return options;
+    }
+
+    @NotNull
+    private static List<String> startNodes(
+            final int count,
+            @NotNull final List<Runnable> shutdown) throws IOException {
+        final List<String> nodes = new ArrayList<>(count);
+        final int[] ports = new int[count];
+        for (int i = 0; i < count; i++) {
+            ports[i] = freePort();
+            nodes.add("http://localhost:" + ports[i]);
+        }
+        final Set<String> topology = new HashSet<>(nodes);
+        for (final int port : ports) {
+            final File data = Files.createTempDirectory();
+            final KVDao dao = KVDaoFactory.create(data);
+            final KVService storage = KVServiceFactory.create(port, dao, topology);
+            storage.start();
+            shutdown.add(() -> {
+                storage.stop();
+                try {
+                    dao.close();
+                    Files.recursiveDelete(data);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+        }
+        return nodes;
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket()) {
+            socket.setReuseAddress(true);
+            socket.bind(new InetSocketAddress(InetAddress.getByName("0.0.0.0"), 0), 1);
+            return socket.getLocalPort();
+        }
+    }
+
+    /**
+     * Writes the keys the distributions choose from, as fast as the connections allow.
+     */
+    private void preload() throws InterruptedException {
+        final AtomicLong next = new AtomicLong();
+        final ExecutorService workers = Executors.newFixedThreadPool(connections);
+        for (int i = 0; i < connections; i++) {
+            workers.execute(() -> {
+                for (long key = next.getAndIncrement(); key < keyCount; key = next.getAndIncrement()) {
+                    send(Method.PUT, key);
+                }
+            });
+        }
+        workers.shutdown();
+        workers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        reset();
+    }
+
+    private void run(
+            final double rate,
+            final long seconds) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        final ExecutorService workers = Executors.newFixedThreadPool(connections);
+        if (rate > 0) {
+            final long start = System.nanoTime();
+            for (long i = 0; ; i++) {
+                final long due = start + (long) (i * 1e9 / rate);
+                if (due >= deadline) {
+                    break;
+                }
+                final long wait = due - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+                workers.execute(new Request(due));
+            }
+        } else {
+            for (int i = 0; i < connections; i++) {
+                workers.execute(() -> {
+                    while (System.nanoTime() < deadline) {
+                        request(System.nanoTime());
+                    }
+                });
+            }
+        }
+        workers.shutdown();
+        if (!workers.awaitTermination(DRAIN_SECONDS, TimeUnit.SECONDS)) {
+            final List<Runnable> queued = workers.shutdownNow();
+            final long now = System.nanoTime();
+            for (final Runnable task : queued) {
+                if (task instanceof Request) {
+                    final Method method = method();
+                    errors[method.ordinal()].increment();
+                    latencies[method.ordinal()].record(TimeUnit.NANOSECONDS.toMicros(now - ((Request) task).due));
+                }
+            }
+            System.out.println("Requests are still in flight " + DRAIN_SECONDS + " s after the end of the load, "
+                    + queued.size() + " never sent are counted as errors");
+        }
+    }
+
+    @NotNull
+    private Method method() {
+        final double choice = ThreadLocalRandom.current().nextDouble();
+        if (choice < reads) {
+            return Method.GET;
+        } else if (choice < reads + deletes) {
+            return Method.DELETE;
+        } else {
+            return Method.PUT;
+        }
+    }
+
+    private void request(final long start) {
+        final Method method = method();
+        send(method, method == Method.PUT ? keys.nextWrite() : keys.next());
+        latencies[method.ordinal()].record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+    }
+
+    private void send(
+            @NotNull final Method method,
+            final long key) {
+        final HttpClient client = clients.get(ThreadLocalRandom.current().nextInt(clients.size()));
+        final String uri = ENTITY + key + replicas;
+        try {
+            final Response response;
+            final boolean ok;
+            switch (method) {
+                case GET:
+                    response = client.get(uri);
+                    ok = response.getStatus() == 200 || response.getStatus() == 404;
+                    break;
+                case PUT:
+                    response = client.put(uri, value);
+                    ok = response.getStatus() == 201;
+                    break;
+                default:
+                    response = client.delete(uri);
+                    ok = response.getStatus() == 202;
+                    break;
+            }
+            if (!ok) {
+                errors[method.ordinal()].increment();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            errors[method.ordinal()].increment();
+        } catch (Exception e) {
+            errors[method.ordinal()].increment();
+        }
+    }
+
+    private void report(
+            final long seconds,
+            final File output) throws IOException {
+        if (output != null && !output.isDirectory() && !output.mkdirs()) {
+            throw new IOException("Can't create " + output);
+        }
+        for (final Method method : Method.values()) {
+            final LatencyHistogram histogram = latencies[method.ordinal()];
+            if (histogram.getCount() == 0) {
+                continue;
+            }
+            final StringBuilder line = new StringBuilder(String.format(Locale.ROOT,
+                    "%-6s %10d requests %10.1f/s %8d errors, ms: mean %.3f",
+                    method, histogram.getCount(), (double) histogram.getCount() / seconds,
+                    errors[method.ordinal()].sum(), histogram.getMean() / 1000));
+            for (final double percentile : PERCENTILES) {
+                line.append(String.format(Locale.ROOT, ", p%s %.3f",
+                        percentile == (long) percentile ? Long.toString((long) percentile) : Double.toString(percentile),
+                        histogram.getValueAtPercentile(percentile) / 1000.0));
+            }
+            line.append(String.format(Locale.ROOT, ", max %.3f", histogram.getMax() / 1000.0));
+            System.out.println(line);
+
+            if (output != null) {
+                final File file = new File(output, method.name().toLowerCase(Locale.ROOT) + ".hgrm");
+                try (PrintStream out = new PrintStream(new FileOutputStream(file), false, "UTF-8")) {
+                    histogram.printPercentiles(out, 1000.0);
+                }
+            }
+        }
+    }
+
+    /**
+     * Open-loop request, which keeps the time it was due for when it is given up on.
+     */
+    private final class Request implements Runnable {
+        private final long due;
+
+        Request(final long due) {
+            this.due = due;
+        }
+
+        @Override
+        public void run() {
+            request(due);
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package ru.mail.polis;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Key with its stored {@link Value}, as returned by a scan over a {@link KVDao}.
+ */
+public final class Record {
+    private final byte[] key;
+    private final Value value;
+
+    public Record(
+            @NotNull final byte[] key,
+            @NotNull final Value value) {
+        this.key = key;
+        this.value = value;
+    }
+
+    @NotNull
+    public byte[] getKey() {
+        return key;
+    }
+
+    @NotNull
+    public Value getValue() {
+        return value;
+    }
+}
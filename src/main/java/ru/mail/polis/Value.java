@@ -0,0 +1,90 @@
+package ru.mail.polis;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Stored value together with its update time. A removed value is kept as a tombstone
+ * without data, so replicas can tell a deletion from a missing write.
+ * <p>
+ * Data may be backed by a direct or mapped buffer of the storage, so it can be sent
+ * to a socket without being copied to the heap.
+ */
+public final class Value {
+    private final ByteBuffer data;
+    private final long timestamp;
+
+    private Value(final ByteBuffer data, final long timestamp) {
+        this.data = data;
+        this.timestamp = timestamp;
+    }
+
+    @NotNull
+    public static Value present(
+            @NotNull final byte[] data,
+            final long timestamp) {
+        return new Value(ByteBuffer.wrap(data), timestamp);
+    }
+
+    /**
+     * @param data buffer with the value between its position and limit, must not be modified afterwards
+     */
+    @NotNull
+    public static Value present(
+            @NotNull final ByteBuffer data,
+            final long timestamp) {
+        return new Value(data.slice(), timestamp);
+    }
+
+    @NotNull
+    public static Value removed(final long timestamp) {
+        return new Value(null, timestamp);
+    }
+
+    public boolean isRemoved() {
+        return data == null;
+    }
+
+    /**
+     * @return value data, copied to the heap unless it is there already
+     * @throws IllegalStateException if the value is a tombstone
+     */
+    @NotNull
+    public byte[] getData() {
+        final ByteBuffer buffer = getBuffer();
+        if (buffer.hasArray() && buffer.arrayOffset() == 0 && buffer.remaining() == buffer.array().length) {
+            return buffer.array();
+        }
+        final byte[] result = new byte[buffer.remaining()];
+        buffer.get(result);
+        return result;
+    }
+
+    /**
+     * @return view of the value data, not to be modified
+     * @throws IllegalStateException if the value is a tombstone
+     */
+    @NotNull
+    public ByteBuffer getBuffer() {
+        if (data == null) {
+            throw new IllegalStateException("Value is removed");
+        }
+        return data.duplicate();
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Last write wins: the later timestamp is newer, and on a tie a tombstone beats data,
+     * so every replica resolves a conflict the same way.
+     */
+    public boolean isNewerThan(@NotNull final Value other) {
+        if (timestamp != other.timestamp) {
+            return timestamp > other.timestamp;
+        }
+        return isRemoved() && !other.isRemoved();
+    }
+}
@@ -0,0 +1,214 @@
+package ru.mail.polis.klimova;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.jetbrains.annotations.NotNull;
+
+import one.nio.http.HttpClient;
+import one.nio.http.Response;
+import ru.mail.polis.KVDao;
+import ru.mail.polis.Record;
+
+/**
+ * Background reconciliation of the keys a node shares with each of its peers.
+ * <p>
+ * Both sides build a {@link MerkleTree} over the records they both own. The puller descends the trees
+ * level by level, asking the peer only for the children of the nodes that differ, and then pulls
+ * the records of the differing buckets page by page and merges them. Every node pulls from every peer,
+ * so divergence is fixed in both directions.
+ * <p>
+ * A tree takes a scan of the whole storage, so it is kept for the peer until it is {@code treeMaxAgeMillis} old,
+ * over a descent and for the peer's own round, and dropped once records from any peer are merged.
+ */
+public class AntiEntropy {
+    private static final int BUCKETS_PER_REQUEST = 16;
+    private static final int PAGE_BYTES = 1024 * 1024;
+
+    private final KVDao dao;
+    private final HashRing ring;
+    private final String my;
+    private final int replicas;
+    private final Map<String, ? extends HttpClient> clients;
+    private final long treeMaxAgeMillis;
+    private final ConcurrentMap<String, Tree> trees = new ConcurrentHashMap<>();
+
+    public AntiEntropy(
+            KVDao dao,
+            HashRing ring,
+            String my,
+            int replicas,
+            Map<String, ? extends HttpClient> clients,
+            long treeMaxAgeMillis) {
+        this.dao = dao;
+        this.ring = ring;
+        this.my = my;
+        this.replicas = replicas;
+        this.clients = clients;
+        this.treeMaxAgeMillis = treeMaxAgeMillis;
+    }
+
+    public void run() {
+        for (String peer : clients.keySet()) {
+            try {
+                syncWith(peer);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * @param indexes heap indexes of the nodes, see {@link MerkleTree}
+     * @return nodes of the tree shared with the peer in the same order
+     */
+    @NotNull
+    public long[] nodes(@NotNull String peer, @NotNull int[] indexes) throws IOException {
+        MerkleTree tree = tree(peer);
+        long[] nodes = new long[indexes.length];
+        for (int i = 0; i < indexes.length; i++) {
+            nodes[i] = tree.getNode(indexes[i]);
+        }
+        return nodes;
+    }
+
+    /**
+     * @return a page of the records shared with the peer that fall into the buckets, with keys from {@code from} on,
+     * in {@link RecordCodec} form, empty if there are no more
+     */
+    @NotNull
+    public byte[] export(@NotNull String peer, @NotNull BitSet buckets, @NotNull byte[] from) throws IOException {
+        List<Record> page = new ArrayList<>();
+        long bytes = 0;
+        Iterator<Record> records = dao.range(from, null);
+        while (bytes < PAGE_BYTES && records.hasNext()) {
+            Record record = records.next();
+            if (buckets.get(MerkleTree.bucket(record.getKey())) && isShared(peer, record.getKey())) {
+                page.add(record);
+                bytes += RecordCodec.size(record.getKey(), record.getValue());
+            }
+        }
+        return RecordCodec.writeAll(page);
+    }
+
+    private void syncWith(String peer) throws Exception {
+        HttpClient client = clients.get(peer);
+        MerkleTree tree = tree(peer);
+        List<Integer> differing = new ArrayList<>();
+        List<Integer> level = Collections.singletonList(1);
+        while (!level.isEmpty()) {
+            long[] peerNodes = peerNodes(client, peer, level);
+            List<Integer> next = new ArrayList<>();
+            for (int i = 0; i < level.size(); i++) {
+                int index = level.get(i);
+                if (peerNodes[i] == tree.getNode(index)) {
+                    continue;
+                }
+                if (index >= MerkleTree.LEAVES) {
+                    differing.add(index - MerkleTree.LEAVES);
+                } else {
+                    next.add(2 * index);
+                    next.add(2 * index + 1);
+                }
+            }
+            level = next;
+        }
+
+        for (int from = 0; from < differing.size(); from += BUCKETS_PER_REQUEST) {
+            List<Integer> batch = differing.subList(from, Math.min(differing.size(), from + BUCKETS_PER_REQUEST));
+            pull(client, peer, batch);
+        }
+    }
+
+    private long[] peerNodes(HttpClient client, String peer, List<Integer> indexes) throws Exception {
+        ByteBuffer body = ByteBuffer.allocate(indexes.size() * Integer.BYTES);
+        IntBuffer ints = body.asIntBuffer();
+        for (int index : indexes) {
+            ints.put(index);
+        }
+        Response response = client.post("/v0/internal/merkle?peer=" + my, body.array());
+        if (response.getStatus() != 200) {
+            throw new IOException("Can't get tree from " + peer + ": " + response.getStatus());
+        }
+        LongBuffer answer = BufferResponse.body(response).asLongBuffer();
+        if (answer.remaining() != indexes.size()) {
+            throw new IOException("Can't get tree from " + peer + ": " + answer.remaining() + " nodes");
+        }
+        long[] nodes = new long[indexes.size()];
+        answer.get(nodes);
+        return nodes;
+    }
+
+    private void pull(HttpClient client, String peer, List<Integer> buckets) throws Exception {
+        StringBuilder uri = new StringBuilder("/v0/internal/records?peer=").append(my).append("&buckets=");
+        for (int i = 0; i < buckets.size(); i++) {
+            uri.append(i == 0 ? "" : ",").append(buckets.get(i));
+        }
+        uri.append("&start=");
+        byte[] start = new byte[0];
+        while (true) {
+            Response response = client.get(Keys.appendEncoded(new StringBuilder(uri), start).toString());
+            if (response.getStatus() != 200) {
+                throw new IOException("Can't get records from " + peer + ": " + response.getStatus());
+            }
+            List<Record> page = RecordCodec.readAll(BufferResponse.body(response));
+            if (page.isEmpty()) {
+                return;
+            }
+            dao.mergeAll(page);
+            trees.clear();
+            // The least key after the last one
+            byte[] last = page.get(page.size() - 1).getKey();
+            start = Arrays.copyOf(last, last.length + 1);
+        }
+    }
+
+    private MerkleTree tree(String peer) throws IOException {
+        long now = System.currentTimeMillis();
+        Tree cached = trees.get(peer);
+        if (cached != null && now - cached.builtAt < treeMaxAgeMillis) {
+            return cached.tree;
+        }
+        MerkleTree tree = buildTree(peer);
+        trees.put(peer, new Tree(tree, now));
+        return tree;
+    }
+
+    private MerkleTree buildTree(String peer) throws IOException {
+        MerkleTree tree = new MerkleTree();
+        Iterator<Record> records = dao.records();
+        while (records.hasNext()) {
+            Record record = records.next();
+            if (isShared(peer, record.getKey())) {
+                tree.add(record);
+            }
+        }
+        return tree.seal();
+    }
+
+    private boolean isShared(String peer, byte[] key) {
+        List<String> owners = ring.owners(key, replicas);
+        return owners.contains(my) && owners.contains(peer);
+    }
+
+    private static class Tree {
+        private final MerkleTree tree;
+        private final long builtAt;
+
+        Tree(MerkleTree tree, long builtAt) {
+            this.tree = tree;
+            this.builtAt = builtAt;
+        }
+    }
+}
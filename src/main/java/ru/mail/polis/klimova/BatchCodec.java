@@ -0,0 +1,123 @@
+package ru.mail.polis.klimova;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Bodies of the {@code /v0/batch} requests and responses. A key is {@code [key size][key]},
+ * an entry is {@code [key size][key][value size or -1][value]}, where {@code -1} stands
+ * for a removed or absent key. Sizes are big-endian ints.
+ */
+public final class BatchCodec {
+    private static final int NO_VALUE = -1;
+
+    private BatchCodec() {
+    }
+
+    @NotNull
+    public static byte[] writeKeys(@NotNull List<byte[]> keys) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (byte[] key : keys) {
+            out.writeInt(key.length);
+            out.write(key);
+        }
+        return bytes.toByteArray();
+    }
+
+    @NotNull
+    public static List<byte[]> readKeys(@NotNull byte[] body) throws IOException {
+        return readKeys(ByteBuffer.wrap(body));
+    }
+
+    /**
+     * Reads the keys from the remaining bytes of {@code body}, leaving its position as it is.
+     */
+    @NotNull
+    public static List<byte[]> readKeys(@NotNull ByteBuffer body) throws IOException {
+        ByteBuffer in = body.duplicate();
+        List<byte[]> keys = new ArrayList<>();
+        while (in.hasRemaining()) {
+            keys.add(readBytes(in));
+        }
+        return keys;
+    }
+
+    /**
+     * @param entries keys with their values, a {@code null} value for a removed or absent key
+     */
+    @NotNull
+    public static byte[] writeEntries(@NotNull List<Map.Entry<byte[], byte[]>> entries) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (Map.Entry<byte[], byte[]> entry : entries) {
+            out.writeInt(entry.getKey().length);
+            out.write(entry.getKey());
+            byte[] value = entry.getValue();
+            if (value == null) {
+                out.writeInt(NO_VALUE);
+            } else {
+                out.writeInt(value.length);
+                out.write(value);
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @return keys with their values, a {@code null} value for a removed or absent key
+     */
+    @NotNull
+    public static List<Map.Entry<byte[], byte[]>> readEntries(@NotNull byte[] body) throws IOException {
+        return readEntries(ByteBuffer.wrap(body));
+    }
+
+    /**
+     * Reads the entries from the remaining bytes of {@code body}, leaving its position as it is.
+     *
+     * @return keys with their values, a {@code null} value for a removed or absent key
+     */
+    @NotNull
+    public static List<Map.Entry<byte[], byte[]>> readEntries(@NotNull ByteBuffer body) throws IOException {
+        ByteBuffer in = body.duplicate();
+        List<Map.Entry<byte[], byte[]>> entries = new ArrayList<>();
+        while (in.hasRemaining()) {
+            byte[] key = readBytes(in);
+            int size = readSize(in);
+            byte[] value = null;
+            if (size != NO_VALUE) {
+                value = readBytes(in, size);
+            }
+            entries.add(new AbstractMap.SimpleImmutableEntry<>(key, value));
+        }
+        return entries;
+    }
+
+    private static int readSize(ByteBuffer in) throws IOException {
+        if (in.remaining() < Integer.BYTES) {
+            throw new IOException("Truncated size");
+        }
+        return in.getInt();
+    }
+
+    private static byte[] readBytes(ByteBuffer in) throws IOException {
+        return readBytes(in, readSize(in));
+    }
+
+    private static byte[] readBytes(ByteBuffer in, int size) throws IOException {
+        if (size < 0 || size > in.remaining()) {
+            throw new IOException("Bad size " + size);
+        }
+        byte[] bytes = new byte[size];
+        in.get(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,97 @@
+package ru.mail.polis.klimova;
+
+import java.nio.ByteBuffer;
+
+import org.jetbrains.annotations.NotNull;
+
+import one.nio.util.Hash;
+
+/**
+ * Bloom filter over the keys of a table. A key is hashed once into two 32-bit hashes,
+ * the probed bits are derived from them by double hashing.
+ */
+public class BloomFilter {
+    public static final int BITS_PER_KEY = 10;
+    private static final int HASH_COUNT = 7;
+
+    private final long[] bits;
+    private final int hashCount;
+
+    public BloomFilter(@NotNull long[] bits, int hashCount) {
+        if (bits.length == 0 || hashCount < 1) {
+            throw new IllegalArgumentException("Empty bloom filter");
+        }
+        this.bits = bits;
+        this.hashCount = hashCount;
+    }
+
+    /**
+     * @param keyHashes {@link #hash hashes} of the keys, only the first {@code count} are used
+     */
+    @NotNull
+    public static BloomFilter create(@NotNull long[] keyHashes, int count) {
+        long bitCount = Math.max(Long.SIZE, (long) count * BITS_PER_KEY);
+        BloomFilter filter = new BloomFilter(new long[(int) ((bitCount + Long.SIZE - 1) / Long.SIZE)], HASH_COUNT);
+        for (int i = 0; i < count; i++) {
+            filter.add(keyHashes[i]);
+        }
+        return filter;
+    }
+
+    public static long hash(@NotNull ByteBuffer key) {
+        byte[] array;
+        int offset;
+        if (key.hasArray()) {
+            array = key.array();
+            offset = key.arrayOffset() + key.position();
+        } else {
+            array = Cell.toArray(key);
+            offset = 0;
+        }
+        int length = key.remaining();
+        return ((long) Hash.murmur3(array, offset, length) << 32) | (Hash.xxhash(array, offset, length) & 0xFFFFFFFFL);
+    }
+
+    private void add(long hash) {
+        long bitCount = (long) bits.length * Long.SIZE;
+        int first = (int) (hash >>> 32);
+        int second = (int) hash;
+        for (int i = 0; i < hashCount; i++) {
+            long bit = ((first + (long) i * second) & Long.MAX_VALUE) % bitCount;
+            bits[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    /**
+     * @return {@code false} if the key is surely absent
+     */
+    public boolean mightContain(@NotNull ByteBuffer key) {
+        return mightContain(hash(key));
+    }
+
+    /**
+     * @param hash {@link #hash} of the key
+     * @return {@code false} if the key is surely absent
+     */
+    public boolean mightContain(long hash) {
+        long bitCount = (long) bits.length * Long.SIZE;
+        int first = (int) (hash >>> 32);
+        int second = (int) hash;
+        for (int i = 0; i < hashCount; i++) {
+            long bit = ((first + (long) i * second) & Long.MAX_VALUE) % bitCount;
+            if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @NotNull
+    public long[] getBits() {
+        return bits;
+    }
+
+    public int getHashCount() {
+        return hashCount;
+    }
+}
@@ -0,0 +1,38 @@
+package ru.mail.polis.klimova;
+
+import java.nio.ByteBuffer;
+
+import org.jetbrains.annotations.NotNull;
+
+import one.nio.http.Request;
+import one.nio.http.Response;
+
+/**
+ * Request with a large body {@link StorageSession} has received off-heap.
+ * The body is copied to the heap only if someone asks for it as an array.
+ */
+public class BodyRequest extends Request {
+    private final ByteBuffer body;
+
+    public BodyRequest(@NotNull Request prototype, @NotNull ByteBuffer body) {
+        super(prototype);
+        this.body = body.slice();
+    }
+
+    @Override
+    public byte[] getBody() {
+        return Cell.toArray(body);
+    }
+
+    /**
+     * @return view of the body of any request, an empty one if there is no body
+     */
+    @NotNull
+    public static ByteBuffer body(@NotNull Request request) {
+        if (request instanceof BodyRequest) {
+            return ((BodyRequest) request).body.duplicate();
+        }
+        byte[] body = request.getBody();
+        return ByteBuffer.wrap(body == null ? Response.EMPTY : body);
+    }
+}
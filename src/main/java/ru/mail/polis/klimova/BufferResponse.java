@@ -0,0 +1,55 @@
+package ru.mail.polis.klimova;
+
+import java.nio.ByteBuffer;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import one.nio.http.Response;
+
+/**
+ * Response with the body in a buffer, possibly a direct or memory mapped one,
+ * so a large body never has to be on the heap whole. {@link StorageSession} writes
+ * the body straight from the buffer.
+ */
+public class BufferResponse extends Response {
+    private final ByteBuffer buffer;
+
+    /**
+     * @param buffer body between its position and limit, or {@code null} for no body
+     */
+    public BufferResponse(@NotNull String resultCode, @Nullable ByteBuffer buffer) {
+        super(resultCode);
+        this.buffer = buffer == null ? null : buffer.slice();
+        addHeader("Content-Length: " + (buffer == null ? 0 : buffer.remaining()));
+    }
+
+    /**
+     * @return view of the body, or {@code null} if there is none
+     */
+    @Nullable
+    public ByteBuffer getBuffer() {
+        return buffer == null ? null : buffer.duplicate();
+    }
+
+    /**
+     * @return view of the body of any response, an empty one if there is no body
+     */
+    @NotNull
+    public static ByteBuffer body(@NotNull Response response) {
+        if (response instanceof BufferResponse) {
+            ByteBuffer buffer = ((BufferResponse) response).getBuffer();
+            return buffer == null ? ByteBuffer.wrap(EMPTY) : buffer;
+        }
+        byte[] body = response.getBody();
+        return ByteBuffer.wrap(body == null ? EMPTY : body);
+    }
+
+    /**
+     * @return body copied to the heap
+     */
+    @Override
+    public byte[] getBody() {
+        return buffer == null ? EMPTY : Cell.toArray(buffer);
+    }
+}
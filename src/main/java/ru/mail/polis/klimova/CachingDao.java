@@ -0,0 +1,184 @@
+package ru.mail.polis.klimova;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.Lock;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import ru.mail.polis.KVDao;
+import ru.mail.polis.Record;
+import ru.mail.polis.Value;
+
+/**
+ * Storage in front of another one that serves the hot keys from a {@link ValueCache}:
+ * values, tombstones and keys that have never been written.
+ * <p>
+ * Writes go through to the storage and invalidate the cached key. A miss and the writes
+ * of a key hold the same striped lock, so a read racing with a write can't cache the value
+ * the write has just replaced, and concurrent misses of a key read the storage once.
+ */
+public class CachingDao implements KVDao, TombstoneCollector {
+    private static final int LOCK_STRIPES = 256;
+
+    private final KVDao dao;
+    private final ValueCache cache;
+    private final StripedLock locks = new StripedLock(LOCK_STRIPES);
+
+    public CachingDao(@NotNull KVDao dao, @NotNull ValueCache cache) {
+        this.dao = dao;
+        this.cache = cache;
+    }
+
+    @NotNull
+    public ValueCache getCache() {
+        return cache;
+    }
+
+    @NotNull
+    @Override
+    public byte[] get(@NotNull byte[] key) throws NoSuchElementException, IOException {
+        Value value = getValue(key);
+        if (value.isRemoved()) {
+            throw new NoSuchElementException();
+        }
+        return value.getData();
+    }
+
+    @NotNull
+    @Override
+    public Value getValue(@NotNull byte[] key) throws NoSuchElementException, IOException {
+        Value value = cache.get(key);
+        if (value == null) {
+            Lock lock = locks.get(key);
+            lock.lock();
+            try {
+                // Another miss may have loaded it meanwhile
+                value = cache.peek(key);
+                if (value == null) {
+                    value = load(key);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        if (value == ValueCache.ABSENT) {
+            throw new NoSuchElementException();
+        }
+        return value;
+    }
+
+    private Value load(byte[] key) throws IOException {
+        Value value;
+        try {
+            value = dao.getValue(key);
+        } catch (NoSuchElementException e) {
+            value = ValueCache.ABSENT;
+        }
+        return cache.put(key, value);
+    }
+
+    @Override
+    public long getUpdateTimeMillis(@NotNull byte[] key) throws NoSuchElementException, IOException {
+        return getValue(key).getTimestamp();
+    }
+
+    @Override
+    public void upsert(@NotNull byte[] key, @NotNull byte[] value) throws IOException {
+        Lock lock = locks.get(key);
+        lock.lock();
+        try {
+            dao.upsert(key, value);
+        } finally {
+            cache.invalidate(key);
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void remove(@NotNull byte[] key) throws IOException {
+        Lock lock = locks.get(key);
+        lock.lock();
+        try {
+            dao.remove(key);
+        } finally {
+            cache.invalidate(key);
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void merge(@NotNull byte[] key, @NotNull Value value) throws IOException {
+        Lock lock = locks.get(key);
+        lock.lock();
+        try {
+            dao.merge(key, value);
+        } finally {
+            cache.invalidate(key);
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void mergeAll(@NotNull Collection<Record> records) throws IOException {
+        List<byte[]> keys = new ArrayList<>(records.size());
+        for (Record record : records) {
+            keys.add(record.getKey());
+        }
+        List<Lock> held = locks.lockAll(keys);
+        try {
+            dao.mergeAll(records);
+        } finally {
+            for (byte[] key : keys) {
+                cache.invalidate(key);
+            }
+            for (Lock lock : held) {
+                lock.unlock();
+            }
+        }
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Record> range(@NotNull byte[] from, @Nullable byte[] to) throws IOException {
+        return dao.range(from, to);
+    }
+
+    @Nullable
+    @Override
+    public File getDirectory() {
+        return dao.getDirectory();
+    }
+
+    /**
+     * A purged tombstone may stay cached until the key is written or evicted,
+     * it still reads as a removed key.
+     */
+    @Override
+    public void collectGarbage() throws IOException {
+        if (dao instanceof TombstoneCollector) {
+            ((TombstoneCollector) dao).collectGarbage();
+        }
+    }
+
+    @Override
+    public long getPurgedTombstones() {
+        return dao instanceof TombstoneCollector ? ((TombstoneCollector) dao).getPurgedTombstones() : 0;
+    }
+
+    @Override
+    public long getReclaimedBytes() {
+        return dao instanceof TombstoneCollector ? ((TombstoneCollector) dao).getReclaimedBytes() : 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        dao.close();
+    }
+}
@@ -0,0 +1,77 @@
+package ru.mail.polis.klimova;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Comparator;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+public class Cell {
+    private static final int COPY_CHUNK_SIZE = 8 * 1024;
+
+    public static final Comparator<Cell> COMPARATOR = Comparator.comparing(Cell::getKey, Keys.COMPARATOR);
+
+    private final ByteBuffer key;
+    private final ByteBuffer value;
+    private final long timestamp;
+
+    private Cell(ByteBuffer key, ByteBuffer value, long timestamp) {
+        this.key = key;
+        this.value = value;
+        this.timestamp = timestamp;
+    }
+
+    public static Cell value(@NotNull ByteBuffer key, @NotNull ByteBuffer value, long timestamp) {
+        return new Cell(key, value, timestamp);
+    }
+
+    public static Cell tombstone(@NotNull ByteBuffer key, long timestamp) {
+        return new Cell(key, null, timestamp);
+    }
+
+    @NotNull
+    public ByteBuffer getKey() {
+        return key.duplicate();
+    }
+
+    @Nullable
+    public ByteBuffer getValue() {
+        return value == null ? null : value.duplicate();
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public boolean isTombstone() {
+        return value == null;
+    }
+
+    @NotNull
+    public static byte[] toArray(@NotNull ByteBuffer buffer) {
+        ByteBuffer duplicate = buffer.duplicate();
+        byte[] result = new byte[duplicate.remaining()];
+        duplicate.get(result);
+        return result;
+    }
+
+    /**
+     * Writes the remaining bytes of the buffer, an off-heap one through a small chunk,
+     * so a large value is never copied to the heap whole.
+     */
+    public static void write(@NotNull OutputStream out, @NotNull ByteBuffer buffer) throws IOException {
+        if (buffer.hasArray()) {
+            out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            return;
+        }
+        ByteBuffer duplicate = buffer.duplicate();
+        byte[] chunk = new byte[Math.min(COPY_CHUNK_SIZE, duplicate.remaining())];
+        while (duplicate.hasRemaining()) {
+            int size = Math.min(chunk.length, duplicate.remaining());
+            duplicate.get(chunk, 0, size);
+            out.write(chunk, 0, size);
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package ru.mail.polis.klimova;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+import org.jetbrains.annotations.NotNull;
+
+import ru.mail.polis.Record;
+
+/**
+ * Records of a range merged from all the nodes, as the keys of any range are spread over the whole ring.
+ * Of the records of a key the newest one wins, tombstones included, so a removal hides the older value
+ * a replica that missed it still has. Skipping the tombstones is left to the reader.
+ * <p>
+ * The records of another node come page by page, see {@link #paged}.
+ */
+public class ClusterRange implements Iterator<Record> {
+    private final PriorityQueue<Source> queue;
+    private Record next;
+
+    /**
+     * @param sources records of every node ordered by key
+     */
+    public ClusterRange(@NotNull List<Iterator<Record>> sources) {
+        queue = new PriorityQueue<>(Math.max(1, sources.size()));
+        for (Iterator<Record> iterator : sources) {
+            if (iterator.hasNext()) {
+                queue.add(new Source(iterator));
+            }
+        }
+        advance();
+    }
+
+    /**
+     * Records of a node from {@code start} on, the next page is asked for only once the previous one
+     * has been read, so a single page is held at a time. The first one is asked for at once.
+     * A page that can't be got fails the iteration with an {@link UncheckedIOException}.
+     */
+    @NotNull
+    public static Iterator<Record> paged(@NotNull byte[] start, @NotNull Pages pages) throws IOException {
+        return new PagedIterator(start, pages);
+    }
+
+    private void advance() {
+        next = null;
+        Source source = queue.poll();
+        if (source == null) {
+            return;
+        }
+        next = source.current;
+        source.moveNext(queue);
+        while (!queue.isEmpty() && Arrays.equals(queue.peek().current.getKey(), next.getKey())) {
+            Source same = queue.poll();
+            if (same.current.getValue().isNewerThan(next.getValue())) {
+                next = same.current;
+            }
+            same.moveNext(queue);
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        return next != null;
+    }
+
+    @Override
+    public Record next() {
+        if (next == null) {
+            throw new NoSuchElementException();
+        }
+        Record result = next;
+        advance();
+        return result;
+    }
+
+    public interface Pages {
+        /**
+         * @return records from {@code from} inclusive ordered by key, tombstones too, none past the end
+         */
+        @NotNull
+        List<Record> page(@NotNull byte[] from) throws IOException;
+    }
+
+    private static class PagedIterator implements Iterator<Record> {
+        private final Pages pages;
+        private Iterator<Record> page;
+        private byte[] last;
+
+        PagedIterator(byte[] start, Pages pages) throws IOException {
+            this.pages = pages;
+            page = pages.page(start).iterator();
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (page.hasNext()) {
+                return true;
+            }
+            if (last == null) {
+                return false;
+            }
+            try {
+                // The least key after the last one
+                page = pages.page(Arrays.copyOf(last, last.length + 1)).iterator();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            last = null;
+            return page.hasNext();
+        }
+
+        @Override
+        public Record next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Record record = page.next();
+            last = record.getKey();
+            return record;
+        }
+    }
+
+    private static class Source implements Comparable<Source> {
+        private final Iterator<Record> iterator;
+        private Record current;
+
+        Source(Iterator<Record> iterator) {
+            this.iterator = iterator;
+            this.current = iterator.next();
+        }
+
+        void moveNext(PriorityQueue<Source> queue) {
+            if (iterator.hasNext()) {
+                current = iterator.next();
+                queue.add(this);
+            }
+        }
+
+        @Override
+        public int compareTo(@NotNull Source other) {
+            return Keys.compare(ByteBuffer.wrap(current.getKey()), ByteBuffer.wrap(other.current.getKey()));
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package ru.mail.polis.klimova;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import one.nio.lz4.LZ4;
+
+/**
+ * LZ4 compression of stored values. A value is compressed only if it is at least
+ * the threshold long and shrinks by at least an eighth, so an incompressible value
+ * is not decompressed on every read for nothing.
+ * <p>
+ * A large value is decompressed off-heap, like a large request body is received.
+ */
+public final class Compression {
+    private static final int HEAP_LIMIT = 64 * 1024;
+
+    private Compression() {
+    }
+
+    /**
+     * @param threshold size of the smallest value to compress, {@code 0} to keep all values raw
+     * @return compressed value, or {@code null} if the value is to be kept raw
+     */
+    @Nullable
+    public static ByteBuffer compress(@NotNull ByteBuffer value, int threshold) {
+        int size = value.remaining();
+        if (threshold == 0 || size < threshold) {
+            return null;
+        }
+        ByteBuffer compressed = allocate(LZ4.compressBound(size));
+        LZ4.compress(value.duplicate(), compressed);
+        compressed.flip();
+        if (compressed.remaining() > size - size / 8) {
+            return null;
+        }
+        return compressed;
+    }
+
+    /**
+     * @param size size of the value before compression
+     */
+    @NotNull
+    public static ByteBuffer decompress(@NotNull ByteBuffer compressed, int size) throws IOException {
+        ByteBuffer value = allocate(size);
+        try {
+            LZ4.decompress(compressed.duplicate(), value);
+        } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+            throw new IOException("Corrupted compressed value", e);
+        }
+        if (value.hasRemaining()) {
+            throw new IOException("Compressed value is " + value.position() + " bytes instead of " + size);
+        }
+        value.flip();
+        return value;
+    }
+
+    @NotNull
+    public static byte[] decompress(@NotNull byte[] compressed, int size) throws IOException {
+        byte[] value = new byte[size];
+        try {
+            if (size > 0 && LZ4.decompress(compressed, value) != size) {
+                throw new IOException("Compressed value is shorter than " + size + " bytes");
+            }
+        } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+            throw new IOException("Corrupted compressed value", e);
+        }
+        return value;
+    }
+
+    private static ByteBuffer allocate(int size) {
+        return size > HEAP_LIMIT ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+    }
+}
@@ -2,20 +2,59 @@ package ru.mail.polis.klimova;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
 import java.sql.Connection;
 import java.sql.DatabaseMetaData;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
 
 import org.h2.jdbcx.JdbcDataSource;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import ru.mail.polis.KVDao;
+import ru.mail.polis.Record;
+import ru.mail.polis.Value;
+
+/**
+ * Storage in an embedded H2 database. A removed key stays as a tombstone row until the row
+ * is older than the grace period, then a background task deletes it and H2 reuses its pages.
+ * <p>
+ * Values from the compression threshold up are stored {@link Compression compressed},
+ * with their size before compression in a column that is {@code NULL} for a raw value.
+ * <p>
+ * Each caller borrows a {@link Session}: a connection with the statements it has already prepared,
+ * so a request neither builds its SQL nor has H2 parse it again.
+ * <p>
+ * With {@code -Dhighload.h2.reuse=false} every call prepares its statement again and closes it,
+ * so the benchmarks can measure what the reuse saves.
+ */
+public class DBDao implements KVDao, TombstoneCollector {
+    public static final boolean REUSE_STATEMENTS =
+            Boolean.parseBoolean(System.getProperty("highload.h2.reuse", "true"));
 
-public class DBDao implements KVDao {
     private static final String CONNECTION_WITH_DB_CLOSED = "08006";
     private static final String DATABASE_NOT_FOUND = "XJ004";
     private static final String TABLE_STORAGE = "KVSTORAGE";
@@ -23,52 +62,181 @@ public class DBDao implements KVDao {
     private static final String COL_VALUE = "kv_value";
     private static final String COL_TIMESTAMP = "kv_timestamp";
     private static final String COL_DELETED = "kv_deleted";
+    private static final String COL_RAW_SIZE = "kv_raw_size";
+    private static final int LOCK_STRIPES = 256;
+    private static final int MAX_OLD_VALUE_SIZE = 1024;
+    private static final int SCAN_PAGE_SIZE = 1000;
+    // Timestamp and deleted flag
+    private static final int ROW_OVERHEAD = Long.BYTES + 1;
+    // Waiting for a session, a discarded one may let a new connection be opened meanwhile
+    private static final long SESSION_WAIT_MILLIS = 100;
+    private static final byte[] NO_VALUE = new byte[0];
+    private static final String WRITE_QUERY = "MERGE INTO " + TABLE_STORAGE + " (" + COL_VALUE + ", " + COL_RAW_SIZE + ", " + COL_KEY + ", " + COL_DELETED + ", " + COL_TIMESTAMP + ") KEY (" + COL_KEY + ") values (?, ?, ?, ?, ?)";
+    private static final String VERSION_QUERY = "SELECT " + COL_TIMESTAMP + ", " + COL_DELETED + " from " + TABLE_STORAGE + " where " + COL_KEY + " = ?";
+    private static final String GET_QUERY = "SELECT " + COL_VALUE + ", " + COL_RAW_SIZE + " from " + TABLE_STORAGE + " where " + COL_KEY + " = ? and " + COL_DELETED + " = FALSE";
+    private static final String VALUE_QUERY = "SELECT " + COL_TIMESTAMP + ", " + COL_DELETED + ", " + COL_VALUE + ", " + COL_RAW_SIZE + " from " + TABLE_STORAGE + " where " + COL_KEY + " = ?";
+    private static final String TIMESTAMP_QUERY = "SELECT " + COL_TIMESTAMP + " from " + TABLE_STORAGE + " where " + COL_KEY + " = ?";
+    private static final String REMOVE_QUERY = "UPDATE " + TABLE_STORAGE + " set " + COL_VALUE + " = ?, " + COL_RAW_SIZE + " = NULL, " + COL_TIMESTAMP + " = ?, " + COL_DELETED + " = TRUE where " + COL_KEY + " = ?";
+    private static final String EXPIRED = " from " + TABLE_STORAGE + " where " + COL_DELETED + " = TRUE and " + COL_TIMESTAMP + " <= ?";
+    private static final String EXPIRED_SIZE_QUERY = "SELECT SUM(LENGTH(" + COL_KEY + ") + COALESCE(LENGTH(" + COL_VALUE + "), 0))" + EXPIRED;
+    private static final String PURGE_QUERY = "DELETE" + EXPIRED;
+    // By whether the page may start with the first key and whether it has an end
+    private static final String[] PAGE_QUERIES = {
+            pageQuery(false, false), pageQuery(true, false), pageQuery(false, true), pageQuery(true, true)
+    };
 
-    private Connection connection;
-
-    private JdbcDataSource dataSource;
+    private final File directory;
+    private final JdbcDataSource dataSource;
+    private final int maxConnections;
+    private final BlockingQueue<Session> sessions;
+    private final AtomicInteger connections = new AtomicInteger();
+    private final StripedLock locks = new StripedLock(LOCK_STRIPES);
+    private final StorageConfig config;
+    private final ScheduledExecutorService collector;
+    private final AtomicLong purgedTombstones = new AtomicLong();
+    private final AtomicLong reclaimedBytes = new AtomicLong();
 
     public DBDao(File path) throws IOException {
+        this(path, StorageConfig.defaults());
+    }
+
+    public DBDao(File path, StorageConfig config) throws IOException {
+        this(path, Runtime.getRuntime().availableProcessors() * 2, config);
+    }
+
+    public DBDao(File path, int maxConnections, StorageConfig config) throws IOException {
+        this.directory = path;
+        this.config = config;
+        this.maxConnections = maxConnections;
+        sessions = new ArrayBlockingQueue<>(maxConnections);
         dataSource = new JdbcDataSource();
-        dataSource.setURL("jdbc:h2:" + path.getPath() + "/db;mode=MySQL;DB_CLOSE_DELAY=0");
+        dataSource.setURL("jdbc:h2:" + path.getPath() + "/db;mode=MySQL;DB_CLOSE_DELAY=0;MULTI_THREADED=1");
 
-        try {
-            connection = dataSource.getConnection();
-        } catch (Exception e) {
+        try (Session session = session()) {
+            createTable(session.connection);
+        } catch (SQLException e) {
+            closeSessions();
             throw new IOException(e);
         }
 
-        try {
-            createTable();
-        } catch (SQLException e) {
-            throw new IOException(e);
+        collector = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "h2-gc");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long gcInterval = config.getGcIntervalMillis();
+        collector.scheduleWithFixedDelay(() -> {
+            try {
+                purgeTombstones();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, gcInterval, gcInterval, TimeUnit.MILLISECONDS);
+    }
+
+    private static String pageQuery(boolean inclusive, boolean bounded) {
+        return "SELECT " + COL_KEY + ", " + COL_TIMESTAMP + ", " + COL_DELETED + ", " + COL_VALUE + ", " + COL_RAW_SIZE + " from " + TABLE_STORAGE
+                + " where " + COL_KEY + (inclusive ? " >= ?" : " > ?") + (bounded ? " and " + COL_KEY + " < ?" : "")
+                + " order by " + COL_KEY + " limit " + SCAN_PAGE_SIZE;
+    }
+
+    /**
+     * Takes an idle session, opens a new one while there are fewer than the maximum,
+     * or waits for one to be returned.
+     */
+    private Session session() throws SQLException, IOException {
+        while (true) {
+            Session session = sessions.poll();
+            if (session != null) {
+                return session;
+            }
+            if (connections.incrementAndGet() <= maxConnections) {
+                try {
+                    return new Session(dataSource.getConnection());
+                } catch (SQLException e) {
+                    connections.decrementAndGet();
+                    throw e;
+                }
+            }
+            connections.decrementAndGet();
+            try {
+                session = sessions.poll(SESSION_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            }
+            if (session != null) {
+                return session;
+            }
         }
     }
 
-    private void createTable() throws SQLException {
+    private void closeSessions() {
+        for (Session session = sessions.poll(); session != null; session = sessions.poll()) {
+            session.discard();
+        }
+    }
+
+    /**
+     * Creates the table, or brings a table created by an older version to the current schema.
+     */
+    private void createTable(Connection connection) throws SQLException {
         DatabaseMetaData databaseMetaData = connection.getMetaData();
 
         ResultSet resultSet = databaseMetaData.getTables(null, null, TABLE_STORAGE, null);
+        Statement statement = connection.createStatement();
         if (!resultSet.next()){
-            Statement statement = connection.createStatement();
-            statement.execute("CREATE TABLE " + TABLE_STORAGE + "(" + COL_KEY+" VARCHAR (256) NOT NULL, " + COL_VALUE + " blob (1024), " + COL_TIMESTAMP + " BIGINT, " + COL_DELETED + " boolean )");
+            statement.execute("CREATE TABLE " + TABLE_STORAGE + "(" + COL_KEY+" VARBINARY NOT NULL, " + COL_VALUE + " BLOB, " + COL_RAW_SIZE + " INT, " + COL_TIMESTAMP + " BIGINT, " + COL_DELETED + " boolean )");
             statement.execute("ALTER TABLE " + TABLE_STORAGE + " ADD PRIMARY KEY (" + COL_KEY + ")");
-            statement.close();
+        } else {
+            // Keys were VARCHAR(256), where H2 kept the key bytes as hex, and converts the hex back to them
+            if (columnType(databaseMetaData, COL_KEY) != Types.VARBINARY) {
+                statement.execute("ALTER TABLE " + TABLE_STORAGE + " ALTER COLUMN " + COL_KEY + " VARBINARY NOT NULL");
+            }
+            // Values were blob(1024)
+            if (columnSize(databaseMetaData, COL_VALUE) <= MAX_OLD_VALUE_SIZE) {
+                statement.execute("ALTER TABLE " + TABLE_STORAGE + " ALTER COLUMN " + COL_VALUE + " BLOB");
+            }
+            // Values stored before compression are raw, which a NULL size stands for
+            statement.execute("ALTER TABLE " + TABLE_STORAGE + " ADD COLUMN IF NOT EXISTS " + COL_RAW_SIZE + " INT");
+        }
+        statement.close();
+    }
+
+    private static int columnType(DatabaseMetaData databaseMetaData, String column) throws SQLException {
+        try (ResultSet columns = columns(databaseMetaData, column)) {
+            return columns.getInt("DATA_TYPE");
+        }
+    }
+
+    private static long columnSize(DatabaseMetaData databaseMetaData, String column) throws SQLException {
+        try (ResultSet columns = columns(databaseMetaData, column)) {
+            return columns.getLong("COLUMN_SIZE");
+        }
+    }
+
+    private static ResultSet columns(DatabaseMetaData databaseMetaData, String column) throws SQLException {
+        // H2 keeps the names unquoted in the schema in upper case
+        ResultSet columns = databaseMetaData.getColumns(null, null, TABLE_STORAGE, column.toUpperCase(Locale.ROOT));
+        if (!columns.next()) {
+            columns.close();
+            throw new SQLException("No column " + column + " in " + TABLE_STORAGE);
         }
+        return columns;
     }
 
     @NotNull
     @Override
     public byte[] get(@NotNull byte[] key) throws NoSuchElementException, IOException {
-        String query = "SELECT " + COL_VALUE + " from " + TABLE_STORAGE + " where " + COL_KEY + " = ? and " + COL_DELETED + " = ?";
-        try (PreparedStatement statement = connection.prepareStatement(query)){
+        try (Session session = session()) {
+            PreparedStatement statement = session.prepare(GET_QUERY);
             statement.setBytes(1, key);
-            statement.setBoolean(2, false);
-            ResultSet resultSet = statement.executeQuery();
-            if (resultSet.next()) {
-                return resultSet.getBytes(COL_VALUE);
-            } else {
-                throw new NoSuchElementException();
+            try (ResultSet resultSet = statement.executeQuery()) {
+                if (resultSet.next()) {
+                    return readValue(resultSet, 1);
+                } else {
+                    throw new NoSuchElementException();
+                }
             }
         } catch (SQLException e) {
             throw new IOException(e);
@@ -77,63 +245,393 @@ public class DBDao implements KVDao {
 
     @Override
     public void upsert(@NotNull byte[] key, @NotNull byte[] value) throws IOException {
-        String query = "INSERT INTO " + TABLE_STORAGE + " (" + COL_VALUE + ", " + COL_KEY + ", " + COL_DELETED + ", "+ COL_TIMESTAMP + ") values (?, ?, ?, ?) ON DUPLICATE KEY UPDATE " + COL_VALUE + " = ?, " + COL_DELETED + " = ?, " + COL_TIMESTAMP + " = ?";
-        try (PreparedStatement statement = connection.prepareStatement(query)){
-            long time = System.currentTimeMillis();
-            statement.setBytes(1, value);
-            statement.setBytes(2, key);
-            statement.setBoolean(3, false);
-            statement.setLong(4, time);
-            statement.setBytes(5, value);
-            statement.setBoolean(6, false);
-            statement.setLong(7, time);
+        Lock lock = locks.get(key);
+        lock.lock();
+        try {
+            write(key, value, false, System.currentTimeMillis());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void merge(@NotNull byte[] key, @NotNull Value value) throws IOException {
+        Lock lock = locks.get(key);
+        lock.lock();
+        try {
+            try {
+                if (getValue(key).isNewerThan(value)) {
+                    return;
+                }
+            } catch (NoSuchElementException e) {
+                // Nothing stored yet
+            }
+            if (value.isRemoved()) {
+                write(key, NO_VALUE, true, value.getTimestamp());
+            } else {
+                write(key, value.getData(), false, value.getTimestamp());
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Applies the batch in one transaction, holding the locks of all its keys until the commit,
+     * so a concurrent merge never checks against a version that is about to change.
+     */
+    @Override
+    public void mergeAll(@NotNull Collection<Record> records) throws IOException {
+        List<byte[]> keys = new ArrayList<>(records.size());
+        for (Record record : records) {
+            keys.add(record.getKey());
+        }
+        List<Lock> held = locks.lockAll(keys);
+        try (Session session = session()) {
+            Connection connection = session.connection;
+            PreparedStatement version = session.prepare(VERSION_QUERY);
+            PreparedStatement write = session.prepare(WRITE_QUERY);
+            connection.setAutoCommit(false);
+            try {
+                for (Record record : records) {
+                    Value value = record.getValue();
+                    version.setBytes(1, record.getKey());
+                    Value stored = null;
+                    try (ResultSet resultSet = version.executeQuery()) {
+                        if (resultSet.next()) {
+                            long timestamp = resultSet.getLong(1);
+                            stored = resultSet.getBoolean(2)
+                                    ? Value.removed(timestamp)
+                                    : Value.present(NO_VALUE, timestamp);
+                        }
+                    }
+                    if (stored != null && stored.isNewerThan(value)) {
+                        continue;
+                    }
+                    if (value.isRemoved()) {
+                        bindWrite(write, record.getKey(), NO_VALUE, true, value.getTimestamp());
+                    } else {
+                        bindWrite(write, record.getKey(), value.getData(), false, value.getTimestamp());
+                    }
+                    write.executeUpdate();
+                }
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            throw new IOException(e);
+        } finally {
+            for (Lock lock : held) {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void write(byte[] key, byte[] value, boolean deleted, long time) throws IOException {
+        try (Session session = session()) {
+            PreparedStatement statement = session.prepare(WRITE_QUERY);
+            bindWrite(statement, key, value, deleted, time);
             statement.executeUpdate();
         } catch (SQLException e) {
             throw new IOException(e);
         }
     }
 
+    private void bindWrite(
+            PreparedStatement statement,
+            byte[] key,
+            byte[] value,
+            boolean deleted,
+            long time) throws SQLException {
+        ByteBuffer compressed = Compression.compress(ByteBuffer.wrap(value), config.getCompressionThreshold());
+        if (compressed == null) {
+            statement.setBytes(1, value);
+            statement.setNull(2, Types.INTEGER);
+        } else {
+            statement.setBytes(1, Cell.toArray(compressed));
+            statement.setInt(2, value.length);
+        }
+        statement.setBytes(3, key);
+        statement.setBoolean(4, deleted);
+        statement.setLong(5, time);
+    }
+
+    /**
+     * @param column index of the value column, followed by the size before compression
+     * @return value of the current row, decompressed if it is stored compressed
+     */
+    private static byte[] readValue(ResultSet resultSet, int column) throws SQLException, IOException {
+        byte[] stored = resultSet.getBytes(column);
+        int rawSize = resultSet.getInt(column + 1);
+        if (resultSet.wasNull()) {
+            return stored;
+        }
+        return Compression.decompress(stored, rawSize);
+    }
+
     @Override
     public void remove(@NotNull byte[] key) throws IOException {
-        String query = "UPDATE " + TABLE_STORAGE + " set " + COL_VALUE + " = ?, " + COL_TIMESTAMP + " = ?, " + COL_DELETED + " = ? where " + COL_KEY + " = ?";
-        try (PreparedStatement statement = connection.prepareStatement(query)){
-            statement.setBytes(1, new byte[0]);
+        Lock lock = locks.get(key);
+        lock.lock();
+        try (Session session = session()) {
+            PreparedStatement statement = session.prepare(REMOVE_QUERY);
+            statement.setBytes(1, NO_VALUE);
             statement.setLong(2, System.currentTimeMillis());
-            statement.setBoolean(3, true);
-            statement.setBytes(4, key);
-            statement.execute();
+            statement.setBytes(3, key);
+            statement.executeUpdate();
         } catch (SQLException e) {
             throw new IOException(e);
+        } finally {
+            lock.unlock();
         }
     }
 
     @Override
     public long getUpdateTimeMillis(@NotNull byte[] key) throws NoSuchElementException, IOException {
-        String query = "SELECT " + COL_TIMESTAMP + " from " + TABLE_STORAGE + " where " + COL_KEY + " = ?";
-        try (PreparedStatement statement = connection.prepareStatement(query)){
+        try (Session session = session()) {
+            PreparedStatement statement = session.prepare(TIMESTAMP_QUERY);
             statement.setBytes(1, key);
-            ResultSet resultSet = statement.executeQuery();
-            if (resultSet.next()) {
-                return resultSet.getLong(COL_TIMESTAMP);
-            } else {
-                throw new NoSuchElementException();
+            try (ResultSet resultSet = statement.executeQuery()) {
+                if (resultSet.next()) {
+                    return resultSet.getLong(1);
+                } else {
+                    throw new NoSuchElementException();
+                }
+            }
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @NotNull
+    @Override
+    public Value getValue(@NotNull byte[] key) throws NoSuchElementException, IOException {
+        try (Session session = session()) {
+            PreparedStatement statement = session.prepare(VALUE_QUERY);
+            statement.setBytes(1, key);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                if (!resultSet.next()) {
+                    throw new NoSuchElementException();
+                }
+                long timestamp = resultSet.getLong(1);
+                if (resultSet.getBoolean(2)) {
+                    return Value.removed(timestamp);
+                }
+                return Value.present(readValue(resultSet, 3), timestamp);
+            }
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Reads the table page by page in key order, so no connection is held between pages.
+     */
+    @NotNull
+    @Override
+    public Iterator<Record> range(@NotNull byte[] from, @Nullable byte[] to) throws IOException {
+        return new Iterator<Record>() {
+            private List<Record> page = readPage(from, true, to);
+            private int position;
+
+            @Override
+            public boolean hasNext() {
+                if (position == page.size() && page.size() == SCAN_PAGE_SIZE) {
+                    try {
+                        page = readPage(page.get(position - 1).getKey(), false, to);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    position = 0;
+                }
+                return position < page.size();
+            }
+
+            @Override
+            public Record next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return page.get(position++);
+            }
+        };
+    }
+
+    /**
+     * @param inclusive whether the page may start with {@code from} itself
+     */
+    private List<Record> readPage(byte[] from, boolean inclusive, byte[] to) throws IOException {
+        try (Session session = session()) {
+            PreparedStatement statement = session.prepare(PAGE_QUERIES[(inclusive ? 1 : 0) + (to == null ? 0 : 2)]);
+            statement.setBytes(1, from);
+            if (to != null) {
+                statement.setBytes(2, to);
+            }
+            List<Record> page = new ArrayList<>(SCAN_PAGE_SIZE);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    long timestamp = resultSet.getLong(2);
+                    Value value = resultSet.getBoolean(3)
+                            ? Value.removed(timestamp)
+                            : Value.present(readValue(resultSet, 4), timestamp);
+                    page.add(new Record(resultSet.getBytes(1), value));
+                }
+            }
+            return page;
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public void collectGarbage() throws IOException {
+        Future<?> done = collector.submit(() -> {
+            purgeTombstones();
+            return null;
+        });
+        try {
+            done.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Deletes the tombstone rows older than the grace period. The freed size is estimated
+     * from the keys and the values left in the rows, since H2 doesn't tell it.
+     */
+    private void purgeTombstones() throws IOException {
+        long gcHorizon = System.currentTimeMillis() - config.getGcGraceMillis();
+        try (Session session = session()) {
+            Connection connection = session.connection;
+            PreparedStatement size = session.prepare(EXPIRED_SIZE_QUERY);
+            PreparedStatement delete = session.prepare(PURGE_QUERY);
+            connection.setAutoCommit(false);
+            try {
+                size.setLong(1, gcHorizon);
+                long rowBytes;
+                try (ResultSet resultSet = size.executeQuery()) {
+                    rowBytes = resultSet.next() ? resultSet.getLong(1) : 0;
+                }
+                delete.setLong(1, gcHorizon);
+                int purged = delete.executeUpdate();
+                connection.commit();
+                purgedTombstones.addAndGet(purged);
+                reclaimedBytes.addAndGet(rowBytes + (long) purged * ROW_OVERHEAD);
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
             }
         } catch (SQLException e) {
             throw new IOException(e);
         }
     }
 
+    @Override
+    public long getPurgedTombstones() {
+        return purgedTombstones.get();
+    }
+
+    @Override
+    public long getReclaimedBytes() {
+        return reclaimedBytes.get();
+    }
+
+    @NotNull
+    @Override
+    public File getDirectory() {
+        return directory;
+    }
+
     @Override
     public void close() throws IOException {
+        collector.shutdown();
         try {
-            connection.createStatement().execute("SHUTDOWN");
-            connection.close();
+            if (!collector.awaitTermination(1, TimeUnit.MINUTES)) {
+                throw new IOException("Can't wait for tombstone purge");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+        try (Session session = session()) {
+            session.connection.createStatement().execute("SHUTDOWN");
         } catch (SQLException e){
             e.printStackTrace();
             String state = e.getSQLState();
             if (!state.equals(CONNECTION_WITH_DB_CLOSED) && !state.equals(DATABASE_NOT_FOUND)){
                 throw new IOException(e);
             }
+        } finally {
+            closeSessions();
+        }
+    }
+
+    /**
+     * Connection with the statements prepared on it. Closing a session returns it for reuse,
+     * unless its connection has been closed.
+     */
+    private class Session implements AutoCloseable {
+        private final Connection connection;
+        private final Map<String, PreparedStatement> statements = new HashMap<>();
+        // Prepared for this borrowing only, when the statements are not reused
+        private final List<PreparedStatement> borrowed = new ArrayList<>();
+
+        Session(Connection connection) {
+            this.connection = connection;
+        }
+
+        PreparedStatement prepare(String query) throws SQLException {
+            if (!REUSE_STATEMENTS) {
+                PreparedStatement statement = connection.prepareStatement(query);
+                borrowed.add(statement);
+                return statement;
+            }
+            PreparedStatement statement = statements.get(query);
+            if (statement == null) {
+                statement = connection.prepareStatement(query);
+                statements.put(query, statement);
+            }
+            return statement;
+        }
+
+        @Override
+        public void close() {
+            for (PreparedStatement statement : borrowed) {
+                try {
+                    statement.close();
+                } catch (SQLException e) {
+                    e.printStackTrace();
+                }
+            }
+            borrowed.clear();
+            boolean open;
+            try {
+                open = !connection.isClosed();
+            } catch (SQLException e) {
+                open = false;
+            }
+            if (!open || !sessions.offer(this)) {
+                discard();
+            }
+        }
+
+        void discard() {
+            connections.decrementAndGet();
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
         }
     }
 }
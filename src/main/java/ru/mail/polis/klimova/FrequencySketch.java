@@ -0,0 +1,77 @@
+package ru.mail.polis.klimova;
+
+/**
+ * Approximate access counts for TinyLFU admission: a count-min sketch of 4-bit counters,
+ * four per key. Once there have been ten times as many increments as the sketch has words,
+ * all the counters are halved, so the counts follow the recent popularity of the keys.
+ * <p>
+ * Updates are not synchronized. A racing update may be lost, which only makes a count a little lower:
+ * a counter is checked and incremented in the same copy of its word, so it never overflows into the next one.
+ */
+public class FrequencySketch {
+    private static final int MAX_COUNT = 15;
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final int[] SEEDS = {0x97cb3127, 0x0a8b4db7, 0x7b8a2e3f, 0x61c88647};
+
+    private final long[] table;
+    private final int sampleSize;
+    private int additions;
+
+    /**
+     * @param expectedKeys number of keys the counts are mostly needed for
+     */
+    public FrequencySketch(int expectedKeys) {
+        table = new long[Integer.highestOneBit(Math.max(64, expectedKeys - 1)) << 1];
+        sampleSize = 10 * table.length;
+    }
+
+    public int frequency(int hash) {
+        int frequency = MAX_COUNT;
+        for (int i = 0; i < SEEDS.length; i++) {
+            int h = rehash(hash, i);
+            frequency = Math.min(frequency, (int) (table[index(h)] >>> offset(h)) & MAX_COUNT);
+        }
+        return frequency;
+    }
+
+    public void increment(int hash) {
+        boolean added = false;
+        for (int i = 0; i < SEEDS.length; i++) {
+            int h = rehash(hash, i);
+            int index = index(h);
+            int offset = offset(h);
+            // The word is read once, so a racing update can only be lost rather than carry past the counter
+            long word = table[index];
+            if (((word >>> offset) & MAX_COUNT) < MAX_COUNT) {
+                table[index] = word + (1L << offset);
+                added = true;
+            }
+        }
+        if (added && ++additions >= sampleSize) {
+            reset();
+        }
+    }
+
+    private void reset() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        additions = 0;
+    }
+
+    private static int rehash(int hash, int row) {
+        int h = (hash ^ SEEDS[row]) * 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+
+    private int index(int h) {
+        return h & (table.length - 1);
+    }
+
+    /**
+     * @return bit offset of one of the 16 counters of a word, picked by the high bits of the hash
+     */
+    private static int offset(int h) {
+        return (h >>> 28) << 2;
+    }
+}
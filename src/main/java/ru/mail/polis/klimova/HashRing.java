@@ -0,0 +1,72 @@
+package ru.mail.polis.klimova;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import org.jetbrains.annotations.NotNull;
+
+import one.nio.util.Hash;
+
+/**
+ * Consistent hash ring: every node is placed on the ring at several virtual points,
+ * and a key is owned by the distinct nodes met walking clockwise from its hash.
+ * <p>
+ * Owners of a key for a smaller replica count are always a prefix of the owners for a larger one.
+ */
+public class HashRing {
+    public static final int DEFAULT_VIRTUAL_NODES = 256;
+
+    private final NavigableMap<Integer, String> ring = new TreeMap<>();
+    private final int nodes;
+
+    public HashRing(@NotNull Collection<String> hosts) {
+        this(hosts, DEFAULT_VIRTUAL_NODES);
+    }
+
+    public HashRing(@NotNull Collection<String> hosts, int virtualNodes) {
+        // Sort so that every node builds exactly the same ring even on hash collisions
+        List<String> sorted = new ArrayList<>(hosts);
+        sorted.sort(null);
+        for (String host : sorted) {
+            for (int i = 0; i < virtualNodes; i++) {
+                byte[] point = (host + '#' + i).getBytes(StandardCharsets.UTF_8);
+                ring.putIfAbsent(Hash.murmur3(point, 0, point.length), host);
+            }
+        }
+        nodes = sorted.size();
+    }
+
+    /**
+     * @return up to {@code count} distinct nodes responsible for the key, the primary owner first
+     */
+    @NotNull
+    public List<String> owners(@NotNull byte[] key, int count) {
+        int limit = Math.min(count, nodes);
+        List<String> owners = new ArrayList<>(limit);
+        if (limit <= 0) {
+            return owners;
+        }
+        int hash = Hash.murmur3(key, 0, key.length);
+        collect(ring.tailMap(hash, true), owners, limit);
+        if (owners.size() < limit) {
+            collect(ring.headMap(hash, false), owners, limit);
+        }
+        return owners;
+    }
+
+    private static void collect(Map<Integer, String> points, List<String> owners, int limit) {
+        for (String host : points.values()) {
+            if (!owners.contains(host)) {
+                owners.add(host);
+                if (owners.size() == limit) {
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,363 @@
+package ru.mail.polis.klimova;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import ru.mail.polis.Record;
+import ru.mail.polis.Value;
+
+/**
+ * Durable queue of writes a replica has missed, append-only files per target host.
+ * <p>
+ * Hints are stored in {@link RecordCodec} form, each framed as {@code [size][CRC32][record]} like in
+ * the {@link WriteAheadLog}. When the store is opened a file is cut at its first frame which is torn
+ * by a crash or doesn't match its checksum. The writers adding hints at the same time share one fsync.
+ * <p>
+ * A replay moves the hints added so far aside and streams them to the host, new hints go to a fresh file
+ * meanwhile. The order of delivery doesn't matter, as a replica keeps the newest value of a key.
+ * <p>
+ * The hints of all the hosts take {@code maxBytes} at most. Over that new hints are dropped,
+ * and the replica is left to be repaired by reads and anti-entropy.
+ */
+public class HintStore implements Closeable {
+    private static final String SUFFIX = ".hints";
+    private static final String REPLAY_SUFFIX = ".replay";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int FRAME_HEADER_SIZE = 2 * Integer.BYTES;
+    private static final byte[] EMPTY = new byte[0];
+
+    private final Path dir;
+    private final long maxBytes;
+    private final AtomicLong bytes = new AtomicLong();
+    private final LongAdder dropped = new LongAdder();
+    private final ConcurrentMap<String, Log> logs = new ConcurrentHashMap<>();
+    private volatile boolean closed;
+
+    public HintStore(@NotNull Path dir, long maxBytes) throws IOException {
+        this.dir = Files.createDirectories(dir);
+        this.maxBytes = maxBytes;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(this.dir)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(TEMP_SUFFIX)) {
+                    Files.delete(file);
+                } else if (name.endsWith(SUFFIX) || name.endsWith(SUFFIX + REPLAY_SUFFIX)) {
+                    bytes.addAndGet(trimTornTail(file));
+                }
+            }
+        }
+    }
+
+    /**
+     * @return length of the whole frames the file now holds
+     */
+    private static long trimTornTail(Path file) throws IOException {
+        long whole;
+        try (Reader in = new Reader(file)) {
+            while (in.next() != null) {
+                // Only the length of the good frames is needed
+            }
+            whole = in.position;
+        }
+        if (whole < Files.size(file)) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                channel.truncate(whole);
+                channel.force(false);
+            }
+        }
+        return whole;
+    }
+
+    /**
+     * Appends the write for the host and returns once it is on disk, or drops it if the store is full.
+     */
+    public void add(@NotNull String host, @NotNull byte[] key, @NotNull Value value) throws IOException {
+        long size = FRAME_HEADER_SIZE + RecordCodec.size(key, value);
+        if (bytes.addAndGet(size) > maxBytes) {
+            bytes.addAndGet(-size);
+            dropped.increment();
+            return;
+        }
+        Log log = log(host);
+        long ticket;
+        synchronized (log) {
+            if (closed) {
+                bytes.addAndGet(-size);
+                throw new IOException("Hint store is closed");
+            }
+            ticket = log.append(key, value);
+        }
+        log.sync(ticket);
+    }
+
+    public boolean hasHints(@NotNull String host) {
+        Log log = log(host);
+        return Files.exists(log.file) || Files.exists(log.replayFile);
+    }
+
+    /**
+     * Hands the hints for the host to {@code delivery}. Delivered hints are removed,
+     * the first failed one and everything after it stay for the next replay.
+     * A corrupted frame ends the replay as the end of the file would.
+     */
+    public void replay(@NotNull String host, @NotNull Delivery delivery) throws IOException {
+        Log log = log(host);
+        synchronized (log.replayLock) {
+            if (!Files.exists(log.replayFile) && !log.rotate()) {
+                return;
+            }
+            long delivered = 0;
+            boolean complete = true;
+            try (Reader in = new Reader(log.replayFile)) {
+                Record hint;
+                while ((hint = in.next()) != null) {
+                    if (!delivery.deliver(hint.getKey(), hint.getValue())) {
+                        complete = false;
+                        break;
+                    }
+                    delivered = in.position;
+                }
+            }
+            if (complete) {
+                long size = Files.size(log.replayFile);
+                Files.delete(log.replayFile);
+                bytes.addAndGet(-size);
+            } else if (delivered > 0) {
+                dropHead(log.replayFile, delivered);
+                bytes.addAndGet(-delivered);
+            }
+        }
+    }
+
+    /**
+     * Rewrites the file without its first {@code length} bytes.
+     */
+    private static void dropHead(Path file, long length) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + TEMP_SUFFIX);
+        try (FileChannel source = FileChannel.open(file, StandardOpenOption.READ);
+             FileChannel target = FileChannel.open(
+                     temp,
+                     StandardOpenOption.CREATE,
+                     StandardOpenOption.TRUNCATE_EXISTING,
+                     StandardOpenOption.WRITE)) {
+            long position = length;
+            long size = source.size();
+            while (position < size) {
+                position += source.transferTo(position, size - position, target);
+            }
+            target.force(false);
+        }
+        Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * @return bytes the hints take on disk
+     */
+    public long sizeInBytes() {
+        return bytes.get();
+    }
+
+    /**
+     * @return hints dropped because the store was full
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    private Log log(String host) {
+        return logs.computeIfAbsent(host, h -> new Log(dir.resolve(h.replaceAll("[^A-Za-z0-9]", "_") + SUFFIX)));
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        for (Log log : logs.values()) {
+            log.closeFile();
+        }
+    }
+
+    public interface Delivery {
+        /**
+         * @return {@code false} if the hint could not be delivered and replay should stop
+         */
+        boolean deliver(@NotNull byte[] key, @NotNull Value value);
+    }
+
+    /**
+     * Reads the frames of a hint file, up to its end or the first torn or corrupted frame.
+     * The sizes are checked against what is left of the file before anything is allocated.
+     */
+    private static final class Reader implements Closeable {
+        private final DataInputStream in;
+        private long left;
+        // Length of the whole frames read so far
+        private long position;
+
+        Reader(Path file) throws IOException {
+            left = Files.size(file);
+            in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), BUFFER_SIZE));
+        }
+
+        /**
+         * @return the next hint or {@code null} where the good frames end
+         */
+        @Nullable
+        Record next() throws IOException {
+            if (left < FRAME_HEADER_SIZE) {
+                return null;
+            }
+            int size = in.readInt();
+            int checksum = in.readInt();
+            left -= FRAME_HEADER_SIZE;
+            if (size < RecordCodec.headSize(EMPTY) || size > left) {
+                return null;
+            }
+            byte[] record = new byte[size];
+            in.readFully(record);
+            left -= size;
+            CRC32 actual = new CRC32();
+            actual.update(record);
+            if ((int) actual.getValue() != checksum) {
+                return null;
+            }
+            List<Record> hints;
+            try {
+                hints = RecordCodec.readAll(record);
+            } catch (IOException e) {
+                return null;
+            }
+            if (hints.size() != 1) {
+                return null;
+            }
+            position += FRAME_HEADER_SIZE + size;
+            return hints.get(0);
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /**
+     * Hints of one host: the file being appended and the one being replayed.
+     * The appends are guarded by the log itself, the syncs by {@code syncLock}, taken first.
+     */
+    private static class Log {
+        private final Path file;
+        private final Path replayFile;
+        private final Object syncLock = new Object();
+        private final Object replayLock = new Object();
+
+        private FileOutputStream stream;
+        private DataOutputStream out;
+        private long appended;
+        private long synced;
+
+        Log(Path file) {
+            this.file = file;
+            this.replayFile = file.resolveSibling(file.getFileName() + REPLAY_SUFFIX);
+        }
+
+        /**
+         * @return ticket to {@link #sync} on
+         */
+        long append(byte[] key, Value value) throws IOException {
+            if (out == null) {
+                stream = new FileOutputStream(file.toFile(), true);
+                out = new DataOutputStream(new BufferedOutputStream(stream, BUFFER_SIZE));
+            }
+            byte[] head = new byte[RecordCodec.headSize(key)];
+            RecordCodec.writeHead(ByteBuffer.wrap(head), key, value);
+            CRC32 checksum = new CRC32();
+            checksum.update(head);
+            if (!value.isRemoved()) {
+                checksum.update(value.getBuffer());
+            }
+            out.writeInt(RecordCodec.size(key, value));
+            out.writeInt((int) checksum.getValue());
+            out.write(head);
+            if (!value.isRemoved()) {
+                Cell.write(out, value.getBuffer());
+            }
+            return ++appended;
+        }
+
+        /**
+         * Returns once the hint with the ticket is on disk. A writer that finds the sync
+         * taken by another one waits for it, and then has often been synced by it too.
+         */
+        void sync(long ticket) throws IOException {
+            synchronized (syncLock) {
+                if (synced >= ticket) {
+                    return;
+                }
+                FileOutputStream syncing;
+                long upTo;
+                synchronized (this) {
+                    out.flush();
+                    syncing = stream;
+                    upTo = appended;
+                }
+                syncing.getFD().sync();
+                synced = upTo;
+            }
+        }
+
+        /**
+         * Moves the hints appended so far to the replay file.
+         *
+         * @return {@code false} if there are none
+         */
+        boolean rotate() throws IOException {
+            synchronized (syncLock) {
+                synchronized (this) {
+                    closeFile();
+                    if (!Files.exists(file)) {
+                        return false;
+                    }
+                    Files.move(file, replayFile, StandardCopyOption.ATOMIC_MOVE);
+                    return true;
+                }
+            }
+        }
+
+        void closeFile() throws IOException {
+            synchronized (syncLock) {
+                synchronized (this) {
+                    if (out == null) {
+                        return;
+                    }
+                    out.flush();
+                    stream.getFD().sync();
+                    out.close();
+                    out = null;
+                    stream = null;
+                    synced = appended;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package ru.mail.polis.klimova;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Choice of the keys a load asks for, as numbers from {@code 0}, like the request distributions of YCSB:
+ * <ul>
+ * <li>{@code uniform} -- every key as often</li>
+ * <li>{@code zipfian} -- a few keys far more often than the rest, the i-th most popular one
+ * about {@code 1 / i} as often as the first</li>
+ * <li>{@code latest} -- writes add new keys, reads ask for the recently added ones the most,
+ * zipfian by the age of the key</li>
+ * </ul>
+ * Keys {@code 0} to {@code keys - 1} are expected to be written before.
+ */
+public abstract class KeyDistribution {
+    protected final long keys;
+
+    KeyDistribution(long keys) {
+        if (keys < 1) {
+            throw new IllegalArgumentException("No keys to choose from");
+        }
+        this.keys = keys;
+    }
+
+    @NotNull
+    public static KeyDistribution of(@NotNull String name, long keys) {
+        switch (name) {
+            case "uniform":
+                return new Uniform(keys);
+            case "zipfian":
+                return new Zipfian(keys);
+            case "latest":
+                return new Latest(keys);
+            default:
+                throw new IllegalArgumentException("Unknown key distribution: " + name);
+        }
+    }
+
+    /**
+     * @return key to read
+     */
+    public abstract long next();
+
+    /**
+     * @return key to write
+     */
+    public long nextWrite() {
+        return next();
+    }
+
+    private static class Uniform extends KeyDistribution {
+        Uniform(long keys) {
+            super(keys);
+        }
+
+        @Override
+        public long next() {
+            return ThreadLocalRandom.current().nextLong(keys);
+        }
+    }
+
+    /**
+     * The generator of Gray et al., "Quickly generating billion-record synthetic databases",
+     * that YCSB uses: key {@code 0} is the most popular one.
+     */
+    private static class Zipfian extends KeyDistribution {
+        private static final double THETA = 0.99;
+
+        private final double zetan;
+        private final double alpha;
+        private final double eta;
+
+        Zipfian(long keys) {
+            super(keys);
+            double zeta2 = zeta(2);
+            zetan = zeta(keys);
+            alpha = 1 / (1 - THETA);
+            eta = (1 - Math.pow(2.0 / keys, 1 - THETA)) / (1 - zeta2 / zetan);
+        }
+
+        private static double zeta(long n) {
+            double sum = 0;
+            for (long i = 1; i <= n; i++) {
+                sum += 1 / Math.pow(i, THETA);
+            }
+            return sum;
+        }
+
+        @Override
+        public long next() {
+            double u = ThreadLocalRandom.current().nextDouble();
+            double uz = u * zetan;
+            if (uz < 1) {
+                return 0;
+            }
+            if (uz < 1 + Math.pow(0.5, THETA)) {
+                return Math.min(1, keys - 1);
+            }
+            return Math.min(keys - 1, (long) (keys * Math.pow(eta * u - eta + 1, alpha)));
+        }
+    }
+
+    /**
+     * Zipfian over the {@code keys} latest keys.
+     */
+    private static class Latest extends KeyDistribution {
+        private final Zipfian age;
+        private final AtomicLong written;
+
+        Latest(long keys) {
+            super(keys);
+            age = new Zipfian(keys);
+            written = new AtomicLong(keys);
+        }
+
+        @Override
+        public long next() {
+            return Math.max(0, written.get() - 1 - age.next());
+        }
+
+        @Override
+        public long nextWrite() {
+            return written.getAndIncrement();
+        }
+    }
+}
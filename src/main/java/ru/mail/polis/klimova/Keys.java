@@ -0,0 +1,123 @@
+package ru.mail.polis.klimova;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Comparator;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Keys are opaque byte arrays ordered as unsigned bytes, the same order H2 keeps {@code VARBINARY} in.
+ * In a URI a key is percent-encoded: every byte but an unreserved character is sent as {@code %XX}.
+ */
+public final class Keys {
+    public static final Comparator<ByteBuffer> COMPARATOR = Keys::compare;
+
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    private Keys() {
+    }
+
+    public static int compare(@NotNull ByteBuffer left, @NotNull ByteBuffer right) {
+        int leftPosition = left.position();
+        int rightPosition = right.position();
+        int length = Math.min(left.remaining(), right.remaining());
+        int i = 0;
+        if (left.order() == ByteOrder.BIG_ENDIAN && right.order() == ByteOrder.BIG_ENDIAN) {
+            // Big-endian words compare as unsigned longs in the same order as their bytes
+            for (; i + Long.BYTES <= length; i += Long.BYTES) {
+                long leftWord = left.getLong(leftPosition + i);
+                long rightWord = right.getLong(rightPosition + i);
+                if (leftWord != rightWord) {
+                    return Long.compareUnsigned(leftWord, rightWord);
+                }
+            }
+        }
+        for (; i < length; i++) {
+            int compare = Integer.compare(left.get(leftPosition + i) & 0xFF, right.get(rightPosition + i) & 0xFF);
+            if (compare != 0) {
+                return compare;
+            }
+        }
+        return Integer.compare(left.remaining(), right.remaining());
+    }
+
+    /**
+     * Decodes a query parameter straight from the raw URI, since a decoded {@code String}
+     * can't hold arbitrary bytes.
+     *
+     * @param name parameter name with the equals sign, like {@code id=}
+     * @return the parameter bytes, or {@code null} if there is no such parameter or it is malformed
+     */
+    @Nullable
+    public static byte[] parameter(@NotNull String uri, @NotNull String name) {
+        int query = uri.indexOf('?');
+        if (query < 0) {
+            return null;
+        }
+        int start = query + 1;
+        while (start > 0 && start < uri.length()) {
+            int end = uri.indexOf('&', start);
+            if (end < 0) {
+                end = uri.length();
+            }
+            if (uri.startsWith(name, start)) {
+                return decode(uri, start + name.length(), end);
+            }
+            start = end + 1;
+        }
+        return null;
+    }
+
+    @Nullable
+    private static byte[] decode(String uri, int from, int to) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(to - from);
+        for (int i = from; i < to; i++) {
+            char c = uri.charAt(i);
+            if (c == '%') {
+                if (i + 2 >= to) {
+                    return null;
+                }
+                int high = Character.digit(uri.charAt(i + 1), 16);
+                int low = Character.digit(uri.charAt(i + 2), 16);
+                if (high < 0 || low < 0) {
+                    return null;
+                }
+                bytes.write(high << 4 | low);
+                i += 2;
+            } else if (c == '+') {
+                bytes.write(' ');
+            } else if (c < 0x80) {
+                bytes.write(c);
+            } else {
+                // Not encoded by the client, take the UTF-8 form
+                byte[] encoded = String.valueOf(c).getBytes(StandardCharsets.UTF_8);
+                bytes.write(encoded, 0, encoded.length);
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Appends the percent-encoded key to a URI.
+     */
+    @NotNull
+    public static StringBuilder appendEncoded(@NotNull StringBuilder uri, @NotNull byte[] key) {
+        for (byte b : key) {
+            if (isUnreserved(b)) {
+                uri.append((char) b);
+            } else {
+                uri.append('%').append(HEX[(b >> 4) & 0xF]).append(HEX[b & 0xF]);
+            }
+        }
+        return uri;
+    }
+
+    private static boolean isUnreserved(byte b) {
+        return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9')
+                || b == '-' || b == '_' || b == '.' || b == '~';
+    }
+}
@@ -0,0 +1,638 @@
+package ru.mail.polis.klimova;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import ru.mail.polis.KVDao;
+import ru.mail.polis.Record;
+import ru.mail.polis.Value;
+
+/**
+ * Log-structured merge tree storage.
+ * <p>
+ * Writes go to an in-memory {@link MemTable} which is flushed to an immutable {@link SSTable}
+ * in background once it grows over the flush threshold. When there are too many tables
+ * they are merged into one, so a read touches a bounded number of files.
+ * <p>
+ * Every write is first made durable in the {@link WriteAheadLog} of its memtable with group commit,
+ * the log is removed once the memtable is flushed and replayed on open otherwise.
+ * <p>
+ * Every compaction merges all the tables, so it drops the tombstones older than the grace period:
+ * there is nothing older left for them to shadow. A table with such tombstones is compacted
+ * on a timer even while there are few tables.
+ * <p>
+ * The merged table gets a fresh generation and is marked compacted, and the tables it replaces
+ * are deleted once it is durable. If a crash leaves some of them behind, they are deleted on open,
+ * as they could bring back the values of purged tombstones.
+ * <p>
+ * Values from the compression threshold up are {@link Compression compressed} as they are written
+ * to a table, the memtable and the log keep them raw. The values read from the tables are cached
+ * decompressed, so a hot one is not decompressed into a fresh buffer on every read.
+ */
+public class LSMDao implements KVDao, TombstoneCollector {
+    private static final int KEY_LOCK_STRIPES = 256;
+    private static final long DECOMPRESSED_CACHE_BYTES = 32 * 1024 * 1024;
+
+    private final Path directory;
+    private final StorageConfig config;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final StripedLock keyLocks = new StripedLock(KEY_LOCK_STRIPES);
+    private final ScheduledExecutorService flusher;
+    private final AtomicLong generation = new AtomicLong();
+    private final AtomicLong purgedTombstones = new AtomicLong();
+    private final AtomicLong reclaimedBytes = new AtomicLong();
+    private final ValueCache decompressed = new ValueCache(DECOMPRESSED_CACHE_BYTES, true);
+    private volatile TableSet tables;
+
+    public LSMDao(File path) throws IOException {
+        this(path, StorageConfig.defaults());
+    }
+
+    public LSMDao(File path, long flushThreshold, int compactionThreshold) throws IOException {
+        this(path, StorageConfig.withThresholds(flushThreshold, compactionThreshold));
+    }
+
+    public LSMDao(File path, StorageConfig config) throws IOException {
+        this.directory = path.toPath();
+        this.config = config;
+
+        List<SSTable> ssTables = new ArrayList<>();
+        List<Path> logs = new ArrayList<>();
+        long lastCompacted = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                if (SSTable.isTemporary(file)) {
+                    Files.delete(file);
+                    continue;
+                }
+                long fileGeneration = parseGeneration(file, SSTable.SUFFIX);
+                if (fileGeneration > 0) {
+                    SSTable ssTable = SSTable.open(file, fileGeneration, decompressed);
+                    ssTables.add(ssTable);
+                    generation.set(Math.max(generation.get(), fileGeneration));
+                    if (ssTable.isCompacted()) {
+                        lastCompacted = Math.max(lastCompacted, fileGeneration);
+                    }
+                }
+                long logGeneration = parseGeneration(file, WriteAheadLog.SUFFIX);
+                if (logGeneration > 0) {
+                    logs.add(file);
+                    generation.set(Math.max(generation.get(), logGeneration));
+                }
+            }
+        }
+        deleteCompactedAway(ssTables, lastCompacted);
+        tables = new TableSet(new MemTable(), Collections.emptyList(), ssTables);
+        recover(logs);
+        tables = new TableSet(new MemTable(createLog()), Collections.emptyList(), tables.ssTables);
+
+        flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "lsm-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long gcInterval = config.getGcIntervalMillis();
+        flusher.scheduleWithFixedDelay(() -> {
+            try {
+                compactIfNeeded();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, gcInterval, gcInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Flushes the writes of the logs left by a crash to tables, the oldest log first.
+     * A new table is started whenever the memtable the writes are collected in gets full.
+     */
+    private void recover(List<Path> logs) throws IOException {
+        if (logs.isEmpty()) {
+            return;
+        }
+        logs.sort(Comparator.comparingLong(file -> parseGeneration(file, WriteAheadLog.SUFFIX)));
+        MemTable[] recovered = {new MemTable()};
+        for (Path log : logs) {
+            try {
+                WriteAheadLog.replay(log, record -> {
+                    ByteBuffer key = ByteBuffer.wrap(record.getKey());
+                    Value value = record.getValue();
+                    recovered[0].put(value.isRemoved()
+                            ? Cell.tombstone(key, value.getTimestamp())
+                            : Cell.value(key, value.getBuffer(), value.getTimestamp()));
+                    if (recovered[0].isFull(config.getFlushThreshold())) {
+                        try {
+                            flush(recovered[0]);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                        recovered[0] = new MemTable();
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+        if (!recovered[0].isEmpty()) {
+            flush(recovered[0]);
+        }
+        for (Path log : logs) {
+            Files.delete(log);
+        }
+    }
+
+    private WriteAheadLog createLog() throws IOException {
+        Path file = directory.resolve(generation.incrementAndGet() + WriteAheadLog.SUFFIX);
+        return new WriteAheadLog(file, config.getSyncIntervalNanos(), config.getMaxBatchBytes());
+    }
+
+    /**
+     * Deletes the tables left by a compaction interrupted after its result was written.
+     */
+    private void deleteCompactedAway(List<SSTable> ssTables, long lastCompacted) throws IOException {
+        Iterator<SSTable> iterator = ssTables.iterator();
+        while (iterator.hasNext()) {
+            SSTable ssTable = iterator.next();
+            if (ssTable.getGeneration() < lastCompacted) {
+                Files.delete(directory.resolve(ssTable.getGeneration() + SSTable.SUFFIX));
+                iterator.remove();
+            }
+        }
+    }
+
+    private static long parseGeneration(Path file, String suffix) {
+        String name = file.getFileName().toString();
+        if (!name.endsWith(suffix)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(name.substring(0, name.length() - suffix.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    @NotNull
+    @Override
+    public byte[] get(@NotNull byte[] key) throws NoSuchElementException, IOException {
+        Cell cell = find(ByteBuffer.wrap(key));
+        if (cell == null || cell.isTombstone()) {
+            throw new NoSuchElementException();
+        }
+        return Cell.toArray(cell.getValue());
+    }
+
+    @Override
+    public long getUpdateTimeMillis(@NotNull byte[] key) throws NoSuchElementException, IOException {
+        Cell cell = find(ByteBuffer.wrap(key));
+        if (cell == null) {
+            throw new NoSuchElementException();
+        }
+        return cell.getTimestamp();
+    }
+
+    @NotNull
+    @Override
+    public Value getValue(@NotNull byte[] key) throws NoSuchElementException, IOException {
+        Cell cell = find(ByteBuffer.wrap(key));
+        if (cell == null) {
+            throw new NoSuchElementException();
+        }
+        return toValue(cell);
+    }
+
+    /**
+     * Scans a snapshot of the tables. A table compacted away meanwhile is still read to the end of the scan:
+     * its file is deleted, but the mapping of it stays valid while the scan holds the table.
+     */
+    @NotNull
+    @Override
+    public Iterator<Record> range(@NotNull byte[] from, @Nullable byte[] to) throws IOException {
+        ByteBuffer start = ByteBuffer.wrap(from);
+        ByteBuffer end = to == null ? null : ByteBuffer.wrap(to);
+        TableSet current = tables;
+        List<Iterator<Cell>> iterators = new ArrayList<>();
+        iterators.add(current.memTable.iterator(start));
+        for (MemTable memTable : current.flushing) {
+            iterators.add(memTable.iterator(start));
+        }
+        for (SSTable ssTable : current.ssTables) {
+            iterators.add(ssTable.iterator(start));
+        }
+        MergingIterator cells = new MergingIterator(iterators);
+        return new Iterator<Record>() {
+            private Cell next = advance();
+
+            private Cell advance() {
+                if (!cells.hasNext()) {
+                    return null;
+                }
+                Cell cell = cells.next();
+                return end == null || Keys.compare(cell.getKey(), end) < 0 ? cell : null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public Record next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                Cell cell = next;
+                next = advance();
+                return new Record(Cell.toArray(cell.getKey()), toValue(cell));
+            }
+        };
+    }
+
+    @Override
+    public void upsert(@NotNull byte[] key, @NotNull byte[] value) throws IOException {
+        Lock keyLock = keyLocks.get(key);
+        keyLock.lock();
+        try {
+            put(Cell.value(ByteBuffer.wrap(key), ByteBuffer.wrap(value), System.currentTimeMillis()));
+        } finally {
+            keyLock.unlock();
+        }
+        flushIfNeeded();
+    }
+
+    @Override
+    public void remove(@NotNull byte[] key) throws IOException {
+        Lock keyLock = keyLocks.get(key);
+        keyLock.lock();
+        try {
+            put(Cell.tombstone(ByteBuffer.wrap(key), System.currentTimeMillis()));
+        } finally {
+            keyLock.unlock();
+        }
+        flushIfNeeded();
+    }
+
+    @Override
+    public void merge(@NotNull byte[] key, @NotNull Value value) throws IOException {
+        merge(key, value, null);
+        flushIfNeeded();
+    }
+
+    /**
+     * Waits for one log sync per memtable the batch got to rather than for one per record.
+     */
+    @Override
+    public void mergeAll(@NotNull Collection<Record> records) throws IOException {
+        Map<WriteAheadLog, Long> pendingSyncs = new HashMap<>();
+        for (Record record : records) {
+            merge(record.getKey(), record.getValue(), pendingSyncs);
+            flushIfNeeded();
+        }
+        for (Map.Entry<WriteAheadLog, Long> pending : pendingSyncs.entrySet()) {
+            pending.getKey().sync(pending.getValue());
+        }
+    }
+
+    private void merge(byte[] key, Value value, Map<WriteAheadLog, Long> pendingSyncs) throws IOException {
+        // Writers of the same key are serialized, so nothing sneaks in between the check and the put
+        Lock keyLock = keyLocks.get(key);
+        keyLock.lock();
+        try {
+            Cell current = find(ByteBuffer.wrap(key));
+            if (current != null && toValue(current).isNewerThan(value)) {
+                return;
+            }
+            if (value.isRemoved()) {
+                put(Cell.tombstone(ByteBuffer.wrap(key), value.getTimestamp()), pendingSyncs);
+            } else {
+                put(Cell.value(ByteBuffer.wrap(key), value.getBuffer(), value.getTimestamp()), pendingSyncs);
+            }
+        } finally {
+            keyLock.unlock();
+        }
+    }
+
+    private void put(Cell cell) throws IOException {
+        put(cell, null);
+    }
+
+    /**
+     * Logs the cell and puts it to the current memtable at once, so the write gets to the log
+     * of the memtable it is in, and then waits for the log sync outside of the lock.
+     *
+     * @param pendingSyncs where to leave the log ticket to sync later instead of waiting, or {@code null}
+     */
+    private void put(Cell cell, @Nullable Map<WriteAheadLog, Long> pendingSyncs) throws IOException {
+        // Refused before it is logged, or the flush of its memtable would fail over and over
+        if (!cell.isTombstone() && cell.getValue().remaining() > SSTable.MAX_VALUE_SIZE) {
+            throw new IOException("Value of " + cell.getValue().remaining() + " bytes is too large");
+        }
+        WriteAheadLog log;
+        long ticket;
+        lock.readLock().lock();
+        try {
+            MemTable memTable = tables.memTable;
+            log = memTable.getLog();
+            ticket = log.append(cell.getKey(), toValue(cell));
+            memTable.put(cell);
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (pendingSyncs == null) {
+            log.sync(ticket);
+        } else {
+            pendingSyncs.put(log, ticket);
+        }
+    }
+
+    private static Value toValue(Cell cell) {
+        if (cell.isTombstone()) {
+            return Value.removed(cell.getTimestamp());
+        }
+        return Value.present(cell.getValue(), cell.getTimestamp());
+    }
+
+    /**
+     * Looks the key up in a snapshot of the tables, one compacted away meanwhile is still read from its mapping.
+     */
+    @Nullable
+    private Cell find(ByteBuffer key) throws IOException {
+        return tables.find(key);
+    }
+
+    private void flushIfNeeded() throws IOException {
+        long flushThreshold = config.getFlushThreshold();
+        if (!tables.memTable.isFull(flushThreshold)) {
+            return;
+        }
+        MemTable flushing;
+        lock.writeLock().lock();
+        try {
+            flushing = tables.memTable;
+            if (!flushing.isFull(flushThreshold)) {
+                return;
+            }
+            tables = tables.startFlush(new MemTable(createLog()));
+        } finally {
+            lock.writeLock().unlock();
+        }
+        flusher.execute(() -> {
+            try {
+                flush(flushing);
+                compactIfNeeded();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+    }
+
+    private void flush(MemTable memTable) throws IOException {
+        long tableGeneration = generation.incrementAndGet();
+        Path file = directory.resolve(tableGeneration + SSTable.SUFFIX);
+        SSTable.write(file, memTable.iterator(), config.getCompressionThreshold(), false);
+        SSTable ssTable = SSTable.open(file, tableGeneration, decompressed);
+        lock.writeLock().lock();
+        try {
+            tables = tables.finishFlush(memTable, ssTable);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (memTable.getLog() != null) {
+            memTable.getLog().delete();
+        }
+    }
+
+    private void compactIfNeeded() throws IOException {
+        List<SSTable> sources = tables.ssTables;
+        long gcHorizon = System.currentTimeMillis() - config.getGcGraceMillis();
+        if (sources.size() > config.getCompactionThreshold() || hasExpiredTombstones(sources, gcHorizon)) {
+            compact(sources, gcHorizon);
+        }
+    }
+
+    private static boolean hasExpiredTombstones(List<SSTable> ssTables, long gcHorizon) {
+        for (SSTable ssTable : ssTables) {
+            if (ssTable.getOldestTombstone() <= gcHorizon) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Merges all the tables into one, dropping the tombstones written at {@code gcHorizon} or before.
+     */
+    private void compact(List<SSTable> sources, long gcHorizon) throws IOException {
+        List<Iterator<Cell>> iterators = new ArrayList<>(sources.size());
+        for (SSTable ssTable : sources) {
+            iterators.add(ssTable.iterator());
+        }
+        // Flushes run on this thread too, so the tables flushed later still get newer generations
+        long tableGeneration = generation.incrementAndGet();
+        Path file = directory.resolve(tableGeneration + SSTable.SUFFIX);
+        PurgingIterator cells = new PurgingIterator(new MergingIterator(iterators), gcHorizon);
+        SSTable.write(file, cells, config.getCompressionThreshold(), true);
+        SSTable compacted = SSTable.open(file, tableGeneration, decompressed);
+
+        lock.writeLock().lock();
+        try {
+            tables = tables.replace(sources, compacted);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        long freed = -compacted.sizeInBytes();
+        for (SSTable ssTable : sources) {
+            freed += ssTable.sizeInBytes();
+            Files.delete(directory.resolve(ssTable.getGeneration() + SSTable.SUFFIX));
+        }
+        purgedTombstones.addAndGet(cells.purged);
+        reclaimedBytes.addAndGet(Math.max(0, freed));
+    }
+
+    /**
+     * Compacts the tables now if they hold expired tombstones. Tombstones still in memory are left
+     * until they are flushed.
+     */
+    @Override
+    public void collectGarbage() throws IOException {
+        Future<?> done = flusher.submit(() -> {
+            compactIfNeeded();
+            return null;
+        });
+        try {
+            done.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+    }
+
+    @Override
+    public long getPurgedTombstones() {
+        return purgedTombstones.get();
+    }
+
+    @Override
+    public long getReclaimedBytes() {
+        return reclaimedBytes.get();
+    }
+
+    @NotNull
+    @Override
+    public File getDirectory() {
+        return directory.toFile();
+    }
+
+    @Override
+    public void close() throws IOException {
+        flusher.shutdown();
+        try {
+            if (!flusher.awaitTermination(1, TimeUnit.MINUTES)) {
+                throw new IOException("Can't wait for background flush");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+
+        List<MemTable> pending = new ArrayList<>(tables.flushing);
+        Collections.reverse(pending);
+        pending.add(tables.memTable);
+        for (MemTable memTable : pending) {
+            if (!memTable.isEmpty()) {
+                flush(memTable);
+            } else if (memTable.getLog() != null) {
+                memTable.getLog().delete();
+            }
+        }
+    }
+
+    /**
+     * Skips the tombstones written at the horizon or before and counts them.
+     */
+    private static class PurgingIterator implements Iterator<Cell> {
+        private final Iterator<Cell> cells;
+        private final long gcHorizon;
+        private Cell next;
+        long purged;
+
+        PurgingIterator(Iterator<Cell> cells, long gcHorizon) {
+            this.cells = cells;
+            this.gcHorizon = gcHorizon;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null && cells.hasNext()) {
+                Cell cell = cells.next();
+                if (cell.isTombstone() && cell.getTimestamp() <= gcHorizon) {
+                    purged++;
+                } else {
+                    next = cell;
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public Cell next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Cell cell = next;
+            next = null;
+            return cell;
+        }
+    }
+
+    /**
+     * Immutable snapshot of the tables, every list is ordered from the newest to the oldest.
+     */
+    private static class TableSet {
+        private static final Comparator<SSTable> NEWEST_FIRST =
+                Comparator.comparingLong(SSTable::getGeneration).reversed();
+
+        final MemTable memTable;
+        final List<MemTable> flushing;
+        final List<SSTable> ssTables;
+
+        TableSet(MemTable memTable, List<MemTable> flushing, List<SSTable> ssTables) {
+            this.memTable = memTable;
+            this.flushing = Collections.unmodifiableList(flushing);
+            List<SSTable> sorted = new ArrayList<>(ssTables);
+            sorted.sort(NEWEST_FIRST);
+            this.ssTables = Collections.unmodifiableList(sorted);
+        }
+
+        TableSet startFlush(MemTable newMemTable) {
+            List<MemTable> newFlushing = new ArrayList<>(flushing.size() + 1);
+            newFlushing.add(memTable);
+            newFlushing.addAll(flushing);
+            return new TableSet(newMemTable, newFlushing, ssTables);
+        }
+
+        TableSet finishFlush(MemTable flushed, SSTable ssTable) {
+            List<MemTable> newFlushing = new ArrayList<>(flushing);
+            newFlushing.remove(flushed);
+            List<SSTable> newTables = new ArrayList<>(ssTables);
+            newTables.add(ssTable);
+            return new TableSet(memTable == flushed ? new MemTable() : memTable, newFlushing, newTables);
+        }
+
+        TableSet replace(List<SSTable> sources, SSTable compacted) {
+            List<SSTable> newTables = new ArrayList<>(ssTables);
+            newTables.removeAll(sources);
+            newTables.add(compacted);
+            return new TableSet(memTable, flushing, newTables);
+        }
+
+        @Nullable
+        Cell find(ByteBuffer key) throws IOException {
+            Cell cell = memTable.get(key);
+            if (cell != null) {
+                return cell;
+            }
+            for (MemTable table : flushing) {
+                cell = table.get(key);
+                if (cell != null) {
+                    return cell;
+                }
+            }
+            long keyHash = BloomFilter.hash(key);
+            for (SSTable table : ssTables) {
+                cell = table.get(key, keyHash);
+                if (cell != null) {
+                    return cell;
+                }
+            }
+            return null;
+        }
+    }
+}
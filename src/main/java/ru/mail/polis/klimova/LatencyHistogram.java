@@ -0,0 +1,168 @@
+package ru.mail.polis.klimova;
+
+import java.io.PrintStream;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Lock-free histogram of non-negative values with a relative error under 1%, in the manner of
+ * HdrHistogram: the values below 256 have a bucket each, and every larger power of two
+ * is split into 128 buckets of the same width.
+ * <p>
+ * Recording is a few atomic increments, so it can be done on the request path by any thread.
+ * The values read while others are recorded may be a few recordings apart from each other.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // Larger values are counted as this one, over 19 hours in microseconds
+    private static final long MAX_VALUE = (1L << 36) - 1;
+    private static final int TICKS_PER_HALF_DISTANCE = 5;
+
+    private final AtomicLongArray counts = new AtomicLongArray(index(MAX_VALUE) + 1);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final DoubleAdder sumOfSquares = new DoubleAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    public void record(long value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Negative value " + value);
+        }
+        long trimmed = Math.min(value, MAX_VALUE);
+        counts.incrementAndGet(index(trimmed));
+        count.increment();
+        sum.add(trimmed);
+        sumOfSquares.add((double) trimmed * trimmed);
+        max.accumulate(trimmed);
+    }
+
+    /**
+     * Index of the bucket: the value itself below {@code 2 * SUB_BUCKETS}, otherwise
+     * the top {@code SUB_BUCKET_BITS + 1} bits of the value after the shift that leaves that many.
+     */
+    private static int index(long value) {
+        int shift = Math.max(0, 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS - 1);
+        return (shift << SUB_BUCKET_BITS) + (int) (value >>> shift);
+    }
+
+    private static long lowestValue(int index) {
+        int shift = Math.max(0, (index >>> SUB_BUCKET_BITS) - 1);
+        return (long) (index - (shift << SUB_BUCKET_BITS)) << shift;
+    }
+
+    private static long highestValue(int index) {
+        int shift = Math.max(0, (index >>> SUB_BUCKET_BITS) - 1);
+        return lowestValue(index) + (1L << shift) - 1;
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getSum() {
+        return sum.sum();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long n = getCount();
+        return n == 0 ? 0 : (double) getSum() / n;
+    }
+
+    public double getStdDeviation() {
+        long n = getCount();
+        if (n == 0) {
+            return 0;
+        }
+        double mean = getMean();
+        return Math.sqrt(Math.max(0, sumOfSquares.sum() / n - mean * mean));
+    }
+
+    /**
+     * @param percentile from 0 to 100
+     * @return the largest value that is within the bucket of the given percentile of the recorded values,
+     * {@code 0} if nothing is recorded
+     */
+    public long getValueAtPercentile(double percentile) {
+        long total = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            total += counts.get(i);
+        }
+        long rank = Math.max(1, (long) Math.ceil(Math.min(percentile, 100) / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(highestValue(i), getMax());
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Adds the values recorded by the other histogram to this one.
+     */
+    public void add(@NotNull LatencyHistogram other) {
+        for (int i = 0; i < counts.length(); i++) {
+            long n = other.counts.get(i);
+            if (n != 0) {
+                counts.addAndGet(i, n);
+            }
+        }
+        count.add(other.count.sum());
+        sum.add(other.sum.sum());
+        sumOfSquares.add(other.sumOfSquares.sum());
+        max.accumulate(other.max.get());
+    }
+
+    /**
+     * Prints the percentiles in the layout of HdrHistogram {@code outputPercentileDistribution},
+     * which its plotting tools read: the percentile steps get twice as fine every time
+     * the distance to 100% halves.
+     *
+     * @param scale the values are divided by, e.g. {@code 1000.0} to print microseconds as milliseconds
+     */
+    public void printPercentiles(@NotNull PrintStream out, double scale) {
+        long total = getCount();
+        out.println("       Value     Percentile TotalCount 1/(1-Percentile)");
+        out.println();
+        if (total == 0) {
+            return;
+        }
+        double percentile = 0;
+        while (true) {
+            long value = getValueAtPercentile(percentile);
+            long below = countAtOrBelow(value);
+            if (below == total) {
+                out.println(String.format(Locale.ROOT, "%12.3f %2.12f %10d", value / scale, 1.0, below));
+                break;
+            }
+            out.println(String.format(Locale.ROOT, "%12.3f %2.12f %10d %14.2f",
+                    value / scale, percentile / 100, below, 100 / (100 - percentile)));
+            long halvings = (long) (Math.log(100 / (100 - percentile)) / Math.log(2));
+            percentile += 100.0 / ((long) TICKS_PER_HALF_DISTANCE << (halvings + 1));
+        }
+        out.println(String.format(Locale.ROOT, "#[Mean    = %12.3f, StdDeviation   = %12.3f]",
+                getMean() / scale, getStdDeviation() / scale));
+        out.println(String.format(Locale.ROOT, "#[Max     = %12.3f, Total count    = %12d]", getMax() / scale, total));
+        out.println(String.format(Locale.ROOT, "#[Buckets = %12d, SubBuckets     = %12d]",
+                counts.length() / SUB_BUCKETS, SUB_BUCKETS));
+    }
+
+    private long countAtOrBelow(long value) {
+        long below = 0;
+        for (int i = 0; i < counts.length() && lowestValue(i) <= value; i++) {
+            below += counts.get(i);
+        }
+        return below;
+    }
+}
@@ -0,0 +1,94 @@
+package ru.mail.polis.klimova;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Sorted write buffer. Keys and values are copied off-heap into an {@link OffHeapArena},
+ * only the skip list index over them lives on the Java heap.
+ * <p>
+ * The index takes about {@link #ENTRY_OVERHEAD} bytes of heap a cell, more than a small value does
+ * off-heap. So the size of the table counts it too, and a table of many small cells is full
+ * once its index takes its share of the heap, whatever the flush threshold.
+ * <p>
+ * The table may have a {@link WriteAheadLog} its writes are recorded to until it is flushed.
+ */
+public class MemTable {
+    /**
+     * Heap taken by a cell in the index: the skip list node with its share of the index levels,
+     * the cell and the two buffers pointing to the arena
+     */
+    public static final int ENTRY_OVERHEAD = 200;
+    private static final long MAX_HEAP_BYTES = Runtime.getRuntime().maxMemory() / 8;
+
+    private final ConcurrentNavigableMap<ByteBuffer, Cell> cells = new ConcurrentSkipListMap<>(Keys.COMPARATOR);
+    private final OffHeapArena arena = new OffHeapArena();
+    private final AtomicLong heapBytes = new AtomicLong();
+    private final WriteAheadLog log;
+
+    public MemTable() {
+        this(null);
+    }
+
+    public MemTable(@Nullable WriteAheadLog log) {
+        this.log = log;
+    }
+
+    @Nullable
+    public WriteAheadLog getLog() {
+        return log;
+    }
+
+    public void put(@NotNull Cell cell) {
+        ByteBuffer key = arena.copyOf(cell.getKey());
+        Cell copy = cell.isTombstone()
+                ? Cell.tombstone(key, cell.getTimestamp())
+                : Cell.value(key, arena.copyOf(cell.getValue()), cell.getTimestamp());
+        cells.put(key, copy);
+        heapBytes.addAndGet(ENTRY_OVERHEAD);
+    }
+
+    @Nullable
+    public Cell get(@NotNull ByteBuffer key) {
+        return cells.get(key);
+    }
+
+    @NotNull
+    public Iterator<Cell> iterator() {
+        return cells.values().iterator();
+    }
+
+    /**
+     * @return cells with keys from {@code from} inclusive
+     */
+    @NotNull
+    public Iterator<Cell> iterator(@NotNull ByteBuffer from) {
+        return cells.tailMap(from).values().iterator();
+    }
+
+    /**
+     * @return off-heap memory taken by the table and the estimate of its index on the heap,
+     * overwritten cells included
+     */
+    public long sizeInBytes() {
+        return arena.allocated() + heapBytes.get();
+    }
+
+    /**
+     * @return whether the table is to be flushed: it has reached the threshold,
+     * or its index takes its share of the heap
+     */
+    public boolean isFull(long flushThreshold) {
+        return sizeInBytes() >= flushThreshold || heapBytes.get() >= MAX_HEAP_BYTES;
+    }
+
+    public boolean isEmpty() {
+        return cells.isEmpty();
+    }
+}
@@ -0,0 +1,83 @@
+package ru.mail.polis.klimova;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Merges sorted cell iterators into one sorted iterator without duplicate keys.
+ * <p>
+ * Sources must be ordered from the newest to the oldest: for equal keys the cell
+ * of the newest source wins and the rest are skipped.
+ */
+public class MergingIterator implements Iterator<Cell> {
+    private final PriorityQueue<Source> queue;
+    private Cell next;
+
+    public MergingIterator(@NotNull List<Iterator<Cell>> sources) {
+        queue = new PriorityQueue<>(Math.max(1, sources.size()));
+        for (int i = 0; i < sources.size(); i++) {
+            Iterator<Cell> iterator = sources.get(i);
+            if (iterator.hasNext()) {
+                queue.add(new Source(i, iterator));
+            }
+        }
+        advance();
+    }
+
+    private void advance() {
+        next = null;
+        Source source = queue.poll();
+        if (source == null) {
+            return;
+        }
+        next = source.current;
+        source.moveNext(queue);
+        while (!queue.isEmpty() && queue.peek().current.getKey().equals(next.getKey())) {
+            queue.poll().moveNext(queue);
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        return next != null;
+    }
+
+    @Override
+    public Cell next() {
+        if (next == null) {
+            throw new NoSuchElementException();
+        }
+        Cell result = next;
+        advance();
+        return result;
+    }
+
+    private static class Source implements Comparable<Source> {
+        private final int priority;
+        private final Iterator<Cell> iterator;
+        private Cell current;
+
+        Source(int priority, Iterator<Cell> iterator) {
+            this.priority = priority;
+            this.iterator = iterator;
+            this.current = iterator.next();
+        }
+
+        void moveNext(PriorityQueue<Source> queue) {
+            if (iterator.hasNext()) {
+                current = iterator.next();
+                queue.add(this);
+            }
+        }
+
+        @Override
+        public int compareTo(@NotNull Source other) {
+            int compare = Cell.COMPARATOR.compare(current, other.current);
+            return compare != 0 ? compare : Integer.compare(priority, other.priority);
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package ru.mail.polis.klimova;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.jetbrains.annotations.NotNull;
+
+import one.nio.mem.DirectMemory;
+import one.nio.util.Hash;
+
+import ru.mail.polis.Record;
+
+/**
+ * Hash tree over the records of a node. Keys are spread over {@link #LEAVES} buckets by hash,
+ * a leaf is an order independent digest of the records in its bucket and an inner node
+ * covers its two children, so two nodes holding the same records have the same root,
+ * and differing buckets are found by descending from the root into the differing children only.
+ * <p>
+ * Nodes are kept as a heap: the root is at {@code 1}, children of {@code i} at {@code 2i} and {@code 2i + 1},
+ * and the leaf of bucket {@code b} at {@code LEAVES + b}.
+ */
+public class MerkleTree {
+    public static final int DEPTH = 10;
+    public static final int LEAVES = 1 << DEPTH;
+    private static final long TOMBSTONE_SALT = 0x9E3779B97F4A7C15L;
+
+    private final long[] nodes = new long[2 * LEAVES];
+    private boolean sealed;
+
+    public static int bucket(@NotNull byte[] key) {
+        return Hash.xxhash(key, 0, key.length) & (LEAVES - 1);
+    }
+
+    public void add(@NotNull Record record) {
+        if (sealed) {
+            throw new IllegalStateException("Tree is sealed");
+        }
+        nodes[LEAVES + bucket(record.getKey())] ^= digest(record);
+    }
+
+    /**
+     * Computes the inner nodes, no records can be added after that.
+     */
+    @NotNull
+    public MerkleTree seal() {
+        for (int i = LEAVES - 1; i > 0; i--) {
+            nodes[i] = Hash.twang_mix(nodes[2 * i] * 31 + nodes[2 * i + 1]);
+        }
+        sealed = true;
+        return this;
+    }
+
+    public long getRoot() {
+        return nodes[1];
+    }
+
+    /**
+     * @param index heap index of the node, from {@code 1} to {@code 2 * LEAVES - 1}
+     */
+    public long getNode(int index) {
+        return nodes[index];
+    }
+
+    @NotNull
+    public long[] getLeaves() {
+        return Arrays.copyOfRange(nodes, LEAVES, 2 * LEAVES);
+    }
+
+    private static long digest(Record record) {
+        byte[] key = record.getKey();
+        long hash = ((long) Hash.murmur3(key, 0, key.length) << 32) ^ Hash.xxhash(key, 0, key.length);
+        hash = Hash.twang_mix(hash ^ record.getValue().getTimestamp());
+        if (record.getValue().isRemoved()) {
+            return Hash.twang_mix(hash ^ TOMBSTONE_SALT);
+        }
+        ByteBuffer data = record.getValue().getBuffer();
+        return Hash.twang_mix(hash ^ murmur3(data) ^ data.remaining());
+    }
+
+    /**
+     * Same hash as of the bytes copied to an array, read in place from a heap or a direct buffer.
+     */
+    private static int murmur3(ByteBuffer data) {
+        if (data.hasArray()) {
+            return Hash.murmur3(data.array(), data.arrayOffset() + data.position(), data.remaining());
+        }
+        if (data.isDirect()) {
+            return Hash.murmur3(null, DirectMemory.getAddress(data) + data.position(), data.remaining());
+        }
+        byte[] copy = Cell.toArray(data);
+        return Hash.murmur3(copy, 0, copy.length);
+    }
+}
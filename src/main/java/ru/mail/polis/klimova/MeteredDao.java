@@ -0,0 +1,210 @@
+package ru.mail.polis.klimova;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import ru.mail.polis.KVDao;
+import ru.mail.polis.Record;
+import ru.mail.polis.Value;
+
+/**
+ * Storage in front of another one that times every operation and counts the failed ones
+ * in {@link Metrics}, along with the tombstone and {@link ValueCache} statistics of the storage
+ * if it keeps them. A missing key is not a failure.
+ */
+public class MeteredDao implements KVDao, TombstoneCollector {
+    private static final String SECONDS = "kv_dao_seconds";
+    private static final String ERRORS = "kv_dao_errors_total";
+
+    private final KVDao dao;
+    private final Operation get;
+    private final Operation getValue;
+    private final Operation getUpdateTime;
+    private final Operation upsert;
+    private final Operation remove;
+    private final Operation merge;
+    private final Operation mergeAll;
+    private final Operation range;
+
+    public MeteredDao(@NotNull KVDao dao, @NotNull Metrics metrics) {
+        this.dao = dao;
+        get = new Operation(metrics, "get");
+        getValue = new Operation(metrics, "get_value");
+        getUpdateTime = new Operation(metrics, "get_update_time");
+        upsert = new Operation(metrics, "upsert");
+        remove = new Operation(metrics, "remove");
+        merge = new Operation(metrics, "merge");
+        mergeAll = new Operation(metrics, "merge_all");
+        range = new Operation(metrics, "range");
+
+        if (dao instanceof TombstoneCollector) {
+            TombstoneCollector collector = (TombstoneCollector) dao;
+            metrics.counter("kv_purged_tombstones_total", "Tombstones purged since the storage was opened",
+                    collector::getPurgedTombstones);
+            metrics.counter("kv_reclaimed_bytes_total", "Bytes freed by compactions since the storage was opened",
+                    collector::getReclaimedBytes);
+        }
+        if (dao instanceof CachingDao) {
+            ValueCache cache = ((CachingDao) dao).getCache();
+            metrics.counter("kv_cache_hits_total", "Reads served by the value cache", cache::getHits);
+            metrics.counter("kv_cache_misses_total", "Reads that went past the value cache", cache::getMisses);
+            metrics.counter("kv_cache_evictions_total", "Values evicted from the value cache", cache::getEvictions);
+            metrics.gauge("kv_cache_bytes", "Bytes held by the value cache", cache::sizeInBytes);
+        }
+    }
+
+    @NotNull
+    @Override
+    public byte[] get(@NotNull byte[] key) throws NoSuchElementException, IOException {
+        long start = System.nanoTime();
+        try {
+            return dao.get(key);
+        } catch (IOException e) {
+            get.errors.increment();
+            throw e;
+        } finally {
+            get.timer.recordSince(start);
+        }
+    }
+
+    @NotNull
+    @Override
+    public Value getValue(@NotNull byte[] key) throws NoSuchElementException, IOException {
+        long start = System.nanoTime();
+        try {
+            return dao.getValue(key);
+        } catch (IOException e) {
+            getValue.errors.increment();
+            throw e;
+        } finally {
+            getValue.timer.recordSince(start);
+        }
+    }
+
+    @Override
+    public long getUpdateTimeMillis(@NotNull byte[] key) throws NoSuchElementException, IOException {
+        long start = System.nanoTime();
+        try {
+            return dao.getUpdateTimeMillis(key);
+        } catch (IOException e) {
+            getUpdateTime.errors.increment();
+            throw e;
+        } finally {
+            getUpdateTime.timer.recordSince(start);
+        }
+    }
+
+    @Override
+    public void upsert(@NotNull byte[] key, @NotNull byte[] value) throws IOException {
+        long start = System.nanoTime();
+        try {
+            dao.upsert(key, value);
+        } catch (IOException e) {
+            upsert.errors.increment();
+            throw e;
+        } finally {
+            upsert.timer.recordSince(start);
+        }
+    }
+
+    @Override
+    public void remove(@NotNull byte[] key) throws IOException {
+        long start = System.nanoTime();
+        try {
+            dao.remove(key);
+        } catch (IOException e) {
+            remove.errors.increment();
+            throw e;
+        } finally {
+            remove.timer.recordSince(start);
+        }
+    }
+
+    @Override
+    public void merge(@NotNull byte[] key, @NotNull Value value) throws IOException {
+        long start = System.nanoTime();
+        try {
+            dao.merge(key, value);
+        } catch (IOException e) {
+            merge.errors.increment();
+            throw e;
+        } finally {
+            merge.timer.recordSince(start);
+        }
+    }
+
+    @Override
+    public void mergeAll(@NotNull Collection<Record> records) throws IOException {
+        long start = System.nanoTime();
+        try {
+            dao.mergeAll(records);
+        } catch (IOException e) {
+            mergeAll.errors.increment();
+            throw e;
+        } finally {
+            mergeAll.timer.recordSince(start);
+        }
+    }
+
+    /**
+     * Times opening the iterator, not reading it.
+     */
+    @NotNull
+    @Override
+    public Iterator<Record> range(@NotNull byte[] from, @Nullable byte[] to) throws IOException {
+        long start = System.nanoTime();
+        try {
+            return dao.range(from, to);
+        } catch (IOException e) {
+            range.errors.increment();
+            throw e;
+        } finally {
+            range.timer.recordSince(start);
+        }
+    }
+
+    @Nullable
+    @Override
+    public File getDirectory() {
+        return dao.getDirectory();
+    }
+
+    @Override
+    public void collectGarbage() throws IOException {
+        if (dao instanceof TombstoneCollector) {
+            ((TombstoneCollector) dao).collectGarbage();
+        }
+    }
+
+    @Override
+    public long getPurgedTombstones() {
+        return dao instanceof TombstoneCollector ? ((TombstoneCollector) dao).getPurgedTombstones() : 0;
+    }
+
+    @Override
+    public long getReclaimedBytes() {
+        return dao instanceof TombstoneCollector ? ((TombstoneCollector) dao).getReclaimedBytes() : 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        dao.close();
+    }
+
+    private static class Operation {
+        private final Metrics.Timer timer;
+        private final LongAdder errors;
+
+        Operation(Metrics metrics, String name) {
+            timer = metrics.timer(SECONDS, "Latency of the storage operations", "operation", name);
+            errors = metrics.counter(ERRORS, "Storage operations failed with an I/O error", "operation", name);
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package ru.mail.polis.klimova;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Metrics of a node in the Prometheus text format: latency summaries, counters and values
+ * read from the components when the metrics are asked for.
+ * <p>
+ * A metric with labels is looked up by its label values, so the callers on a hot path
+ * keep the {@link Timer} or the counter they get instead of asking for it every time.
+ */
+public class Metrics {
+    private static final String SUMMARY = "summary";
+    private static final String COUNTER = "counter";
+    private static final String GAUGE = "gauge";
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final Map<String, Family> families = new ConcurrentSkipListMap<>();
+
+    /**
+     * @param labels names and values of the labels in turn
+     */
+    @NotNull
+    public Timer timer(@NotNull String name, @NotNull String help, @NotNull String... labels) {
+        return (Timer) family(name, help, SUMMARY).series.computeIfAbsent(labels(labels), l -> new Timer());
+    }
+
+    /**
+     * @param labels names and values of the labels in turn
+     */
+    @NotNull
+    public LongAdder counter(@NotNull String name, @NotNull String help, @NotNull String... labels) {
+        return (LongAdder) family(name, help, COUNTER).series.computeIfAbsent(labels(labels), l -> new LongAdder());
+    }
+
+    /**
+     * Counter kept by a component itself.
+     */
+    public void counter(@NotNull String name, @NotNull String help, @NotNull LongSupplier value) {
+        family(name, help, COUNTER).series.put("", value);
+    }
+
+    public void gauge(@NotNull String name, @NotNull String help, @NotNull LongSupplier value) {
+        family(name, help, GAUGE).series.put("", value);
+    }
+
+    private Family family(String name, String help, String type) {
+        Family family = families.computeIfAbsent(name, n -> new Family(help, type));
+        if (!family.type.equals(type)) {
+            throw new IllegalArgumentException(name + " is a " + family.type + ", not a " + type);
+        }
+        return family;
+    }
+
+    private static String labels(String[] labels) {
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("Labels are name and value pairs");
+        }
+        StringBuilder result = new StringBuilder();
+        for (int i = 0; i < labels.length; i += 2) {
+            if (i > 0) {
+                result.append(',');
+            }
+            result.append(labels[i]).append("=\"");
+            String value = labels[i + 1];
+            for (int j = 0; j < value.length(); j++) {
+                char c = value.charAt(j);
+                if (c == '\\' || c == '"') {
+                    result.append('\\').append(c);
+                } else if (c == '\n') {
+                    result.append("\\n");
+                } else {
+                    result.append(c);
+                }
+            }
+            result.append('"');
+        }
+        return result.toString();
+    }
+
+    /**
+     * @return all the metrics in the Prometheus text exposition format
+     */
+    @NotNull
+    public String format() {
+        StringBuilder out = new StringBuilder();
+        for (Map.Entry<String, Family> entry : families.entrySet()) {
+            String name = entry.getKey();
+            Family family = entry.getValue();
+            out.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+            out.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+            for (Map.Entry<String, Object> series : family.series.entrySet()) {
+                String labels = series.getKey();
+                Object metric = series.getValue();
+                if (metric instanceof Timer) {
+                    ((Timer) metric).format(out, name, labels);
+                } else if (metric instanceof LongAdder) {
+                    sample(out, name, labels, ((LongAdder) metric).sum());
+                } else {
+                    sample(out, name, labels, ((LongSupplier) metric).getAsLong());
+                }
+            }
+        }
+        return out.toString();
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, Object value) {
+        out.append(name);
+        if (!labels.isEmpty()) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ').append(value).append('\n');
+    }
+
+    private static class Family {
+        private final String help;
+        private final String type;
+        // Label values of a series to its metric
+        private final Map<String, Object> series = new ConcurrentSkipListMap<>();
+
+        Family(String help, String type) {
+            this.help = help;
+            this.type = type;
+        }
+    }
+
+    /**
+     * Latency summary in seconds. The count and the sum are since the start, the quantiles
+     * are of the last one to two minutes: the timings go to a histogram that is replaced every minute,
+     * and the quantiles are read from it together with the one it replaced.
+     */
+    public static class Timer {
+        private static final long WINDOW_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sumMicros = new LongAdder();
+        private final AtomicLong rotatedAt = new AtomicLong(System.nanoTime());
+        private volatile LatencyHistogram current = new LatencyHistogram();
+        private volatile LatencyHistogram previous = new LatencyHistogram();
+
+        /**
+         * Records the time since the given {@link System#nanoTime()}.
+         */
+        public void recordSince(long startNanos) {
+            long now = System.nanoTime();
+            rotate(now);
+            long micros = TimeUnit.NANOSECONDS.toMicros(now - startNanos);
+            current.record(micros);
+            count.increment();
+            sumMicros.add(micros);
+        }
+
+        /**
+         * A timing racing with the rotation may land in the histogram being replaced,
+         * it is still read until the next rotation.
+         */
+        private void rotate(long now) {
+            long rotated = rotatedAt.get();
+            long elapsed = now - rotated;
+            if (elapsed < WINDOW_NANOS || !rotatedAt.compareAndSet(rotated, now)) {
+                return;
+            }
+            previous = elapsed < 2 * WINDOW_NANOS ? current : new LatencyHistogram();
+            current = new LatencyHistogram();
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        @NotNull
+        public LatencyHistogram recent() {
+            rotate(System.nanoTime());
+            LatencyHistogram recent = new LatencyHistogram();
+            recent.add(previous);
+            recent.add(current);
+            return recent;
+        }
+
+        private void format(StringBuilder out, String name, String labels) {
+            LatencyHistogram recent = recent();
+            String prefix = labels.isEmpty() ? "" : labels + ",";
+            for (double quantile : QUANTILES) {
+                double seconds = recent.getCount() == 0
+                        ? Double.NaN
+                        : recent.getValueAtPercentile(quantile * 100) / 1e6;
+                sample(out, name, prefix + "quantile=\"" + quantile + "\"", seconds);
+            }
+            sample(out, name + "_sum", labels, sumMicros.sum() / 1e6);
+            sample(out, name + "_count", labels, count.sum());
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package ru.mail.polis.klimova;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Append-only allocator of direct memory. Small buffers are cut from shared chunks
+ * with a bump pointer, big ones get a chunk of their own.
+ * <p>
+ * Nothing is freed explicitly: a chunk is released by the GC together with the last
+ * buffer cut from it, so readers still holding a buffer of a flushed table stay safe.
+ */
+public class OffHeapArena {
+    public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+
+    private final int chunkSize;
+    private final AtomicLong allocated = new AtomicLong();
+    private ByteBuffer chunk;
+
+    public OffHeapArena() {
+        this(DEFAULT_CHUNK_SIZE);
+    }
+
+    public OffHeapArena(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * @return off-heap copy of the remaining bytes of {@code source}
+     */
+    @NotNull
+    public ByteBuffer copyOf(@NotNull ByteBuffer source) {
+        ByteBuffer target = allocate(source.remaining());
+        target.put(source.duplicate());
+        target.flip();
+        return target;
+    }
+
+    private ByteBuffer allocate(int size) {
+        if (size > chunkSize / 4) {
+            allocated.addAndGet(size);
+            return ByteBuffer.allocateDirect(size);
+        }
+        ByteBuffer target;
+        synchronized (this) {
+            if (chunk == null || chunk.remaining() < size) {
+                if (chunk != null) {
+                    // The tail of the old chunk is wasted, count it as used
+                    allocated.addAndGet(chunk.remaining());
+                }
+                chunk = ByteBuffer.allocateDirect(chunkSize);
+            }
+            target = chunk.slice();
+            chunk.position(chunk.position() + size);
+        }
+        target.limit(size);
+        allocated.addAndGet(size);
+        return target;
+    }
+
+    /**
+     * @return bytes of direct memory taken by the buffers handed out
+     */
+    public long allocated() {
+        return allocated.get();
+    }
+}
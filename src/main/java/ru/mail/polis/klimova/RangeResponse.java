@@ -0,0 +1,28 @@
+package ru.mail.polis.klimova;
+
+import java.util.Iterator;
+
+import org.jetbrains.annotations.NotNull;
+
+import one.nio.http.Response;
+import ru.mail.polis.Record;
+
+/**
+ * {@code 200} response streaming the live records of a range, tombstones are skipped.
+ * {@link StorageSession} sends a record per chunk of chunked transfer encoding in {@link RecordCodec} form,
+ * so keys and values may hold any bytes, and reads the records only as fast as the socket takes them.
+ */
+public class RangeResponse extends Response {
+    private final Iterator<Record> records;
+
+    public RangeResponse(@NotNull Iterator<Record> records) {
+        super(OK);
+        this.records = records;
+        addHeader("Transfer-Encoding: chunked");
+    }
+
+    @NotNull
+    public Iterator<Record> getRecords() {
+        return records;
+    }
+}
@@ -0,0 +1,123 @@
+package ru.mail.polis.klimova;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.jetbrains.annotations.NotNull;
+
+import ru.mail.polis.Record;
+import ru.mail.polis.Value;
+
+/**
+ * Binary form of a record shared by hints and replica streams:
+ * {@code [key size][key][timestamp][value size or -1 for tombstone][value]}.
+ */
+public final class RecordCodec {
+    static final int TOMBSTONE = -1;
+
+    private RecordCodec() {
+    }
+
+    /**
+     * @return length of the record in this form
+     */
+    public static int size(@NotNull byte[] key, @NotNull Value value) {
+        return headSize(key) + (value.isRemoved() ? 0 : value.getBuffer().remaining());
+    }
+
+    public static void write(@NotNull DataOutputStream out, @NotNull byte[] key, @NotNull Value value) throws IOException {
+        out.writeInt(key.length);
+        out.write(key);
+        out.writeLong(value.getTimestamp());
+        if (value.isRemoved()) {
+            out.writeInt(TOMBSTONE);
+        } else {
+            ByteBuffer data = value.getBuffer();
+            out.writeInt(data.remaining());
+            Cell.write(out, data);
+        }
+    }
+
+    /**
+     * @return length of the record in this form without its value
+     */
+    public static int headSize(@NotNull byte[] key) {
+        return Integer.BYTES + key.length + Long.BYTES + Integer.BYTES;
+    }
+
+    /**
+     * Puts the record up to its value at the position of {@code out}, the value is to follow.
+     */
+    public static void writeHead(@NotNull ByteBuffer out, @NotNull byte[] key, @NotNull Value value) {
+        out.putInt(key.length);
+        out.put(key);
+        out.putLong(value.getTimestamp());
+        out.putInt(value.isRemoved() ? TOMBSTONE : value.getBuffer().remaining());
+    }
+
+    @NotNull
+    public static byte[] writeAll(@NotNull Collection<Record> records) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (Record record : records) {
+            write(out, record.getKey(), record.getValue());
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @throws EOFException if the last record is incomplete
+     */
+    @NotNull
+    public static List<Record> readAll(@NotNull byte[] bytes) throws IOException {
+        return readAll(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * Reads the records from the remaining bytes of {@code bytes}, leaving its position as it is.
+     *
+     * @throws EOFException if the last record is incomplete
+     */
+    @NotNull
+    public static List<Record> readAll(@NotNull ByteBuffer bytes) throws IOException {
+        ByteBuffer in = bytes.duplicate();
+        List<Record> records = new ArrayList<>();
+        while (in.hasRemaining()) {
+            byte[] key = readBytes(in, readInt(in));
+            if (in.remaining() < Long.BYTES) {
+                throw new EOFException();
+            }
+            long timestamp = in.getLong();
+            int valueSize = readInt(in);
+            records.add(new Record(key, valueSize == TOMBSTONE
+                    ? Value.removed(timestamp)
+                    : Value.present(readBytes(in, valueSize), timestamp)));
+        }
+        return records;
+    }
+
+    private static int readInt(ByteBuffer in) throws EOFException {
+        if (in.remaining() < Integer.BYTES) {
+            throw new EOFException();
+        }
+        return in.getInt();
+    }
+
+    private static byte[] readBytes(ByteBuffer in, int size) throws IOException {
+        if (size < 0) {
+            throw new IOException("Bad size " + size);
+        }
+        if (size > in.remaining()) {
+            throw new EOFException();
+        }
+        byte[] bytes = new byte[size];
+        in.get(bytes);
+        return bytes;
+    }
+}
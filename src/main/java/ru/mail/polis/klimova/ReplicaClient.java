@@ -0,0 +1,166 @@
+package ru.mail.polis.klimova;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import one.nio.http.HttpClient;
+import one.nio.http.HttpException;
+import one.nio.http.Request;
+import one.nio.http.Response;
+import one.nio.net.ConnectionString;
+import one.nio.net.Socket;
+import one.nio.pool.PoolException;
+import one.nio.util.Utf8;
+
+/**
+ * Client of the other nodes that moves a body larger than {@link StorageSession#HEAP_BODY_LIMIT}
+ * between the socket and a direct buffer, so a large value never has to be on the heap whole
+ * on its way between replicas. Such a body is received as a {@link BufferResponse}.
+ * <p>
+ * The nodes always answer with {@code Content-Length}, chunked responses are not supported.
+ * <p>
+ * A request is sent again over a fresh connection only if not a byte of it has been written,
+ * as a node may have applied a request whose response got lost. A pooled connection the node
+ * has closed meanwhile is noticed before the request is written to it, given the one-nio native
+ * library: {@link Sockets#isClosedByPeer Java sockets} can't tell, so such a request just fails.
+ */
+public class ReplicaClient extends HttpClient {
+    private static final long serialVersionUID = 1L;
+    private static final int BUFFER_SIZE = 8000;
+
+    public ReplicaClient(ConnectionString conn) {
+        super(conn);
+    }
+
+    public Response put(@NotNull String uri, @NotNull ByteBuffer body, String... headers)
+            throws InterruptedException, PoolException, IOException, HttpException {
+        Request request = createRequest(Request.METHOD_PUT, uri, headers);
+        request.addHeader("Content-Length: " + body.remaining());
+        return invoke(request, body);
+    }
+
+    @Override
+    public Response invoke(Request request) throws InterruptedException, PoolException, IOException, HttpException {
+        return invoke(request, null);
+    }
+
+    private Response invoke(Request request, @Nullable ByteBuffer body)
+            throws InterruptedException, PoolException, IOException, HttpException {
+        byte[] head = request.toBytes();
+        Socket socket = borrowObject();
+        boolean keepAlive = false;
+        try {
+            if (Sockets.isClosedByPeer(socket)) {
+                destroyObject(socket);
+                socket = createObject();
+            }
+            int headWritten;
+            try {
+                headWritten = socket.write(head, 0, head.length, 0);
+            } catch (SocketException e) {
+                // Nothing has been written, so the request can't have reached the node
+                destroyObject(socket);
+                socket = createObject();
+                headWritten = socket.write(head, 0, head.length, 0);
+            }
+            send(socket, head, headWritten, body);
+            Response response = new ResponseReader(socket).readResponse(request.getMethod());
+            keepAlive = !"close".equalsIgnoreCase(response.getHeader("Connection: "));
+            return response;
+        } finally {
+            if (keepAlive) {
+                returnObject(socket);
+            } else {
+                invalidateObject(socket);
+            }
+        }
+    }
+
+    private static void send(Socket socket, byte[] head, int headWritten, @Nullable ByteBuffer body) throws IOException {
+        socket.writeFully(head, headWritten, head.length - headWritten);
+        if (body == null) {
+            return;
+        }
+        ByteBuffer data = body.duplicate();
+        while (data.hasRemaining()) {
+            Sockets.write(socket, data);
+        }
+    }
+
+    private static class ResponseReader {
+        private final Socket socket;
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+        private int length;
+        private int position;
+
+        ResponseReader(Socket socket) throws IOException {
+            this.socket = socket;
+            length = socket.read(buffer, 0, buffer.length);
+        }
+
+        Response readResponse(int method) throws IOException, HttpException {
+            String status = readLine();
+            if (status.length() <= 9) {
+                throw new HttpException("Invalid response header: " + status);
+            }
+            Response head = new Response(status.substring(9));
+            for (String header = readLine(); !header.isEmpty(); header = readLine()) {
+                head.addHeader(header);
+            }
+            if (method == Request.METHOD_HEAD || head.getStatus() == 204) {
+                return head;
+            }
+            String contentLength = head.getHeader("Content-Length: ");
+            if (contentLength == null) {
+                throw new HttpException("Content-Length unspecified");
+            }
+            int size = Integer.parseInt(contentLength);
+            if (size <= StorageSession.HEAP_BODY_LIMIT) {
+                byte[] body = new byte[size];
+                int buffered = Math.min(size, length - position);
+                System.arraycopy(buffer, position, body, 0, buffered);
+                if (buffered < size) {
+                    socket.readFully(body, buffered, size - buffered);
+                }
+                head.setBody(body);
+                return head;
+            }
+
+            ByteBuffer body = ByteBuffer.allocateDirect(size);
+            body.put(buffer, position, Math.min(size, length - position));
+            while (body.hasRemaining()) {
+                if (Sockets.read(socket, body) < 0) {
+                    throw new EOFException("Response body is cut short");
+                }
+            }
+            body.flip();
+            Response response = new BufferResponse(head.getHeaders()[0], body);
+            for (int i = 1; i < head.getHeaderCount(); i++) {
+                if (!head.getHeaders()[i].regionMatches(true, 0, "Content-Length: ", 0, 16)) {
+                    response.addHeader(head.getHeaders()[i]);
+                }
+            }
+            return response;
+        }
+
+        private String readLine() throws IOException, HttpException {
+            int lineStart = position;
+            int i = position;
+            do {
+                if (i == length) {
+                    if (i >= buffer.length) {
+                        throw new HttpException("Line too long");
+                    }
+                    length += socket.read(buffer, i, buffer.length - i);
+                }
+            } while (buffer[i++] != '\n');
+            position = i;
+            return Utf8.read(buffer, lineStart, i - lineStart - 2);
+        }
+    }
+}
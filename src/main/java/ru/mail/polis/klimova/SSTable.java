@@ -0,0 +1,403 @@
+package ru.mail.polis.klimova;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import ru.mail.polis.Value;
+
+/**
+ * Immutable sorted file of cells.
+ * <p>
+ * Layout: {@code [cell]* [offset of every cell as long]* [bloom filter word as long]*
+ * [oldest tombstone timestamp as long] [tombstone count as int]
+ * [bloom filter word count as int] [bloom filter hash count as int] [cell count as int]
+ * [flags as int] [format version as int] [magic as int]},
+ * where a cell is {@code [key size][key][timestamp][value size or -1 for tombstone][value]}.
+ * A value {@link Compression compressed} with LZ4 has the {@code 1 << 30} bit set in its size
+ * and is stored as {@code [size before compression][compressed value]}, so a value takes
+ * {@link #MAX_VALUE_SIZE} bytes at most.
+ * <p>
+ * The {@link BloomFilter} is loaded on open, so most lookups of absent keys don't touch the file.
+ * The tombstone statistics tell whether the table holds tombstones to purge without scanning it.
+ * <p>
+ * The file is read through memory mappings, so keys and values are slices of the page cache
+ * rather than heap copies. A file too big for one mapping is mapped in pieces, each starting at a cell,
+ * so no cell spans two of them. The file is mapped on open and closed right away: a mapping stays valid
+ * until it is garbage collected, so whoever still holds a table, or a key or value of it, reads it safely
+ * after the table is compacted away and its file is deleted.
+ * Compressed values read by lookups and scans are kept decompressed in a {@link ValueCache}
+ * shared by the tables, a compaction reads past it.
+ */
+public class SSTable {
+    public static final String SUFFIX = ".db";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final int TOMBSTONE = -1;
+    private static final int COMPRESSED = 1 << 30;
+    /**
+     * Largest value a table holds, a larger size would have the compression bit set
+     */
+    public static final int MAX_VALUE_SIZE = COMPRESSED - 1;
+    private static final long MAX_PIECE_SIZE = Integer.MAX_VALUE;
+    private static final int MAGIC = 0x4B565354;
+    private static final int VERSION = 1;
+    private static final int FOOTER_SIZE = Long.BYTES + 7 * Integer.BYTES;
+    private static final int COMPACTED_FLAG = 1;
+
+    private final long generation;
+    @Nullable
+    private final ValueCache decompressed;
+    // Offsets in the file the mapped pieces of the cells start at
+    private final long[] pieceStarts;
+    private final ByteBuffer[] pieces;
+    private final long[] offsets;
+    private final BloomFilter bloomFilter;
+    private final long oldestTombstone;
+    private final int tombstones;
+    private final boolean compacted;
+    private final long sizeInBytes;
+
+    private SSTable(
+            long generation,
+            @Nullable ValueCache decompressed,
+            FileChannel channel) throws IOException {
+        this.generation = generation;
+        this.decompressed = decompressed;
+        sizeInBytes = channel.size();
+        if (sizeInBytes < FOOTER_SIZE || map(channel, sizeInBytes - Integer.BYTES, Integer.BYTES).getInt() != MAGIC) {
+            throw new IOException("Not a table of generation " + generation);
+        }
+        long position = sizeInBytes - FOOTER_SIZE;
+        ByteBuffer footer = map(channel, position, FOOTER_SIZE);
+        oldestTombstone = footer.getLong();
+        tombstones = footer.getInt();
+        int bloomWords = footer.getInt();
+        int hashCount = footer.getInt();
+        int count = footer.getInt();
+        compacted = (footer.getInt() & COMPACTED_FLAG) != 0;
+        int version = footer.getInt();
+        if (version != VERSION) {
+            throw new IOException("Table of generation " + generation + " has unknown format " + version);
+        }
+
+        long[] bloomBits = new long[bloomWords];
+        position -= (long) bloomWords * Long.BYTES;
+        map(channel, position, (long) bloomWords * Long.BYTES).asLongBuffer().get(bloomBits);
+        bloomFilter = new BloomFilter(bloomBits, hashCount);
+
+        offsets = new long[count];
+        position -= (long) count * Long.BYTES;
+        map(channel, position, (long) count * Long.BYTES).asLongBuffer().get(offsets);
+
+        pieceStarts = pieceStarts(offsets, position);
+        pieces = new ByteBuffer[pieceStarts.length];
+        for (int i = 0; i < pieces.length; i++) {
+            long end = i + 1 < pieces.length ? pieceStarts[i + 1] : position;
+            pieces[i] = map(channel, pieceStarts[i], end - pieceStarts[i]);
+        }
+    }
+
+    /**
+     * @param cellsEnd offset the last cell ends at
+     * @return offsets of the cells to start the pieces at, so every piece fits in a mapping
+     */
+    private static long[] pieceStarts(long[] offsets, long cellsEnd) {
+        if (cellsEnd <= MAX_PIECE_SIZE) {
+            return new long[]{0};
+        }
+        long[] starts = new long[]{0};
+        for (int i = 0; i < offsets.length; i++) {
+            long cellEnd = i + 1 < offsets.length ? offsets[i + 1] : cellsEnd;
+            if (cellEnd - starts[starts.length - 1] > MAX_PIECE_SIZE) {
+                starts = Arrays.copyOf(starts, starts.length + 1);
+                starts[starts.length - 1] = offsets[i];
+            }
+        }
+        return starts;
+    }
+
+    private static ByteBuffer map(FileChannel channel, long offset, long size) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_ONLY, offset, size);
+    }
+
+    /**
+     * @param decompressed cache of the decompressed values keyed by the generation and the offset,
+     *                     {@code null} to decompress on every read
+     */
+    @NotNull
+    public static SSTable open(
+            @NotNull Path path,
+            long generation,
+            @Nullable ValueCache decompressed) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return new SSTable(generation, decompressed, channel);
+        }
+    }
+
+    /**
+     * Writes sorted cells to a temporary file and atomically moves it to {@code path},
+     * the move is made durable too.
+     *
+     * @param compressionThreshold size of the smallest value to compress, {@code 0} to keep all values raw
+     * @param compacted whether the table replaces all the tables with older generations
+     */
+    public static void write(
+            @NotNull Path path,
+            @NotNull Iterator<Cell> cells,
+            int compressionThreshold,
+            boolean compacted) throws IOException {
+        Path temp = path.resolveSibling(path.getFileName() + TEMP_SUFFIX);
+        long[] offsets = new long[1024];
+        long[] keyHashes = new long[1024];
+        int count = 0;
+        int tombstones = 0;
+        long oldestTombstone = Long.MAX_VALUE;
+        long position = 0;
+        try (FileOutputStream file = new FileOutputStream(temp.toFile());
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file))) {
+            while (cells.hasNext()) {
+                Cell cell = cells.next();
+                if (count == offsets.length) {
+                    offsets = Arrays.copyOf(offsets, count * 2);
+                    keyHashes = Arrays.copyOf(keyHashes, count * 2);
+                }
+                keyHashes[count] = BloomFilter.hash(cell.getKey());
+                offsets[count++] = position;
+                position += writeBuffer(out, cell.getKey());
+                out.writeLong(cell.getTimestamp());
+                position += Long.BYTES;
+                if (cell.isTombstone()) {
+                    out.writeInt(TOMBSTONE);
+                    position += Integer.BYTES;
+                    tombstones++;
+                    oldestTombstone = Math.min(oldestTombstone, cell.getTimestamp());
+                } else {
+                    position += writeValue(out, cell.getValue(), compressionThreshold);
+                }
+            }
+            for (int i = 0; i < count; i++) {
+                out.writeLong(offsets[i]);
+            }
+            BloomFilter bloomFilter = BloomFilter.create(keyHashes, count);
+            for (long word : bloomFilter.getBits()) {
+                out.writeLong(word);
+            }
+            out.writeLong(oldestTombstone);
+            out.writeInt(tombstones);
+            out.writeInt(bloomFilter.getBits().length);
+            out.writeInt(bloomFilter.getHashCount());
+            out.writeInt(count);
+            out.writeInt(compacted ? COMPACTED_FLAG : 0);
+            out.writeInt(VERSION);
+            out.writeInt(MAGIC);
+            out.flush();
+            file.getFD().sync();
+        }
+        Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        try (FileChannel directory = FileChannel.open(path.getParent(), StandardOpenOption.READ)) {
+            directory.force(true);
+        }
+    }
+
+    public static boolean isTemporary(@NotNull Path path) {
+        return path.getFileName().toString().endsWith(TEMP_SUFFIX);
+    }
+
+    private static int writeValue(DataOutputStream out, ByteBuffer value, int compressionThreshold) throws IOException {
+        if (value.remaining() > MAX_VALUE_SIZE) {
+            throw new IOException("Value of " + value.remaining() + " bytes is too large for a table");
+        }
+        ByteBuffer compressed = Compression.compress(value, compressionThreshold);
+        if (compressed == null) {
+            return writeBuffer(out, value);
+        }
+        out.writeInt(COMPRESSED | compressed.remaining());
+        out.writeInt(value.remaining());
+        Cell.write(out, compressed);
+        return 2 * Integer.BYTES + compressed.remaining();
+    }
+
+    private static int writeBuffer(DataOutputStream out, ByteBuffer buffer) throws IOException {
+        int size = buffer.remaining();
+        out.writeInt(size);
+        Cell.write(out, buffer);
+        return Integer.BYTES + size;
+    }
+
+    public long getGeneration() {
+        return generation;
+    }
+
+    public int size() {
+        return offsets.length;
+    }
+
+    public long sizeInBytes() {
+        return sizeInBytes;
+    }
+
+    /**
+     * @return whether the table replaces all the tables with older generations
+     */
+    public boolean isCompacted() {
+        return compacted;
+    }
+
+    public int getTombstones() {
+        return tombstones;
+    }
+
+    /**
+     * @return timestamp of the oldest tombstone, {@link Long#MAX_VALUE} if there are none
+     */
+    public long getOldestTombstone() {
+        return oldestTombstone;
+    }
+
+    @Nullable
+    public Cell get(@NotNull ByteBuffer key) throws IOException {
+        return get(key, BloomFilter.hash(key));
+    }
+
+    /**
+     * @param keyHash {@link BloomFilter#hash} of the key, to hash it once for all the tables
+     */
+    @Nullable
+    public Cell get(@NotNull ByteBuffer key, long keyHash) throws IOException {
+        if (!bloomFilter.mightContain(keyHash)) {
+            return null;
+        }
+        int left = 0;
+        int right = offsets.length - 1;
+        while (left <= right) {
+            int middle = (left + right) >>> 1;
+            int compare = Keys.compare(keyAt(middle), key);
+            if (compare < 0) {
+                left = middle + 1;
+            } else if (compare > 0) {
+                right = middle - 1;
+            } else {
+                return cellAt(middle, true);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return all the cells, with the compressed values decompressed past the cache
+     */
+    @NotNull
+    public Iterator<Cell> iterator() {
+        return iterator(0, false);
+    }
+
+    /**
+     * @return cells with keys from {@code from} inclusive
+     */
+    @NotNull
+    public Iterator<Cell> iterator(@NotNull ByteBuffer from) throws IOException {
+        int left = 0;
+        int right = offsets.length;
+        while (left < right) {
+            int middle = (left + right) >>> 1;
+            if (Keys.compare(keyAt(middle), from) < 0) {
+                left = middle + 1;
+            } else {
+                right = middle;
+            }
+        }
+        return iterator(left, true);
+    }
+
+    private Iterator<Cell> iterator(int start, boolean cached) {
+        return new Iterator<Cell>() {
+            private int next = start;
+
+            @Override
+            public boolean hasNext() {
+                return next < offsets.length;
+            }
+
+            @Override
+            public Cell next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                try {
+                    return cellAt(next++, cached);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        };
+    }
+
+    private ByteBuffer keyAt(int index) throws IOException {
+        long offset = offsets[index];
+        int keySize = region(offset, Integer.BYTES).getInt();
+        return region(offset + Integer.BYTES, keySize);
+    }
+
+    private Cell cellAt(int index, boolean cached) throws IOException {
+        long offset = offsets[index];
+        ByteBuffer key = keyAt(index);
+        offset += Integer.BYTES + key.remaining();
+
+        ByteBuffer header = region(offset, Long.BYTES + Integer.BYTES);
+        long timestamp = header.getLong();
+        int valueSize = header.getInt();
+        if (valueSize == TOMBSTONE) {
+            return Cell.tombstone(key, timestamp);
+        }
+        offset += Long.BYTES + Integer.BYTES;
+        if ((valueSize & COMPRESSED) != 0) {
+            int rawSize = region(offset, Integer.BYTES).getInt();
+            ByteBuffer compressed = region(offset + Integer.BYTES, valueSize & ~COMPRESSED);
+            return Cell.value(key, decompress(offset, compressed, rawSize, cached), timestamp);
+        }
+        return Cell.value(key, region(offset, valueSize), timestamp);
+    }
+
+    private ByteBuffer decompress(long offset, ByteBuffer compressed, int rawSize, boolean cached) throws IOException {
+        if (!cached || decompressed == null) {
+            return Compression.decompress(compressed, rawSize);
+        }
+        byte[] cacheKey = ByteBuffer.allocate(2 * Long.BYTES).putLong(generation).putLong(offset).array();
+        Value value = decompressed.get(cacheKey);
+        if (value == null) {
+            value = decompressed.putOwned(cacheKey, Value.present(Compression.decompress(compressed, rawSize), 0));
+        }
+        return value.getBuffer();
+    }
+
+    /**
+     * @return {@code size} bytes of the file starting at {@code offset}, within one cell
+     */
+    private ByteBuffer region(long offset, int size) {
+        int piece = 0;
+        if (pieces.length > 1) {
+            piece = Arrays.binarySearch(pieceStarts, offset);
+            if (piece < 0) {
+                piece = -piece - 2;
+            }
+        }
+        int start = (int) (offset - pieceStarts[piece]);
+        ByteBuffer region = pieces[piece].duplicate();
+        region.limit(start + size).position(start);
+        return region.slice();
+    }
+}
@@ -1,56 +1,229 @@
 package ru.mail.polis.klimova;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
-import java.util.Optional;
 import java.util.Set;
-import java.util.stream.Collectors;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.IntPredicate;
+import java.util.function.Supplier;
 
-import one.nio.http.HttpClient;
 import one.nio.http.HttpServer;
-import one.nio.http.HttpServerConfig;
 import one.nio.http.HttpSession;
 import one.nio.http.Param;
 import one.nio.http.Path;
 import one.nio.http.Request;
 import one.nio.http.Response;
 import one.nio.net.ConnectionString;
-import one.nio.server.AcceptorConfig;
+import one.nio.net.Socket;
 import ru.mail.polis.KVDao;
 import ru.mail.polis.KVService;
+import ru.mail.polis.Record;
+import ru.mail.polis.Value;
 
 public class Service extends HttpServer implements KVService {
+    private static final String PROXY_HEADER = "X-Proxied: ";
+    private static final String PROXY_HEADER_VALUE = PROXY_HEADER + "true";
+    private static final String TIMESTAMP_HEADER = "X-Timestamp: ";
+    private static final long STOP_TIMEOUT_MILLIS = 1000;
+    private static final String REQUEST_SECONDS = "kv_request_seconds";
+    private static final String REQUESTS = "kv_requests_total";
+    private static final String REPLICA_SECONDS = "kv_replica_seconds";
+    private static final String REPLICA_ERRORS = "kv_replica_errors_total";
+    private static final String[] REPLICA_OPERATIONS = {"get", "put", "delete", "batch_get", "batch_put", "range", "proxy"};
+    // How long a node that doesn't reconcile itself keeps the trees the peers descend
+    private static final long IDLE_TREE_MAX_AGE_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    private static final int RANGE_PAGE_RECORDS = 1024;
+    private static final int RANGE_PAGE_BYTES = 1024 * 1024;
+
     private final Set<String> topology;
-    private final List<String> topologyList;
+    private final HashRing ring;
     private KVDao dao;
     private String my;
-    private Map<String, HttpClient> clientsMap;
+    private Map<String, ReplicaClient> clientsMap;
+    private final ExecutorService replicaExecutor;
+    // Client requests, client requests proxied by another node, and requests of the other replicas:
+    // a request only ever waits for the ones of the classes after its own, so the pools can't deadlock
+    private final ExecutorService workers;
+    private final ExecutorService proxiedWorkers;
+    private final ExecutorService internalWorkers;
+    private final AtomicLong lastTimestamp = new AtomicLong();
+    private final HintStore hints;
+    private final ScheduledExecutorService hintsReplayer;
+    private final AntiEntropy antiEntropy;
+    private final ScheduledExecutorService antiEntropyRunner;
+    private final int maxBodyLength;
+    private final Metrics metrics = new Metrics();
+    private final RequestMetrics getRequests = new RequestMetrics(metrics, "GET");
+    private final RequestMetrics putRequests = new RequestMetrics(metrics, "PUT");
+    private final RequestMetrics deleteRequests = new RequestMetrics(metrics, "DELETE");
+    private final RequestMetrics otherRequests = new RequestMetrics(metrics, "OTHER");
+    // Replica host to operation to its metrics
+    private final Map<String, Map<String, ReplicaCallMetrics>> replicaCalls = new HashMap<>();
 
     public Service(int port, KVDao dao, Set<String> topology) throws IOException {
-        super(createConfig(port));
-        this.dao = dao;
+        this(port, dao, topology, ServiceConfig.fromSystemProperties());
+    }
+
+    public Service(int port, KVDao dao, Set<String> topology, ServiceConfig config) throws IOException {
+        super(config.toServerConfig(port));
+        this.dao = new MeteredDao(dao, metrics);
         this.topology = topology;
-        topologyList = new ArrayList<>(topology);
+        ring = new HashRing(topology);
+        maxBodyLength = config.getMaxBodyLength();
         my = "http://localhost:" + port;
         clientsMap = new HashMap<>();
         for (String host : topology) {
             if (!host.equals(my)) {
-                clientsMap.put(host, new HttpClient(new ConnectionString(host)));
+                clientsMap.put(host, new ReplicaClient(new ConnectionString(host)));
+                Map<String, ReplicaCallMetrics> calls = new HashMap<>();
+                for (String operation : REPLICA_OPERATIONS) {
+                    calls.put(operation, new ReplicaCallMetrics(metrics, host, operation));
+                }
+                replicaCalls.put(host, calls);
             }
         }
+        replicaExecutor = createReplicaExecutor(clientsMap.size());
+        workers = createWorkers(config, "worker");
+        proxiedWorkers = createWorkers(config, "proxied-worker");
+        internalWorkers = createWorkers(config, "internal-worker");
+        hints = new HintStore(config.getHintsDir(dao.getDirectory()), config.getMaxHintsBytes());
+        metrics.gauge("kv_hints_bytes", "Bytes taken by the writes kept for unavailable replicas", hints::sizeInBytes);
+        metrics.counter("kv_hints_dropped_total", "Writes for unavailable replicas dropped as the hints were full",
+                hints::getDropped);
+        hintsReplayer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "hints-replayer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        hintsReplayer.scheduleWithFixedDelay(
+                this::replayHints,
+                config.getHintsInterval(),
+                config.getHintsInterval(),
+                TimeUnit.MILLISECONDS);
+        antiEntropy = new AntiEntropy(
+                this.dao,
+                ring,
+                my,
+                config.getAntiEntropyReplicas(topology.size()),
+                clientsMap,
+                config.getAntiEntropyInterval() > 0 ? config.getAntiEntropyInterval() : IDLE_TREE_MAX_AGE_MILLIS);
+        if (config.getAntiEntropyInterval() > 0) {
+            antiEntropyRunner = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "anti-entropy");
+                thread.setDaemon(true);
+                return thread;
+            });
+            antiEntropyRunner.scheduleWithFixedDelay(
+                    antiEntropy::run,
+                    config.getAntiEntropyInterval(),
+                    config.getAntiEntropyInterval(),
+                    TimeUnit.MILLISECONDS);
+        } else {
+            antiEntropyRunner = null;
+        }
+    }
+
+    private static ExecutorService createWorkers(ServiceConfig config, String name) {
+        if (config.getWorkers() == 0) {
+            return null;
+        }
+        AtomicInteger counter = new AtomicInteger();
+        return new ThreadPoolExecutor(
+                config.getWorkers(),
+                config.getWorkers(),
+                0L,
+                TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(config.getQueueSize()),
+                r -> {
+                    Thread thread = new Thread(r, name + "-" + counter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    private static ExecutorService createReplicaExecutor(int remoteHosts) {
+        int threads = Math.max(1, remoteHosts) * Runtime.getRuntime().availableProcessors() * 2;
+        AtomicInteger counter = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "replica-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Moves blocking request handling off the selector threads, or rejects the request
+     * with {@code 503} when the worker queue is full.
+     * <p>
+     * A client request waits for the replicas it asks, and a node asked with a proxied one
+     * waits for the replicas in turn. Were they all handled by the same workers, the nodes could
+     * end up with every worker waiting for a busy worker of another node until the call times out.
+     * So each class of requests has workers of its own, and the internal requests, that are answered
+     * from the local storage only, are never queued behind the requests that wait for them.
+     */
+    @Override
+    public void handleRequest(Request request, HttpSession session) throws IOException {
+        if (workers == null) {
+            super.handleRequest(request, session);
+            return;
+        }
+        ExecutorService executor;
+        if (isInternal(request.getPath())) {
+            executor = internalWorkers;
+        } else if (request.getHeader(PROXY_HEADER) != null) {
+            executor = proxiedWorkers;
+        } else {
+            executor = workers;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    super.handleRequest(request, session);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    session.close();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            session.sendResponse(new Response(Response.SERVICE_UNAVAILABLE, Response.EMPTY));
+        }
+    }
+
+    private static boolean isInternal(String path) {
+        return path.equals("/v0/replica") || path.startsWith("/v0/internal/") || path.equals("/v0/status");
     }
 
-    private static HttpServerConfig createConfig(int port) {
-        HttpServerConfig config = new HttpServerConfig();
-        config.acceptors = new AcceptorConfig[1];
-        config.acceptors[0] = new AcceptorConfig();
-        config.acceptors[0].port = port;
-        return config;
+    @Override
+    public HttpSession createSession(Socket socket) {
+        return new StorageSession(socket, this, maxBodyLength);
     }
 
     @Override
@@ -63,231 +236,930 @@ public class Service extends HttpServer implements KVService {
         return Response.ok("OK");
     }
 
+    /**
+     * Metrics of this node in the Prometheus text format: latency of the client requests it coordinates,
+     * of its calls to the other replicas and of its storage, with the quantiles of the last minute or two.
+     */
+    @Path("/v0/metrics")
+    public Response metricsQuery() {
+        Response response = new Response(Response.OK, metrics.format().getBytes(StandardCharsets.UTF_8));
+        response.addHeader("Content-Type: text/plain; version=0.0.4; charset=utf-8");
+        return response;
+    }
+
     @Path("/v0/entity")
     public Response clientApiQuery(
             Request request,
-            @Param("id=") String idParameter,
             @Param("replicas=") String replicasParameter
     ) {
-        if (idParameter == null || idParameter.isEmpty()) {
-            return new Response(Response.BAD_REQUEST, Response.EMPTY);
+        long start = System.nanoTime();
+        Response response = entity(request, replicasParameter);
+        requestMetrics(request.getMethod()).record(start, response.getStatus());
+        return response;
+    }
+
+    private RequestMetrics requestMetrics(int method) {
+        switch (method) {
+            case Request.METHOD_GET:
+                return getRequests;
+            case Request.METHOD_PUT:
+                return putRequests;
+            case Request.METHOD_DELETE:
+                return deleteRequests;
+            default:
+                return otherRequests;
         }
-        byte[] id = idParameter.getBytes();
+    }
 
-        Replicas replicas;
-        if (replicasParameter == null || replicasParameter.isEmpty()) {
-            replicas = Replicas.defaultForCount(topology.size());
-        } else {
-            try {
-                replicas = Replicas.fromQuery(replicasParameter);
-            } catch (IllegalArgumentException e) {
-                return new Response(Response.BAD_REQUEST, Response.EMPTY);
-            }
+    private Response entity(Request request, String replicasParameter) {
+        byte[] id = Keys.parameter(request.getURI(), "id=");
+        if (id == null || id.length == 0) {
+            return new Response(Response.BAD_REQUEST, Response.EMPTY);
+        }
+        Replicas replicas = parseReplicas(replicasParameter);
+        if (replicas == null) {
+            return new Response(Response.BAD_REQUEST, Response.EMPTY);
         }
 
-        List<String> replicasHosts = topologyList.stream().limit(replicas.getFrom()).collect(Collectors.toList());
+        List<String> replicasHosts = ring.owners(id, replicas.getFrom());
+        if (!replicasHosts.contains(my) && request.getHeader(PROXY_HEADER) == null) {
+            return proxy(request, replicasHosts);
+        }
 
         switch (request.getMethod()) {
             case Request.METHOD_GET:
                 return processGet(id, replicasHosts, replicas);
             case Request.METHOD_PUT:
-                return processPut(id, request.getBody(), replicasHosts, replicas);
+                return processWrite(id, Value.present(BodyRequest.body(request), nextTimestamp()), replicasHosts, replicas);
             case Request.METHOD_DELETE:
-                return processDelete(id, replicasHosts, replicas);
+                return processWrite(id, Value.removed(nextTimestamp()), replicasHosts, replicas);
             default:
                 return new Response(Response.BAD_REQUEST, Response.EMPTY);
         }
     }
 
-    private Response processGet(byte[] id, List<String> replicasHosts, Replicas replicas) {
-        int success = 0;
-        int notFound = 0;
-        int error = 0;
-        int deleted = 0;
-        Map<String, byte[]> values = new HashMap<>();
-        Set<String> deletedValues = new HashSet<>();
-        Map<Long, String> timestamps = new HashMap<>();
-
-        for (String host : replicasHosts) {
-            if (host.equals(my)) {
+    /**
+     * @return replicas asked for, the default ones if none, or {@code null} if the parameter is malformed
+     */
+    private Replicas parseReplicas(String replicasParameter) {
+        if (replicasParameter == null || replicasParameter.isEmpty()) {
+            return Replicas.defaultForCount(topology.size());
+        }
+        try {
+            return Replicas.fromQuery(replicasParameter);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Many keys in one {@link BatchCodec} body: {@code PUT} stores the entries, removing the keys without a value,
+     * {@code POST} looks the keys up and answers with the entries in the same order.
+     * Every owner gets a single internal request for all its keys. The batch fails with {@code 504}
+     * if any of its keys is not acknowledged by enough replicas.
+     */
+    @Path("/v0/batch")
+    public Response batchQuery(
+            Request request,
+            @Param("replicas=") String replicasParameter
+    ) {
+        Replicas replicas = parseReplicas(replicasParameter);
+        ByteBuffer body = BodyRequest.body(request);
+        if (replicas == null || !body.hasRemaining()) {
+            return new Response(Response.BAD_REQUEST, Response.EMPTY);
+        }
+        try {
+            switch (request.getMethod()) {
+                case Request.METHOD_PUT:
+                    return processBatchWrite(BatchCodec.readEntries(body), replicas);
+                case Request.METHOD_POST:
+                    return processBatchGet(BatchCodec.readKeys(body), replicas);
+                default:
+                    return new Response(Response.BAD_REQUEST, Response.EMPTY);
+            }
+        } catch (IOException e) {
+            return new Response(Response.BAD_REQUEST, Response.EMPTY);
+        }
+    }
+
+    private Response processBatchWrite(List<Map.Entry<byte[], byte[]>> entries, Replicas replicas) {
+        List<byte[]> keys = new ArrayList<>(entries.size());
+        List<Record> records = new ArrayList<>(entries.size());
+        for (Map.Entry<byte[], byte[]> entry : entries) {
+            Value value = entry.getValue() == null
+                    ? Value.removed(nextTimestamp())
+                    : Value.present(entry.getValue(), nextTimestamp());
+            keys.add(entry.getKey());
+            records.add(new Record(entry.getKey(), value));
+        }
+        Map<String, List<Integer>> owned = groupByOwner(keys, replicas.getFrom());
+        Map<String, Response> answers = askOwners(
+                owned,
+                keys.size(),
+                replicas.getAck(),
+                "batch_put",
+                indexes -> localBatchWrite(select(records, indexes)),
+                (host, client, indexes) -> batchWriteOrHint(host, client, select(records, indexes)),
+                status -> status == 201);
+        if (!acknowledged(owned, answers, keys.size(), replicas.getAck())) {
+            return new Response(Response.GATEWAY_TIMEOUT, Response.EMPTY);
+        }
+        return new Response(Response.CREATED, Response.EMPTY);
+    }
+
+    private Response processBatchGet(List<byte[]> keys, Replicas replicas) {
+        Map<String, List<Integer>> owned = groupByOwner(keys, replicas.getFrom());
+        Map<String, Response> answers = askOwners(
+                owned,
+                keys.size(),
+                replicas.getAck(),
+                "batch_get",
+                indexes -> localBatchGet(select(keys, indexes)),
+                (host, client, indexes) -> client.post(
+                        "/v0/internal/batch",
+                        BatchCodec.writeKeys(select(keys, indexes)),
+                        PROXY_HEADER_VALUE),
+                status -> status == 200);
+        if (!acknowledged(owned, answers, keys.size(), replicas.getAck())) {
+            return new Response(Response.GATEWAY_TIMEOUT, Response.EMPTY);
+        }
+
+        // Values by host for every key, null where the host has never seen the key
+        List<Map<String, Value>> values = new ArrayList<>(keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            values.add(new HashMap<>());
+        }
+        try {
+            for (Map.Entry<String, Response> answer : answers.entrySet()) {
+                Map<ByteBuffer, Value> found = new HashMap<>();
+                for (Record record : RecordCodec.readAll(answer.getValue().getBody())) {
+                    found.put(ByteBuffer.wrap(record.getKey()), record.getValue());
+                }
+                for (int index : owned.get(answer.getKey())) {
+                    values.get(index).put(answer.getKey(), found.get(ByteBuffer.wrap(keys.get(index))));
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return new Response(Response.INTERNAL_ERROR, Response.EMPTY);
+        }
+
+        List<Map.Entry<byte[], byte[]>> entries = new ArrayList<>(keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            Value newest = null;
+            for (Value value : values.get(i).values()) {
+                if (value != null && (newest == null || value.isNewerThan(newest))) {
+                    newest = value;
+                }
+            }
+            if (newest != null) {
+                repair(keys.get(i), newest, values.get(i));
+            }
+            byte[] data = newest == null || newest.isRemoved() ? null : newest.getData();
+            entries.add(new AbstractMap.SimpleImmutableEntry<>(keys.get(i), data));
+        }
+        try {
+            return Response.ok(BatchCodec.writeEntries(entries));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return new Response(Response.INTERNAL_ERROR, Response.EMPTY);
+        }
+    }
+
+    /**
+     * @return indexes of the keys by the hosts owning them
+     */
+    private Map<String, List<Integer>> groupByOwner(List<byte[]> keys, int from) {
+        Map<String, List<Integer>> owned = new LinkedHashMap<>();
+        for (int i = 0; i < keys.size(); i++) {
+            for (String host : ring.owners(keys.get(i), from)) {
+                owned.computeIfAbsent(host, h -> new ArrayList<>()).add(i);
+            }
+        }
+        return owned;
+    }
+
+    private static <T> List<T> select(List<T> items, List<Integer> indexes) {
+        List<T> selected = new ArrayList<>(indexes.size());
+        for (int index : indexes) {
+            selected.add(items.get(index));
+        }
+        return selected;
+    }
+
+    /**
+     * Sends every owner one request for all its keys at once and waits only until every key
+     * got {@code ack} accepted answers, the rest are left to finish in background.
+     *
+     * @return accepted answers by host
+     */
+    private Map<String, Response> askOwners(
+            Map<String, List<Integer>> owned,
+            int keyCount,
+            int ack,
+            String operation,
+            Function<List<Integer>, Response> localCall,
+            BatchCall remoteCall,
+            IntPredicate accepted
+    ) {
+        CompletionService<Map.Entry<String, Response>> completion = new ExecutorCompletionService<>(replicaExecutor);
+        int pending = 0;
+        for (Map.Entry<String, List<Integer>> entry : owned.entrySet()) {
+            String host = entry.getKey();
+            if (!host.equals(my)) {
+                ReplicaClient client = clientsMap.get(host);
+                completion.submit(() -> new AbstractMap.SimpleImmutableEntry<>(
+                        host,
+                        timed(host, operation, () -> remoteCall.call(host, client, entry.getValue()))));
+                pending++;
+            }
+        }
+
+        Map<String, Response> answers = new LinkedHashMap<>();
+        if (owned.containsKey(my)) {
+            Response response = localCall.apply(owned.get(my));
+            if (accepted.test(response.getStatus())) {
+                answers.put(my, response);
+            }
+        }
+        while (pending > 0 && !acknowledged(owned, answers, keyCount, ack)) {
+            pending--;
+            try {
+                Map.Entry<String, Response> answer = completion.take().get();
+                if (accepted.test(answer.getValue().getStatus())) {
+                    answers.put(answer.getKey(), answer.getValue());
+                }
+            } catch (ExecutionException e) {
+                e.getCause().printStackTrace();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        return answers;
+    }
+
+    /**
+     * @return whether every key got {@code ack} answers
+     */
+    private static boolean acknowledged(
+            Map<String, List<Integer>> owned,
+            Map<String, Response> answers,
+            int keyCount,
+            int ack) {
+        int[] acks = new int[keyCount];
+        for (String host : answers.keySet()) {
+            for (int index : owned.get(host)) {
+                acks[index]++;
+            }
+        }
+        for (int count : acks) {
+            if (count < ack) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes a batch to a remote replica, and if it fails keeps every write of the batch as a hint.
+     */
+    private Response batchWriteOrHint(String host, ReplicaClient client, List<Record> records) throws Exception {
+        Response response;
+        try {
+            response = client.put("/v0/internal/batch", RecordCodec.writeAll(records), PROXY_HEADER_VALUE);
+        } catch (Exception e) {
+            hintAll(host, records);
+            throw e;
+        }
+        if (response.getStatus() >= 500) {
+            hintAll(host, records);
+        }
+        return response;
+    }
+
+    private void hintAll(String host, List<Record> records) throws IOException {
+        for (Record record : records) {
+            hints.add(host, record.getKey(), record.getValue());
+        }
+    }
+
+    /**
+     * Replica side of a batch: {@code PUT} merges the {@link RecordCodec} records of the body,
+     * {@code POST} answers with the records of the {@link BatchCodec} keys this node has ever seen.
+     */
+    @Path("/v0/internal/batch")
+    public Response internalBatchQuery(Request request) {
+        ByteBuffer body = BodyRequest.body(request);
+        if (!body.hasRemaining()) {
+            return new Response(Response.BAD_REQUEST, Response.EMPTY);
+        }
+        try {
+            switch (request.getMethod()) {
+                case Request.METHOD_PUT:
+                    return localBatchWrite(RecordCodec.readAll(body));
+                case Request.METHOD_POST:
+                    return localBatchGet(BatchCodec.readKeys(body));
+                default:
+                    return new Response(Response.BAD_REQUEST, Response.EMPTY);
+            }
+        } catch (IOException e) {
+            return new Response(Response.BAD_REQUEST, Response.EMPTY);
+        }
+    }
+
+    private Response localBatchWrite(List<Record> records) {
+        try {
+            dao.mergeAll(records);
+            return new Response(Response.CREATED, Response.EMPTY);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return new Response(Response.INTERNAL_ERROR, Response.EMPTY);
+        }
+    }
+
+    private Response localBatchGet(List<byte[]> keys) {
+        try {
+            List<Record> records = new ArrayList<>(keys.size());
+            for (byte[] key : keys) {
                 try {
-                    values.put(host, dao.get(id));
-                    timestamps.put(dao.getUpdateTimeMillis(id), host);
-                    success++;
+                    records.add(new Record(key, dao.getValue(key)));
                 } catch (NoSuchElementException e) {
-                    try {
-                        timestamps.put(dao.getUpdateTimeMillis(id), host);
-                        deletedValues.add(host);
-                        deleted++;
-                    } catch (Exception e1) {
-                        notFound++;
-                    }
-                } catch (IOException e) {
-                    error++;
-                    e.printStackTrace();
+                    // Never seen, left out of the answer
                 }
-            } else {
-                try {
-                    Response response = clientsMap.get(host).get(createUriToReplica(id));
-                    switch (response.getStatus()) {
-                        case 200:
-                            values.put(host, response.getBody());
-                            timestamps.put(Long.parseLong(response.getHeader("updated: ")), host);
-                            success++;
-                            break;
-                        case 404:
-                            String updatedString = response.getHeader("updated: ");
-                            if (updatedString == null) {
-                                notFound++;
-                            } else {
-                                timestamps.put(Long.parseLong(updatedString), host);
-                                deleted++;
-                            }
-                            break;
+            }
+            return Response.ok(RecordCodec.writeAll(records));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return new Response(Response.INTERNAL_ERROR, Response.EMPTY);
+        }
+    }
+
+    /**
+     * Streams the live records with keys from {@code start} inclusive to {@code end} exclusive,
+     * or to the last key if there is no {@code end}.
+     * <p>
+     * In a cluster the records of all the nodes are merged, see {@link ClusterRange}. A range fails
+     * with {@code 504} if any node can't be read, as the keys only it has would be missing. A node failing
+     * in the middle of the range closes the connection before the last chunk, so the client can tell
+     * the range is incomplete.
+     */
+    @Path("/v0/entities")
+    public Response rangeQuery(Request request) {
+        byte[] start = Keys.parameter(request.getURI(), "start=");
+        if (request.getMethod() != Request.METHOD_GET || start == null || start.length == 0) {
+            return new Response(Response.BAD_REQUEST, Response.EMPTY);
+        }
+        byte[] end = Keys.parameter(request.getURI(), "end=");
+        byte[] rangeEnd = end == null || end.length == 0 ? null : end;
+        if (clientsMap.isEmpty()) {
+            try {
+                return new RangeResponse(dao.range(start, rangeEnd));
+            } catch (IOException e) {
+                e.printStackTrace();
+                return new Response(Response.INTERNAL_ERROR, Response.EMPTY);
+            }
+        }
+
+        List<Future<Iterator<Record>>> remote = new ArrayList<>(clientsMap.size());
+        for (Map.Entry<String, ReplicaClient> entry : clientsMap.entrySet()) {
+            String host = entry.getKey();
+            ReplicaClient client = entry.getValue();
+            remote.add(replicaExecutor.submit(
+                    () -> ClusterRange.paged(start, from -> rangePage(host, client, from, rangeEnd))));
+        }
+        List<Iterator<Record>> sources = new ArrayList<>(topology.size());
+        try {
+            for (Future<Iterator<Record>> page : remote) {
+                sources.add(page.get());
+            }
+            sources.add(dao.range(start, rangeEnd));
+        } catch (ExecutionException e) {
+            e.getCause().printStackTrace();
+            return new Response(Response.GATEWAY_TIMEOUT, Response.EMPTY);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new Response(Response.GATEWAY_TIMEOUT, Response.EMPTY);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return new Response(Response.INTERNAL_ERROR, Response.EMPTY);
+        }
+        return new RangeResponse(new ClusterRange(sources));
+    }
+
+    private List<Record> rangePage(String host, ReplicaClient client, byte[] from, byte[] end) throws IOException {
+        StringBuilder uri = Keys.appendEncoded(new StringBuilder("/v0/internal/range?start="), from);
+        if (end != null) {
+            Keys.appendEncoded(uri.append("&end="), end);
+        }
+        Response response;
+        try {
+            response = timed(host, "range", () -> client.get(uri.toString(), PROXY_HEADER_VALUE));
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("Can't get range from " + host, e);
+        }
+        if (response.getStatus() != 200) {
+            throw new IOException("Can't get range from " + host + ": " + response.getStatus());
+        }
+        return RecordCodec.readAll(BufferResponse.body(response));
+    }
+
+    /**
+     * Replica side of a range: a page of the records this node has from {@code start} on in {@link RecordCodec} form,
+     * tombstones too, of {@link #RANGE_PAGE_RECORDS} records or about {@link #RANGE_PAGE_BYTES} at most.
+     * An empty page ends the range.
+     */
+    @Path("/v0/internal/range")
+    public Response internalRangeQuery(Request request) {
+        byte[] start = Keys.parameter(request.getURI(), "start=");
+        if (start == null || start.length == 0) {
+            return new Response(Response.BAD_REQUEST, Response.EMPTY);
+        }
+        byte[] end = Keys.parameter(request.getURI(), "end=");
+        try {
+            Iterator<Record> records = dao.range(start, end == null || end.length == 0 ? null : end);
+            List<Record> page = new ArrayList<>();
+            long bytes = 0;
+            while (page.size() < RANGE_PAGE_RECORDS && bytes < RANGE_PAGE_BYTES && records.hasNext()) {
+                Record record = records.next();
+                page.add(record);
+                bytes += RecordCodec.size(record.getKey(), record.getValue());
+            }
+            return Response.ok(RecordCodec.writeAll(page));
+        } catch (IOException | UncheckedIOException e) {
+            e.printStackTrace();
+            return new Response(Response.INTERNAL_ERROR, Response.EMPTY);
+        }
+    }
+
+    /**
+     * Hands the whole client request over to the first reachable owner of the key,
+     * which coordinates the replicas itself.
+     */
+    private Response proxy(Request request, List<String> owners) {
+        if (request.getMethod() != Request.METHOD_GET
+                && request.getMethod() != Request.METHOD_PUT
+                && request.getMethod() != Request.METHOD_DELETE) {
+            return new Response(Response.BAD_REQUEST, Response.EMPTY);
+        }
+        for (String owner : owners) {
+            ReplicaClient client = clientsMap.get(owner);
+            try {
+                Response response = timed(owner, "proxy", () -> {
+                    switch (request.getMethod()) {
+                        case Request.METHOD_GET:
+                            return client.get(request.getURI(), PROXY_HEADER_VALUE);
+                        case Request.METHOD_PUT:
+                            return client.put(request.getURI(), BodyRequest.body(request), PROXY_HEADER_VALUE);
                         default:
-                            error++;
-                            break;
+                            return client.delete(request.getURI(), PROXY_HEADER_VALUE);
                     }
-                } catch (Exception e) {
-                    error++;
-                    e.printStackTrace();
+                });
+                if (response instanceof BufferResponse) {
+                    return new BufferResponse(response.getHeaders()[0], ((BufferResponse) response).getBuffer());
                 }
+                byte[] body = response.getBody();
+                return new Response(response.getHeaders()[0], body == null ? Response.EMPTY : body);
+            } catch (Exception e) {
+                e.printStackTrace();
             }
         }
+        return new Response(Response.GATEWAY_TIMEOUT, Response.EMPTY);
+    }
 
-        if (values.size() > 0 && deleted == 0) {
-            Optional<Map.Entry<String, byte[]>> first = values.entrySet().stream().findFirst();
-            if (first.isPresent()) {
-                return Response.ok(first.get().getValue());
-            } else {
-                return new Response(Response.GATEWAY_TIMEOUT, Response.EMPTY);
-            }
-        } else if (success + deleted + notFound < replicas.getAck()) {
+    private Response processGet(byte[] id, List<String> replicasHosts, Replicas replicas) {
+        Map<String, Response> answers = askReplicas(
+                replicasHosts,
+                replicas.getAck(),
+                "get",
+                () -> localGet(id),
+                (host, client) -> client.get(createUriToReplica(id)),
+                status -> status == 200 || status == 404);
+        if (answers.size() < replicas.getAck()) {
             return new Response(Response.GATEWAY_TIMEOUT, Response.EMPTY);
-        } else {
+        }
+
+        Map<String, Value> values = new HashMap<>();
+        Value newest = null;
+        for (Map.Entry<String, Response> answer : answers.entrySet()) {
+            Value value = toValue(answer.getValue());
+            values.put(answer.getKey(), value);
+            if (value != null && (newest == null || value.isNewerThan(newest))) {
+                newest = value;
+            }
+        }
+        if (newest == null) {
             return new Response(Response.NOT_FOUND, Response.EMPTY);
         }
+
+        repair(id, newest, values);
+        return new ValueResponse(newest);
     }
 
-    private Response processPut(byte[] id, byte[] value, List<String> replicasHosts, Replicas replicas) {
-        int success = 0;
-        int error = 0;
+    /**
+     * Wall clock time that never repeats on this coordinator, so two quick writes
+     * of the same key are never ordered by chance.
+     */
+    private long nextTimestamp() {
+        long now = System.currentTimeMillis();
+        return lastTimestamp.updateAndGet(last -> Math.max(last + 1, now));
+    }
 
-        for (String host : replicasHosts) {
-            if (host.equals(my)) {
-                try {
-                    dao.upsert(id, value);
-                    success++;
-                } catch (IOException e) {
-                    error++;
-                    e.printStackTrace();
-                }
-            } else {
-                try {
-                    Response response = clientsMap.get(host).put(createUriToReplica(id), value);
-                    if (response.getStatus() == 201) {
-                        success++;
+    /**
+     * @return value sent by a replica, or {@code null} if the replica has never seen the key
+     */
+    private static Value toValue(Response answer) {
+        if (answer instanceof ValueResponse) {
+            return ((ValueResponse) answer).getValue();
+        }
+        String updated = answer.getHeader(TIMESTAMP_HEADER);
+        if (updated == null) {
+            return null;
+        }
+        long timestamp = Long.parseLong(updated);
+        if (answer.getStatus() == 404) {
+            return Value.removed(timestamp);
+        }
+        if (answer instanceof BufferResponse) {
+            return Value.present(((BufferResponse) answer).getBuffer(), timestamp);
+        }
+        return Value.present(answer.getBody(), timestamp);
+    }
+
+    /**
+     * Pushes the newest value in background to the replicas that answered with an older one or nothing.
+     */
+    private void repair(byte[] id, Value newest, Map<String, Value> values) {
+        for (Map.Entry<String, Value> entry : values.entrySet()) {
+            Value value = entry.getValue();
+            if (value != null && !newest.isNewerThan(value)) {
+                continue;
+            }
+            String host = entry.getKey();
+            try {
+                replicaExecutor.execute(() -> {
+                    if (host.equals(my)) {
+                        localWrite(id, newest);
                     } else {
-                        error++;
+                        try {
+                            writeRemote(clientsMap.get(host), id, newest);
+                        } catch (Exception e) {
+                            e.printStackTrace();
+                        }
                     }
-                } catch (Exception e) {
-                    error++;
-                    e.printStackTrace();
-                }
+                });
+            } catch (RejectedExecutionException e) {
+                // The service is stopping, the replica will be repaired on a later read
             }
         }
+    }
 
-        if (success >= replicas.getAck()) {
-            return new Response(Response.CREATED, Response.EMPTY);
-        } else {
+    private Response processWrite(byte[] id, Value value, List<String> replicasHosts, Replicas replicas) {
+        int status = value.isRemoved() ? 202 : 201;
+        Map<String, Response> answers = askReplicas(
+                replicasHosts,
+                replicas.getAck(),
+                value.isRemoved() ? "delete" : "put",
+                () -> localWrite(id, value),
+                (host, client) -> writeOrHint(host, client, id, value),
+                answer -> answer == status);
+        if (answers.size() < replicas.getAck()) {
             return new Response(Response.GATEWAY_TIMEOUT, Response.EMPTY);
         }
+        return new Response(value.isRemoved() ? Response.ACCEPTED : Response.CREATED, Response.EMPTY);
     }
 
-    private Response processDelete(byte[] id, List<String> replicasHosts, Replicas replicas) {
-        int success = 0;
-        int error = 0;
+    /**
+     * Writes to a remote replica, and if it fails keeps the write as a hint
+     * to be replayed once the replica is back.
+     */
+    private Response writeOrHint(String host, ReplicaClient client, byte[] id, Value value) throws Exception {
+        Response response;
+        try {
+            response = writeRemote(client, id, value);
+        } catch (Exception e) {
+            hints.add(host, id, value);
+            throw e;
+        }
+        if (response.getStatus() >= 500) {
+            hints.add(host, id, value);
+        }
+        return response;
+    }
 
-        for (String host : replicasHosts) {
-            if (host.equals(my)) {
-                try {
-                    dao.remove(id);
-                    success++;
-                } catch (IOException e) {
-                    error++;
-                    e.printStackTrace();
+    private void replayHints() {
+        for (Map.Entry<String, ReplicaClient> entry : clientsMap.entrySet()) {
+            String host = entry.getKey();
+            ReplicaClient client = entry.getValue();
+            if (!hints.hasHints(host)) {
+                continue;
+            }
+            try {
+                if (client.get("/v0/status").getStatus() != 200) {
+                    continue;
                 }
-            } else {
-                try {
-                    Response response = clientsMap.get(host).delete(createUriToReplica(id));
-                    if (response.getStatus() == 202) {
-                        success++;
-                    } else {
-                        error++;
+                hints.replay(host, (key, value) -> {
+                    try {
+                        return writeRemote(client, key, value).getStatus() < 500;
+                    } catch (Exception e) {
+                        return false;
                     }
-                } catch (Exception e) {
-                    error++;
-                    e.printStackTrace();
+                });
+            } catch (Exception e) {
+                // The host is still unavailable, try again later
+            }
+        }
+    }
+
+    private Response writeRemote(ReplicaClient client, byte[] id, Value value) throws Exception {
+        String timestamp = TIMESTAMP_HEADER + value.getTimestamp();
+        if (value.isRemoved()) {
+            return client.delete(createUriToReplica(id), timestamp);
+        }
+        return client.put(createUriToReplica(id), value.getBuffer(), timestamp);
+    }
+
+    /**
+     * Sends the request to all the replicas at once and waits only until {@code ack} of them
+     * give an accepted answer, the rest are left to finish in background.
+     *
+     * @return accepted answers by host, fewer than {@code ack} if not enough replicas responded
+     */
+    private Map<String, Response> askReplicas(
+            List<String> hosts,
+            int ack,
+            String operation,
+            Supplier<Response> localCall,
+            RemoteCall remoteCall,
+            IntPredicate accepted
+    ) {
+        CompletionService<Map.Entry<String, Response>> completion = new ExecutorCompletionService<>(replicaExecutor);
+        int pending = 0;
+        boolean local = false;
+        for (String host : hosts) {
+            if (host.equals(my)) {
+                local = true;
+            } else {
+                ReplicaClient client = clientsMap.get(host);
+                completion.submit(() -> new AbstractMap.SimpleImmutableEntry<>(
+                        host,
+                        timed(host, operation, () -> remoteCall.call(host, client))));
+                pending++;
+            }
+        }
+
+        Map<String, Response> answers = new LinkedHashMap<>();
+        if (local) {
+            Response response = localCall.get();
+            if (accepted.test(response.getStatus())) {
+                answers.put(my, response);
+            }
+        }
+        while (answers.size() < ack && pending > 0) {
+            pending--;
+            try {
+                Map.Entry<String, Response> answer = completion.take().get();
+                if (accepted.test(answer.getValue().getStatus())) {
+                    answers.put(answer.getKey(), answer.getValue());
                 }
+            } catch (ExecutionException e) {
+                e.getCause().printStackTrace();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
             }
         }
+        return answers;
+    }
 
-        if (success >= replicas.getAck()) {
-            return new Response(Response.ACCEPTED, Response.EMPTY);
-        } else {
-            return new Response(Response.GATEWAY_TIMEOUT, Response.EMPTY);
+    /**
+     * Makes a call to a remote replica, timing it and counting it as failed if it throws
+     * or the replica answers with a server error.
+     */
+    private Response timed(String host, String operation, Callable<Response> call) throws Exception {
+        ReplicaCallMetrics callMetrics = replicaCalls.get(host).get(operation);
+        long start = System.nanoTime();
+        try {
+            Response response = call.call();
+            if (response.getStatus() >= 500) {
+                callMetrics.errors.increment();
+            }
+            return response;
+        } catch (Exception e) {
+            callMetrics.errors.increment();
+            throw e;
+        } finally {
+            callMetrics.timer.recordSince(start);
         }
     }
 
     private String createUriToReplica(byte[] id) {
-        return "/v0/replica?id=" + new String(id);
+        return Keys.appendEncoded(new StringBuilder("/v0/replica?id="), id).toString();
     }
 
+    /**
+     * Replica side of a request. Writes carry the coordinator's timestamp, so all the replicas
+     * store the same version and an older write never overwrites a newer one.
+     */
     @Path("/v0/replica")
-    public Response replicaApiQuery(
-            Request request,
-            @Param("id=") String idParameter
-    ) {
-        byte[] id = idParameter.getBytes();
+    public Response replicaApiQuery(Request request) {
+        byte[] id = Keys.parameter(request.getURI(), "id=");
+        if (id == null) {
+            return new Response(Response.BAD_REQUEST, Response.EMPTY);
+        }
+        if (request.getMethod() == Request.METHOD_GET) {
+            return localGet(id);
+        }
+
+        long timestamp;
+        String timestampHeader = request.getHeader(TIMESTAMP_HEADER);
+        if (timestampHeader == null) {
+            timestamp = System.currentTimeMillis();
+        } else {
+            try {
+                timestamp = Long.parseLong(timestampHeader);
+            } catch (NumberFormatException e) {
+                return new Response(Response.BAD_REQUEST, Response.EMPTY);
+            }
+        }
         switch (request.getMethod()) {
-            case Request.METHOD_GET:
-                Response response;
-                try {
-                    byte[] value = dao.get(id);
-                    response = Response.ok(value);
-                } catch (NoSuchElementException e) {
-                    response = new Response(Response.NOT_FOUND, Response.EMPTY);
-                } catch (IOException e) {
-                    return new Response(Response.INTERNAL_ERROR, Response.EMPTY);
-                }
-                Long updateTime;
-                try {
-                    updateTime = dao.getUpdateTimeMillis(id);
-                } catch (NoSuchElementException e) {
-                    updateTime = null;
-                } catch (IOException e) {
-                    return new Response(Response.INTERNAL_ERROR, Response.EMPTY);
-                }
-                if (updateTime != null) {
-                    response.addHeader("updated: " + updateTime);
-                }
-                return response;
             case Request.METHOD_PUT:
-                try {
-                    dao.upsert(id, request.getBody());
-                    return new Response(Response.CREATED, Response.EMPTY);
-                } catch (IOException e) {
-                    return new Response(Response.INTERNAL_ERROR, Response.EMPTY);
-                }
+                return localWrite(id, Value.present(BodyRequest.body(request), timestamp));
             case Request.METHOD_DELETE:
-                try {
-                    dao.remove(id);
-                    return new Response(Response.ACCEPTED, Response.EMPTY);
-                } catch (IOException e) {
-                    return new Response(Response.INTERNAL_ERROR, Response.EMPTY);
-                }
+                return localWrite(id, Value.removed(timestamp));
             default:
                 return new Response(Response.BAD_REQUEST, Response.EMPTY);
         }
     }
+
+    /**
+     * Anti-entropy: answers a body of the heap indexes of {@link MerkleTree} nodes with the nodes
+     * of the tree over the keys shared with the peer, in the same order.
+     */
+    @Path("/v0/internal/merkle")
+    public Response merkleQuery(
+            Request request,
+            @Param("peer=") String peer
+    ) {
+        ByteBuffer body = BodyRequest.body(request);
+        if (request.getMethod() != Request.METHOD_POST || !clientsMap.containsKey(peer)
+                || !body.hasRemaining() || body.remaining() % Integer.BYTES != 0) {
+            return new Response(Response.BAD_REQUEST, Response.EMPTY);
+        }
+        int[] indexes = new int[body.remaining() / Integer.BYTES];
+        body.asIntBuffer().get(indexes);
+        for (int index : indexes) {
+            if (index < 1 || index >= 2 * MerkleTree.LEAVES) {
+                return new Response(Response.BAD_REQUEST, Response.EMPTY);
+            }
+        }
+        try {
+            long[] nodes = antiEntropy.nodes(peer, indexes);
+            ByteBuffer answer = ByteBuffer.allocate(nodes.length * Long.BYTES);
+            answer.asLongBuffer().put(nodes);
+            return Response.ok(answer.array());
+        } catch (IOException | UncheckedIOException e) {
+            e.printStackTrace();
+            return new Response(Response.INTERNAL_ERROR, Response.EMPTY);
+        }
+    }
+
+    /**
+     * Anti-entropy: sends a page of the records shared with the peer from the comma separated tree buckets,
+     * with keys from {@code start} on. An empty page ends the buckets.
+     */
+    @Path("/v0/internal/records")
+    public Response recordsQuery(
+            Request request,
+            @Param("peer=") String peer,
+            @Param("buckets=") String bucketsParameter
+    ) {
+        if (!clientsMap.containsKey(peer) || bucketsParameter == null) {
+            return new Response(Response.BAD_REQUEST, Response.EMPTY);
+        }
+        BitSet buckets = new BitSet(MerkleTree.LEAVES);
+        try {
+            for (String value : bucketsParameter.split(",")) {
+                int bucket = Integer.parseInt(value);
+                if (bucket < 0 || bucket >= MerkleTree.LEAVES) {
+                    return new Response(Response.BAD_REQUEST, Response.EMPTY);
+                }
+                buckets.set(bucket);
+            }
+        } catch (NumberFormatException e) {
+            return new Response(Response.BAD_REQUEST, Response.EMPTY);
+        }
+        try {
+            byte[] start = Keys.parameter(request.getURI(), "start=");
+            return Response.ok(antiEntropy.export(peer, buckets, start == null ? new byte[0] : start));
+        } catch (IOException | UncheckedIOException e) {
+            e.printStackTrace();
+            return new Response(Response.INTERNAL_ERROR, Response.EMPTY);
+        }
+    }
+
+    private Response localGet(byte[] id) {
+        try {
+            Value value = dao.getValue(id);
+            Response response = new ValueResponse(value);
+            response.addHeader(TIMESTAMP_HEADER + value.getTimestamp());
+            return response;
+        } catch (NoSuchElementException e) {
+            return new Response(Response.NOT_FOUND, Response.EMPTY);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return new Response(Response.INTERNAL_ERROR, Response.EMPTY);
+        }
+    }
+
+    private Response localWrite(byte[] id, Value value) {
+        try {
+            dao.merge(id, value);
+            return new Response(value.isRemoved() ? Response.ACCEPTED : Response.CREATED, Response.EMPTY);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return new Response(Response.INTERNAL_ERROR, Response.EMPTY);
+        }
+    }
+
+    @Override
+    public synchronized void stop() {
+        super.stop();
+        hintsReplayer.shutdownNow();
+        if (antiEntropyRunner != null) {
+            antiEntropyRunner.shutdownNow();
+        }
+        if (workers != null) {
+            workers.shutdown();
+            proxiedWorkers.shutdown();
+            internalWorkers.shutdown();
+        }
+        replicaExecutor.shutdown();
+        try {
+            // Let pending repairs reach the replicas before the clients are closed
+            replicaExecutor.awaitTermination(STOP_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (ReplicaClient client : clientsMap.values()) {
+            client.close();
+        }
+        try {
+            hints.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private interface RemoteCall {
+        Response call(String host, ReplicaClient client) throws Exception;
+    }
+
+    private interface BatchCall {
+        Response call(String host, ReplicaClient client, List<Integer> indexes) throws Exception;
+    }
+
+    /**
+     * Latency of the {@code /v0/entity} requests with one method and the count of them by status.
+     */
+    private static class RequestMetrics {
+        private final Metrics metrics;
+        private final String method;
+        private final Metrics.Timer timer;
+        private final ConcurrentMap<Integer, LongAdder> answered = new ConcurrentHashMap<>();
+
+        RequestMetrics(Metrics metrics, String method) {
+            this.metrics = metrics;
+            this.method = method;
+            timer = metrics.timer(REQUEST_SECONDS, "Latency of the /v0/entity requests", "method", method);
+        }
+
+        void record(long start, int status) {
+            timer.recordSince(start);
+            LongAdder counter = answered.get(status);
+            if (counter == null) {
+                counter = answered.computeIfAbsent(status, s -> metrics.counter(
+                        REQUESTS, "Answered /v0/entity requests", "method", method, "status", Integer.toString(s)));
+            }
+            counter.increment();
+        }
+    }
+
+    /**
+     * Latency and failures of the calls of one operation to one replica, there from the start,
+     * so the error rate of a replica is known before its first error.
+     */
+    private static class ReplicaCallMetrics {
+        private final Metrics.Timer timer;
+        private final LongAdder errors;
+
+        ReplicaCallMetrics(Metrics metrics, String host, String operation) {
+            timer = metrics.timer(REPLICA_SECONDS, "Latency of the calls to the other replicas",
+                    "replica", host, "operation", operation);
+            errors = metrics.counter(REPLICA_ERRORS, "Calls to the other replicas that failed or got a server error",
+                    "replica", host, "operation", operation);
+        }
+    }
 }
@@ -0,0 +1,146 @@
+package ru.mail.polis.klimova;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+import org.jetbrains.annotations.Nullable;
+
+import one.nio.http.HttpServerConfig;
+import one.nio.server.AcceptorConfig;
+
+/**
+ * Threading and request settings of {@link Service}, read from system properties:
+ * <ul>
+ * <li>{@code highload.selectors} -- selector threads, {@code 0} for one per core</li>
+ * <li>{@code highload.acceptors} -- acceptor threads, more than one binds with {@code SO_REUSEPORT}</li>
+ * <li>{@code highload.workers} -- worker threads for each of the client, proxied and internal requests,
+ * {@code 0} to handle requests in selector threads</li>
+ * <li>{@code highload.queue} -- requests of each kind waiting for a worker before {@code 503} is returned</li>
+ * <li>{@code highload.hints.dir} -- where writes missed by other replicas are kept,
+ * by default {@code hints} in the directory of the storage</li>
+ * <li>{@code highload.hints.interval} -- milliseconds between attempts to replay the missed writes</li>
+ * <li>{@code highload.hints.max} -- bytes the missed writes take at most, the ones over it are left to anti-entropy</li>
+ * <li>{@code highload.antientropy.interval} -- milliseconds between reconciliations with the peers,
+ * {@code 0} to turn them off</li>
+ * <li>{@code highload.antientropy.replicas} -- replicas of a key kept in sync, {@code 0} for the whole cluster</li>
+ * <li>{@code highload.body.max} -- largest request body in bytes, a larger one gets {@code 413},
+ * {@link SSTable#MAX_VALUE_SIZE} at most</li>
+ * </ul>
+ */
+public class ServiceConfig {
+    public static final int DEFAULT_MAX_BODY_LENGTH = 32 * 1024 * 1024;
+    public static final long DEFAULT_MAX_HINTS_BYTES = 256L * 1024 * 1024;
+
+    private static final String HINTS_DIR = "hints";
+
+    private static final int CORES = Runtime.getRuntime().availableProcessors();
+
+    private final int selectors;
+    private final int acceptors;
+    private final int workers;
+    private final int queueSize;
+    private final String hintsDir;
+    private final long hintsInterval;
+    private final long maxHintsBytes;
+    private final long antiEntropyInterval;
+    private final int antiEntropyReplicas;
+    private final int maxBodyLength;
+
+    public ServiceConfig(
+            int selectors,
+            int acceptors,
+            int workers,
+            int queueSize,
+            String hintsDir,
+            long hintsInterval,
+            long maxHintsBytes,
+            long antiEntropyInterval,
+            int antiEntropyReplicas,
+            int maxBodyLength) {
+        if (selectors < 0 || acceptors < 1 || workers < 0 || queueSize < 1 || hintsInterval < 1 || maxHintsBytes < 0
+                || antiEntropyInterval < 0 || antiEntropyReplicas < 0 || maxBodyLength < 0
+                || maxBodyLength > SSTable.MAX_VALUE_SIZE) {
+            throw new IllegalArgumentException("Bad service config");
+        }
+        this.selectors = selectors;
+        this.acceptors = acceptors;
+        this.workers = workers;
+        this.queueSize = queueSize;
+        this.hintsDir = hintsDir;
+        this.hintsInterval = hintsInterval;
+        this.maxHintsBytes = maxHintsBytes;
+        this.antiEntropyInterval = antiEntropyInterval;
+        this.antiEntropyReplicas = antiEntropyReplicas;
+        this.maxBodyLength = maxBodyLength;
+    }
+
+    public static ServiceConfig fromSystemProperties() {
+        return new ServiceConfig(
+                Integer.getInteger("highload.selectors", 0),
+                Integer.getInteger("highload.acceptors", 1),
+                Integer.getInteger("highload.workers", CORES * 4),
+                Integer.getInteger("highload.queue", 1024),
+                System.getProperty("highload.hints.dir"),
+                Long.getLong("highload.hints.interval", 1000),
+                Long.getLong("highload.hints.max", DEFAULT_MAX_HINTS_BYTES),
+                Long.getLong("highload.antientropy.interval", TimeUnit.MINUTES.toMillis(10)),
+                Integer.getInteger("highload.antientropy.replicas", 0),
+                Integer.getInteger("highload.body.max", DEFAULT_MAX_BODY_LENGTH));
+    }
+
+    public int getWorkers() {
+        return workers;
+    }
+
+    public int getQueueSize() {
+        return queueSize;
+    }
+
+    /**
+     * @param dataDir directory of the storage, {@code null} if it has none
+     * @throws IllegalStateException if there is neither a hints directory configured nor a storage directory
+     */
+    public Path getHintsDir(@Nullable File dataDir) {
+        if (hintsDir != null) {
+            return Paths.get(hintsDir);
+        }
+        if (dataDir == null) {
+            throw new IllegalStateException("The storage has no directory, set highload.hints.dir");
+        }
+        return dataDir.toPath().resolve(HINTS_DIR);
+    }
+
+    public long getHintsInterval() {
+        return hintsInterval;
+    }
+
+    public long getMaxHintsBytes() {
+        return maxHintsBytes;
+    }
+
+    public long getAntiEntropyInterval() {
+        return antiEntropyInterval;
+    }
+
+    public int getAntiEntropyReplicas(int clusterSize) {
+        return antiEntropyReplicas == 0 ? clusterSize : antiEntropyReplicas;
+    }
+
+    public int getMaxBodyLength() {
+        return maxBodyLength;
+    }
+
+    public HttpServerConfig toServerConfig(int port) {
+        HttpServerConfig config = new HttpServerConfig();
+        config.selectors = selectors;
+        config.acceptors = new AcceptorConfig[acceptors];
+        for (int i = 0; i < acceptors; i++) {
+            config.acceptors[i] = new AcceptorConfig();
+            config.acceptors[i].port = port;
+            config.acceptors[i].reusePort = acceptors > 1;
+        }
+        return config;
+    }
+}
@@ -0,0 +1,101 @@
+package ru.mail.polis.klimova;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+
+import org.jetbrains.annotations.NotNull;
+
+import one.nio.mem.DirectMemory;
+import one.nio.net.Socket;
+import one.nio.os.NativeLibrary;
+
+/**
+ * Moves bytes between a one-nio socket and a buffer. A direct or mapped buffer goes through
+ * the raw calls of the native sockets without a heap copy.
+ * <p>
+ * Without the one-nio native library the sockets are Java ones, which have no raw calls,
+ * so a direct buffer is copied through a small heap chunk instead. The raw calls can also
+ * be turned off with {@code -Dhighload.socket.raw=false}, which takes the same path.
+ */
+public final class Sockets {
+    public static final boolean RAW = NativeLibrary.IS_SUPPORTED
+            && Boolean.parseBoolean(System.getProperty("highload.socket.raw", "true"));
+
+    private static final int CHUNK_SIZE = 8 * 1024;
+    private static final ThreadLocal<byte[]> CHUNK = ThreadLocal.withInitial(() -> new byte[CHUNK_SIZE]);
+    // Target of the peeks at idle connections, never read
+    private static final ByteBuffer PEEK_BUFFER = RAW ? ByteBuffer.allocateDirect(1) : null;
+
+    private Sockets() {
+    }
+
+    /**
+     * Writes as much of the remaining bytes of the buffer as the socket takes and moves its position past them.
+     *
+     * @return bytes written
+     */
+    public static int write(@NotNull Socket socket, @NotNull ByteBuffer buffer) throws IOException {
+        int written;
+        if (buffer.hasArray()) {
+            written = socket.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining(), 0);
+        } else if (RAW && buffer.isDirect()) {
+            written = socket.writeRaw(DirectMemory.getAddress(buffer) + buffer.position(), buffer.remaining(), 0);
+        } else {
+            byte[] chunk = CHUNK.get();
+            int size = Math.min(chunk.length, buffer.remaining());
+            buffer.duplicate().get(chunk, 0, size);
+            written = socket.write(chunk, 0, size, 0);
+        }
+        if (written > 0) {
+            buffer.position(buffer.position() + written);
+        }
+        return written;
+    }
+
+    /**
+     * Reads what the socket has, up to the remaining bytes of the buffer, and moves its position past them.
+     *
+     * @return bytes read
+     */
+    public static int read(@NotNull Socket socket, @NotNull ByteBuffer buffer) throws IOException {
+        int read;
+        if (buffer.hasArray()) {
+            read = socket.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        } else if (RAW && buffer.isDirect()) {
+            read = socket.readRaw(DirectMemory.getAddress(buffer) + buffer.position(), buffer.remaining(), 0);
+        } else {
+            byte[] chunk = CHUNK.get();
+            read = socket.read(chunk, 0, Math.min(chunk.length, buffer.remaining()));
+            if (read > 0) {
+                buffer.put(chunk, 0, read);
+            }
+            return read;
+        }
+        if (read > 0) {
+            buffer.position(buffer.position() + read);
+        }
+        return read;
+    }
+
+    /**
+     * Tells an idle connection closed by the peer, which is then readable at once, without blocking.
+     *
+     * @return whether the peer has closed the connection, always {@code false} without the raw calls,
+     * as a Java socket can't be peeked at without blocking
+     */
+    public static boolean isClosedByPeer(@NotNull Socket socket) {
+        if (!RAW) {
+            return false;
+        }
+        try {
+            socket.readRaw(DirectMemory.getAddress(PEEK_BUFFER), 1, Socket.MSG_PEEK | Socket.MSG_DONTWAIT);
+            // An idle connection has nothing to read, a response it had left is stale
+            return true;
+        } catch (SocketTimeoutException e) {
+            return false;
+        } catch (IOException e) {
+            return true;
+        }
+    }
+}
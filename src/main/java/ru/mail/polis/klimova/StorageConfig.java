@@ -0,0 +1,129 @@
+package ru.mail.polis.klimova;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Settings of the storage engines, read from system properties:
+ * <ul>
+ * <li>{@code highload.memtable} -- bytes of the write buffer of {@link LSMDao} before it is flushed,
+ * its off-heap cells and their index on the heap, keep {@code -XX:MaxDirectMemorySize} at least twice as big</li>
+ * <li>{@code highload.wal.interval} -- microseconds a log batch waits for more concurrent writes</li>
+ * <li>{@code highload.wal.batch} -- bytes of a log batch that is synced without waiting any longer</li>
+ * <li>{@code highload.gc.grace} -- milliseconds a tombstone is kept, so every replica gets to see it</li>
+ * <li>{@code highload.gc.interval} -- milliseconds between looks for tombstones past the grace period</li>
+ * <li>{@code highload.compression} -- bytes of the smallest value stored compressed, {@code 0} to store values raw</li>
+ * <li>{@code highload.cache} -- bytes of the hot key cache in front of the storage, {@code 0} to turn it off</li>
+ * <li>{@code highload.cache.offheap} -- whether the cached values are kept in direct memory</li>
+ * </ul>
+ */
+public class StorageConfig {
+    public static final long DEFAULT_FLUSH_THRESHOLD = 4 * 1024 * 1024;
+    public static final int DEFAULT_COMPACTION_THRESHOLD = 8;
+    public static final long DEFAULT_SYNC_INTERVAL_NANOS = 0;
+    public static final int DEFAULT_MAX_BATCH_BYTES = 1024 * 1024;
+    public static final long DEFAULT_GC_GRACE_MILLIS = TimeUnit.DAYS.toMillis(10);
+    public static final long DEFAULT_GC_INTERVAL_MILLIS = TimeUnit.HOURS.toMillis(1);
+    public static final int DEFAULT_COMPRESSION_THRESHOLD = 1024;
+    public static final long DEFAULT_CACHE_BYTES = 16 * 1024 * 1024;
+
+    private final long flushThreshold;
+    private final int compactionThreshold;
+    private final long syncIntervalNanos;
+    private final int maxBatchBytes;
+    private final long gcGraceMillis;
+    private final long gcIntervalMillis;
+    private final int compressionThreshold;
+    private final long cacheBytes;
+    private final boolean cacheOffHeap;
+
+    public StorageConfig(
+            long flushThreshold,
+            int compactionThreshold,
+            long syncIntervalNanos,
+            int maxBatchBytes,
+            long gcGraceMillis,
+            long gcIntervalMillis,
+            int compressionThreshold,
+            long cacheBytes,
+            boolean cacheOffHeap) {
+        if (flushThreshold < 1 || compactionThreshold < 1 || syncIntervalNanos < 0 || maxBatchBytes < 1
+                || gcGraceMillis < 0 || gcIntervalMillis < 1 || compressionThreshold < 0 || cacheBytes < 0) {
+            throw new IllegalArgumentException("Bad storage config");
+        }
+        this.flushThreshold = flushThreshold;
+        this.compactionThreshold = compactionThreshold;
+        this.syncIntervalNanos = syncIntervalNanos;
+        this.maxBatchBytes = maxBatchBytes;
+        this.gcGraceMillis = gcGraceMillis;
+        this.gcIntervalMillis = gcIntervalMillis;
+        this.compressionThreshold = compressionThreshold;
+        this.cacheBytes = cacheBytes;
+        this.cacheOffHeap = cacheOffHeap;
+    }
+
+    public static StorageConfig defaults() {
+        return withThresholds(DEFAULT_FLUSH_THRESHOLD, DEFAULT_COMPACTION_THRESHOLD);
+    }
+
+    public static StorageConfig withThresholds(long flushThreshold, int compactionThreshold) {
+        return new StorageConfig(
+                flushThreshold,
+                compactionThreshold,
+                DEFAULT_SYNC_INTERVAL_NANOS,
+                DEFAULT_MAX_BATCH_BYTES,
+                DEFAULT_GC_GRACE_MILLIS,
+                DEFAULT_GC_INTERVAL_MILLIS,
+                DEFAULT_COMPRESSION_THRESHOLD,
+                DEFAULT_CACHE_BYTES,
+                true);
+    }
+
+    public static StorageConfig fromSystemProperties() {
+        return new StorageConfig(
+                Long.getLong("highload.memtable", DEFAULT_FLUSH_THRESHOLD),
+                DEFAULT_COMPACTION_THRESHOLD,
+                TimeUnit.MICROSECONDS.toNanos(Long.getLong("highload.wal.interval", 0)),
+                Integer.getInteger("highload.wal.batch", DEFAULT_MAX_BATCH_BYTES),
+                Long.getLong("highload.gc.grace", DEFAULT_GC_GRACE_MILLIS),
+                Long.getLong("highload.gc.interval", DEFAULT_GC_INTERVAL_MILLIS),
+                Integer.getInteger("highload.compression", DEFAULT_COMPRESSION_THRESHOLD),
+                Long.getLong("highload.cache", DEFAULT_CACHE_BYTES),
+                Boolean.parseBoolean(System.getProperty("highload.cache.offheap", "true")));
+    }
+
+    public long getFlushThreshold() {
+        return flushThreshold;
+    }
+
+    public int getCompactionThreshold() {
+        return compactionThreshold;
+    }
+
+    public long getSyncIntervalNanos() {
+        return syncIntervalNanos;
+    }
+
+    public int getMaxBatchBytes() {
+        return maxBatchBytes;
+    }
+
+    public long getGcGraceMillis() {
+        return gcGraceMillis;
+    }
+
+    public long getGcIntervalMillis() {
+        return gcIntervalMillis;
+    }
+
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    public long getCacheBytes() {
+        return cacheBytes;
+    }
+
+    public boolean isCacheOffHeap() {
+        return cacheOffHeap;
+    }
+}
@@ -0,0 +1,371 @@
+package ru.mail.polis.klimova;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.net.SocketTimeoutException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import one.nio.http.HttpException;
+import one.nio.http.HttpServer;
+import one.nio.http.HttpSession;
+import one.nio.http.Request;
+import one.nio.http.Response;
+import one.nio.net.Socket;
+import one.nio.server.SelectorThread;
+import one.nio.util.Utf8;
+import ru.mail.polis.Record;
+
+/**
+ * HTTP session that sends the body of a {@link BufferResponse} to the socket directly
+ * from its buffer, a direct or memory mapped one, without a heap copy where {@link Sockets} can,
+ * and streams the records of a {@link RangeResponse} the same way, as many as the socket takes.
+ * <p>
+ * A request body larger than {@link #HEAP_BODY_LIMIT} is received off-heap chunk by chunk
+ * as it arrives and handed over as a {@link BodyRequest}.
+ */
+public class StorageSession extends HttpSession {
+    public static final int HEAP_BODY_LIMIT = 64 * 1024;
+
+    private static final int MAX_HEADERS = 48;
+    private static final int STREAM_BUFFER_BYTES = 1024 * 1024;
+    private static final long STREAM_TIMEOUT_SECONDS = 60;
+    private static final byte[] CRLF = "\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private final int maxBodyLength;
+    private ByteBuffer body;
+
+    public StorageSession(Socket socket, HttpServer server, int maxBodyLength) {
+        super(socket, server);
+        this.maxBodyLength = maxBodyLength;
+    }
+
+    @Override
+    protected int getMaxRequestBodyLength() {
+        return maxBodyLength;
+    }
+
+    /**
+     * Same parsing as in {@link HttpSession}, except for where the body goes.
+     */
+    @Override
+    protected int processHttpBuffer(byte[] buffer, int length) throws IOException, HttpException {
+        int lineStart = 0;
+        if (body != null) {
+            lineStart = readBody(buffer, 0, length);
+            if (body.hasRemaining()) {
+                return length;
+            }
+            finishBody();
+            if (closing) {
+                return lineStart;
+            }
+            handleParsedRequest();
+        }
+
+        for (int i = lineStart; i < length; i++) {
+            if (buffer[i] != '\n') {
+                continue;
+            }
+            int lineLength = i - lineStart;
+            if (i > 0 && buffer[i - 1] == '\r') {
+                lineLength--;
+            }
+            i++;
+            if (parsing == null) {
+                parsing = parseRequest(buffer, lineStart, lineLength);
+            } else if (lineLength > 0) {
+                if (parsing.getHeaderCount() < MAX_HEADERS) {
+                    parsing.addHeader(Utf8.read(buffer, lineStart, lineLength));
+                }
+            } else {
+                String contentLength = parsing.getHeader("Content-Length: ");
+                if (contentLength != null) {
+                    startBody(contentLength);
+                    i += readBody(buffer, i, length);
+                    if (body.hasRemaining()) {
+                        return i;
+                    }
+                    finishBody();
+                }
+                if (closing) {
+                    return i;
+                }
+                handleParsedRequest();
+            }
+            lineStart = i;
+        }
+        return lineStart;
+    }
+
+    private void startBody(String contentLength) throws HttpException {
+        int size;
+        try {
+            size = Integer.parseInt(contentLength);
+        } catch (NumberFormatException e) {
+            throw new HttpException("Invalid Content-Length header");
+        }
+        if (size < 0) {
+            throw new HttpException("Invalid Content-Length header");
+        }
+        if (size > getMaxRequestBodyLength()) {
+            throw new BufferOverflowException();
+        }
+        if (size <= HEAP_BODY_LIMIT) {
+            byte[] array = new byte[size];
+            parsing.setBody(array);
+            body = ByteBuffer.wrap(array);
+        } else {
+            body = ByteBuffer.allocateDirect(size);
+        }
+    }
+
+    private int readBody(byte[] buffer, int offset, int length) {
+        int size = Math.min(length - offset, body.remaining());
+        body.put(buffer, offset, size);
+        return size;
+    }
+
+    private void finishBody() {
+        if (body.isDirect()) {
+            body.flip();
+            parsing = new BodyRequest(parsing, body);
+        }
+        body = null;
+    }
+
+    /**
+     * A {@link RangeResponse} is streamed by the worker handling the request: it reads the records
+     * and queues them outside of the session lock while the selector thread writes them out,
+     * and waits once {@link #STREAM_BUFFER_BYTES} are queued but not yet written. Until the stream ends
+     * the request is still being handled, so pipelined requests wait for their turn.
+     * <p>
+     * With requests handled in the selector threads there is no one to wait for, so the records
+     * are read there, one at a time as the socket takes them.
+     */
+    @Override
+    public void sendResponse(Response response) throws IOException {
+        if (!(response instanceof RangeResponse) || Thread.currentThread() instanceof SelectorThread) {
+            super.sendResponse(response);
+            return;
+        }
+        Request request = handling;
+        if (request == null) {
+            throw new IOException("Out of order response");
+        }
+        server.incRequestsProcessed();
+        String connection = request.getHeader("Connection: ");
+        boolean keepAlive = request.isHttp11()
+                ? !"close".equalsIgnoreCase(connection)
+                : "Keep-Alive".equalsIgnoreCase(connection);
+        response.addHeader(keepAlive ? "Connection: Keep-Alive" : "Connection: close");
+        byte[] head = response.toBytes(false);
+        write(head, 0, head.length);
+        if (request.getMethod() != Request.METHOD_HEAD) {
+            stream(((RangeResponse) response).getRecords());
+        }
+
+        synchronized (this) {
+            if (!keepAlive) {
+                scheduleClose();
+            }
+            handling = request = pipeline.pollFirst();
+            if (request == FIN) {
+                scheduleClose();
+            } else if (request != null) {
+                server.handleRequest(request, this);
+            }
+        }
+    }
+
+    /**
+     * A failed read throws before the last chunk, and the client sees the response is incomplete
+     * once the connection is closed.
+     */
+    private void stream(Iterator<Record> records) throws IOException {
+        Semaphore unwritten = new Semaphore(STREAM_BUFFER_BYTES);
+        try {
+            while (records.hasNext()) {
+                Record record = records.next();
+                if (record.getValue().isRemoved()) {
+                    continue;
+                }
+                int size = Math.min(RecordCodec.size(record.getKey(), record.getValue()), STREAM_BUFFER_BYTES);
+                if (!unwritten.tryAcquire(size, STREAM_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                    throw new SocketTimeoutException("Range stream is not read");
+                }
+                write(new RecordItem(record, unwritten, size));
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        write(LAST_CHUNK, 0, LAST_CHUNK.length);
+    }
+
+    @Override
+    protected void writeResponse(Response response, boolean includeBody) throws IOException {
+        if (response instanceof RangeResponse) {
+            byte[] head = response.toBytes(false);
+            write(head, 0, head.length);
+            if (includeBody) {
+                write(new RangeItem(((RangeResponse) response).getRecords()));
+            }
+            return;
+        }
+        if (!(response instanceof BufferResponse)) {
+            super.writeResponse(response, includeBody);
+            return;
+        }
+        byte[] head = response.toBytes(false);
+        write(head, 0, head.length);
+        ByteBuffer data = ((BufferResponse) response).getBuffer();
+        if (includeBody && data != null && data.hasRemaining()) {
+            write(new BufferItem(data));
+        }
+    }
+
+    /**
+     * A record as a chunk: the chunk size and the record up to its value from a small heap buffer,
+     * the value right from its own buffer, then the end of the chunk. Gives the bytes it held back
+     * to {@code unwritten}, if any, once it is written or dropped with the session.
+     */
+    private static class RecordItem extends QueueItem {
+        private final ByteBuffer[] parts;
+        private final Semaphore unwritten;
+        private final int permits;
+        private int current;
+
+        RecordItem(Record record, Semaphore unwritten, int permits) {
+            this.unwritten = unwritten;
+            this.permits = permits;
+            byte[] key = record.getKey();
+            ByteBuffer value = record.getValue().getBuffer();
+            byte[] size = Integer.toHexString(RecordCodec.size(key, record.getValue())).getBytes(StandardCharsets.US_ASCII);
+            ByteBuffer head = ByteBuffer.allocate(size.length + CRLF.length + RecordCodec.headSize(key));
+            head.put(size).put(CRLF);
+            RecordCodec.writeHead(head, key, record.getValue());
+            head.flip();
+            parts = new ByteBuffer[]{head, value.duplicate(), ByteBuffer.wrap(CRLF)};
+        }
+
+        @Override
+        public int remaining() {
+            int remaining = 0;
+            for (int i = current; i < parts.length; i++) {
+                remaining += parts[i].remaining();
+            }
+            return remaining;
+        }
+
+        @Override
+        public int write(Socket socket) throws IOException {
+            int total = 0;
+            for (; current < parts.length; current++) {
+                ByteBuffer part = parts[current];
+                if (!part.hasRemaining()) {
+                    continue;
+                }
+                int written = Sockets.write(socket, part);
+                if (written <= 0) {
+                    return total > 0 ? total : written;
+                }
+                total += written;
+                if (part.hasRemaining()) {
+                    return total;
+                }
+            }
+            return total;
+        }
+
+        @Override
+        public void release() {
+            if (unwritten != null) {
+                unwritten.release(permits);
+            }
+        }
+    }
+
+    /**
+     * Reads the next record only once the socket has taken the previous one.
+     */
+    private static class RangeItem extends QueueItem {
+        private final Iterator<Record> records;
+        private QueueItem chunk;
+        private boolean finished;
+
+        RangeItem(Iterator<Record> records) {
+            this.records = records;
+        }
+
+        @Override
+        public int remaining() {
+            if (chunk != null && chunk.remaining() > 0) {
+                return chunk.remaining();
+            }
+            return finished ? 0 : 1;
+        }
+
+        @Override
+        public int write(Socket socket) throws IOException {
+            int total = 0;
+            while (true) {
+                if (chunk == null || chunk.remaining() == 0) {
+                    if (finished) {
+                        return total;
+                    }
+                    chunk = nextChunk();
+                }
+                int written = chunk.write(socket);
+                if (written <= 0) {
+                    return total > 0 ? total : written;
+                }
+                total += written;
+                if (chunk.remaining() > 0) {
+                    return total;
+                }
+            }
+        }
+
+        private QueueItem nextChunk() throws IOException {
+            try {
+                while (records.hasNext()) {
+                    Record record = records.next();
+                    if (!record.getValue().isRemoved()) {
+                        return new RecordItem(record, null, 0);
+                    }
+                }
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            finished = true;
+            return new ArrayQueueItem(LAST_CHUNK, 0, LAST_CHUNK.length, 0);
+        }
+    }
+
+    private static class BufferItem extends QueueItem {
+        private final ByteBuffer buffer;
+
+        BufferItem(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int remaining() {
+            return buffer.remaining();
+        }
+
+        @Override
+        public int write(Socket socket) throws IOException {
+            return Sockets.write(socket, buffer);
+        }
+    }
+}
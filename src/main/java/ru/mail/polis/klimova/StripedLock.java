@@ -0,0 +1,55 @@
+package ru.mail.polis.klimova;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Fixed set of locks picked by key hash, so operations on different keys rarely contend.
+ */
+public class StripedLock {
+    private final Lock[] locks;
+
+    public StripedLock(int stripes) {
+        locks = new Lock[Integer.highestOneBit(Math.max(1, stripes - 1)) << 1];
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    @NotNull
+    public Lock get(@NotNull byte[] key) {
+        return locks[stripe(key)];
+    }
+
+    /**
+     * Locks the stripes of all the keys, always in the same order, so two batches can't deadlock.
+     *
+     * @return the held locks to unlock
+     */
+    @NotNull
+    public List<Lock> lockAll(@NotNull Collection<byte[]> keys) {
+        BitSet stripes = new BitSet(locks.length);
+        for (byte[] key : keys) {
+            stripes.set(stripe(key));
+        }
+        List<Lock> held = new ArrayList<>(stripes.cardinality());
+        for (int i = stripes.nextSetBit(0); i >= 0; i = stripes.nextSetBit(i + 1)) {
+            locks[i].lock();
+            held.add(locks[i]);
+        }
+        return held;
+    }
+
+    private int stripe(byte[] key) {
+        int hash = Arrays.hashCode(key);
+        hash ^= hash >>> 16;
+        return hash & (locks.length - 1);
+    }
+}
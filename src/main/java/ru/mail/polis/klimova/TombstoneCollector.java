@@ -0,0 +1,26 @@
+package ru.mail.polis.klimova;
+
+import java.io.IOException;
+
+/**
+ * Storage which purges tombstones older than the grace period of its {@link StorageConfig}.
+ * The grace period should be long enough for every replica to get the delete,
+ * otherwise a stale replica resurrects the key.
+ */
+public interface TombstoneCollector {
+    /**
+     * Purges the expired tombstones now rather than on the next scheduled run.
+     */
+    void collectGarbage() throws IOException;
+
+    /**
+     * @return tombstones purged since the storage was opened
+     */
+    long getPurgedTombstones();
+
+    /**
+     * @return bytes freed by compactions since the storage was opened, an estimate where the storage
+     * can't tell exactly
+     */
+    long getReclaimedBytes();
+}
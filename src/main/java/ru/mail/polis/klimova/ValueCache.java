@@ -0,0 +1,204 @@
+package ru.mail.polis.klimova;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import ru.mail.polis.Value;
+
+/**
+ * Bounded cache of values by key with CLOCK eviction and TinyLFU admission.
+ * <p>
+ * A hit only marks the entry as referenced. The clock hand gives a referenced entry
+ * a second chance and evicts the first one that is not. A new entry gets into a full cache
+ * only if the {@link FrequencySketch} says its key is asked for more often than the key
+ * it would evict, so a scan of cold keys doesn't flush the hot ones.
+ * <p>
+ * The size counts the keys, the values and an estimate of the index overhead.
+ * Values are copied into the cache, to direct memory if it is off-heap.
+ */
+public class ValueCache {
+    /**
+     * Cached answer for a key that has never been written.
+     */
+    public static final Value ABSENT = Value.removed(Long.MIN_VALUE);
+
+    // Map node, entry and key objects on the heap
+    private static final int ENTRY_OVERHEAD = 96;
+    private static final int AVERAGE_ENTRY_SIZE = 1024;
+    // An entry bigger than this part of the cache is not worth the hot entries it would evict
+    private static final int MAX_ENTRY_SHARE = 16;
+
+    private final long capacity;
+    private final boolean offHeap;
+    private final Map<ByteBuffer, Entry> entries = new ConcurrentHashMap<>();
+    private final FrequencySketch sketch;
+    private final ArrayDeque<Entry> clock = new ArrayDeque<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private long size;
+    private int dead;
+
+    public ValueCache(long capacity, boolean offHeap) {
+        this.capacity = capacity;
+        this.offHeap = offHeap;
+        sketch = new FrequencySketch((int) Math.min(Integer.MAX_VALUE, capacity / AVERAGE_ENTRY_SIZE));
+    }
+
+    /**
+     * @return the cached value, {@link #ABSENT} for a key known to be never written,
+     * or {@code null} if the key is not cached
+     */
+    @Nullable
+    public Value get(@NotNull byte[] key) {
+        ByteBuffer wrapped = ByteBuffer.wrap(key);
+        sketch.increment(wrapped.hashCode());
+        Entry entry = entries.get(wrapped);
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        entry.referenced = true;
+        hits.incrementAndGet();
+        return entry.value;
+    }
+
+    /**
+     * Same as {@link #get} but neither counted as an access nor as a hit or a miss.
+     */
+    @Nullable
+    public Value peek(@NotNull byte[] key) {
+        Entry entry = entries.get(ByteBuffer.wrap(key));
+        return entry == null ? null : entry.value;
+    }
+
+    /**
+     * Caches the value if the admission policy lets it in.
+     *
+     * @return the value to use, the cached copy if it has been cached
+     */
+    @NotNull
+    public Value put(@NotNull byte[] key, @NotNull Value value) {
+        return put(key, value, true);
+    }
+
+    /**
+     * Same as {@link #put} but caches the value itself rather than a copy,
+     * for a value no one else is going to modify.
+     */
+    @NotNull
+    public Value putOwned(@NotNull byte[] key, @NotNull Value value) {
+        return put(key, value, false);
+    }
+
+    private Value put(byte[] key, Value value, boolean copy) {
+        long weight = ENTRY_OVERHEAD + key.length + (value.isRemoved() ? 0 : value.getBuffer().remaining());
+        if (weight > capacity / MAX_ENTRY_SHARE) {
+            return value;
+        }
+        ByteBuffer wrapped = ByteBuffer.wrap(key.clone());
+        int frequency = sketch.frequency(wrapped.hashCode());
+        synchronized (this) {
+            remove(wrapped);
+            while (size + weight > capacity) {
+                Entry victim = nextVictim();
+                if (frequency <= sketch.frequency(victim.key.hashCode())) {
+                    clock.addLast(victim);
+                    return value;
+                }
+                entries.remove(victim.key);
+                victim.removed = true;
+                size -= victim.weight;
+                evictions.incrementAndGet();
+            }
+            Entry entry = new Entry(wrapped, copy ? copy(value) : value, weight);
+            entries.put(wrapped, entry);
+            clock.addLast(entry);
+            size += weight;
+            return entry.value;
+        }
+    }
+
+    public synchronized void invalidate(@NotNull byte[] key) {
+        remove(ByteBuffer.wrap(key));
+    }
+
+    private void remove(ByteBuffer key) {
+        Entry entry = entries.remove(key);
+        if (entry == null) {
+            return;
+        }
+        entry.removed = true;
+        size -= entry.weight;
+        // Removed entries are dropped from the clock lazily, unless they pile up
+        if (++dead > entries.size()) {
+            clock.removeIf(e -> e.removed);
+            dead = 0;
+        }
+    }
+
+    /**
+     * Moves the clock hand to the first live entry that has not been referenced since the last pass
+     * and takes it off the clock.
+     */
+    private Entry nextVictim() {
+        while (true) {
+            Entry entry = clock.pollFirst();
+            if (entry.removed) {
+                dead--;
+            } else if (entry.referenced) {
+                entry.referenced = false;
+                clock.addLast(entry);
+            } else {
+                return entry;
+            }
+        }
+    }
+
+    private Value copy(Value value) {
+        if (value.isRemoved()) {
+            return value;
+        }
+        ByteBuffer data = value.getBuffer();
+        ByteBuffer copy = offHeap ? ByteBuffer.allocateDirect(data.remaining()) : ByteBuffer.allocate(data.remaining());
+        copy.put(data);
+        copy.flip();
+        return Value.present(copy, value.getTimestamp());
+    }
+
+    public synchronized long sizeInBytes() {
+        return size;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    private static class Entry {
+        private final ByteBuffer key;
+        private final Value value;
+        private final long weight;
+        private volatile boolean referenced;
+        private boolean removed;
+
+        Entry(ByteBuffer key, Value value, long weight) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+}
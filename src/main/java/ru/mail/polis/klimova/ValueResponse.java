@@ -0,0 +1,28 @@
+package ru.mail.polis.klimova;
+
+import org.jetbrains.annotations.NotNull;
+
+import ru.mail.polis.Value;
+
+/**
+ * Response carrying a stored value without copying it into a body array:
+ * {@code 200} with the value data or {@code 404} for a tombstone.
+ */
+public class ValueResponse extends BufferResponse {
+    private final Value value;
+
+    public ValueResponse(@NotNull Value value) {
+        super(value.isRemoved() ? NOT_FOUND : OK, value.isRemoved() ? null : value.getBuffer());
+        this.value = value;
+    }
+
+    @NotNull
+    public Value getValue() {
+        return value;
+    }
+
+    @Override
+    public byte[] getBody() {
+        return value.isRemoved() ? EMPTY : value.getData();
+    }
+}
@@ -0,0 +1,298 @@
+package ru.mail.polis.klimova;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+
+import org.jetbrains.annotations.NotNull;
+
+import ru.mail.polis.Record;
+import ru.mail.polis.Value;
+
+/**
+ * Log of the writes of one memtable, in {@link RecordCodec} form.
+ * <p>
+ * After a header every record is written as {@code [size][CRC32][record]},
+ * and the replay stops at the first record which is torn or doesn't match its checksum.
+ * <p>
+ * Writes are made durable with group commit: a writer {@link #append appends} its record
+ * to the file and then {@link #sync waits} for it. The first waiter becomes the leader:
+ * it lets more records come for the sync interval or until enough bytes are pending, syncs them
+ * with one {@code fsync} and wakes all the writers it covered.
+ * <p>
+ * Records go to the file through a small reused buffer and the checksum is updated as they go,
+ * so a large value is never copied to the heap whole, neither on append nor on replay.
+ * <p>
+ * The file is written through a stream rather than a channel: an interrupted writer
+ * would close a channel for everyone else.
+ */
+public class WriteAheadLog implements Closeable {
+    public static final String SUFFIX = ".log";
+    // "WAL3", the records are framed one by one
+    private static final int MAGIC = 0x57414C33;
+    private static final int FRAME_HEADER_SIZE = 2 * Integer.BYTES;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int COPY_CHUNK_SIZE = 8 * 1024;
+    private static final byte[] EMPTY = new byte[0];
+
+    private final Path path;
+    private final FileOutputStream file;
+    private final DataOutputStream out;
+    private final long syncIntervalNanos;
+    private final int maxBatchBytes;
+    private final Lock lock = new ReentrantLock();
+    private final Condition batchFull = lock.newCondition();
+    private final Condition batchSynced = lock.newCondition();
+
+    private long pendingBytes;
+    private long appended;
+    private long synced;
+    private boolean leading;
+    private boolean closed;
+    private IOException failure;
+
+    public WriteAheadLog(@NotNull Path path, long syncIntervalNanos, int maxBatchBytes) throws IOException {
+        this.path = path;
+        this.syncIntervalNanos = syncIntervalNanos;
+        this.maxBatchBytes = maxBatchBytes;
+        file = new FileOutputStream(Files.createFile(path).toFile());
+        out = new DataOutputStream(new BufferedOutputStream(file, BUFFER_SIZE));
+        // Synced along with the first records
+        out.writeInt(MAGIC);
+    }
+
+    /**
+     * Writes the record to the file without waiting for it to reach the disk.
+     *
+     * @return ticket to {@link #sync} on
+     */
+    public long append(@NotNull ByteBuffer key, @NotNull Value value) throws IOException {
+        byte[] keyBytes = Cell.toArray(key);
+        ByteBuffer head = ByteBuffer.allocate(RecordCodec.headSize(keyBytes));
+        RecordCodec.writeHead(head, keyBytes, value);
+        CRC32 checksum = new CRC32();
+        checksum.update(head.array());
+        if (!value.isRemoved()) {
+            checksum.update(value.getBuffer());
+        }
+        int size = RecordCodec.size(keyBytes, value);
+        lock.lock();
+        try {
+            if (closed) {
+                throw new IOException("Log is closed");
+            }
+            if (failure != null) {
+                throw new IOException("Log write failed", failure);
+            }
+            try {
+                out.writeInt(size);
+                out.writeInt((int) checksum.getValue());
+                out.write(head.array());
+                if (!value.isRemoved()) {
+                    Cell.write(out, value.getBuffer());
+                }
+            } catch (IOException e) {
+                // Whatever part of the record got to the file fails its checksum on replay
+                failure = e;
+                batchSynced.signalAll();
+                throw e;
+            }
+            pendingBytes += FRAME_HEADER_SIZE + size;
+            if (pendingBytes >= maxBatchBytes) {
+                batchFull.signal();
+            }
+            return ++appended;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns once the record with the ticket is on disk.
+     */
+    public void sync(long ticket) throws IOException {
+        lock.lock();
+        try {
+            while (synced < ticket) {
+                if (failure != null) {
+                    throw new IOException("Log write failed", failure);
+                }
+                if (leading) {
+                    batchSynced.awaitUninterruptibly();
+                } else {
+                    lead();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Lets the records come for the sync interval, then syncs them with the lock released,
+     * so the writers arriving meanwhile append for the next sync.
+     */
+    private void lead() {
+        leading = true;
+        try {
+            long left = syncIntervalNanos;
+            while (left > 0 && pendingBytes < maxBatchBytes) {
+                try {
+                    left = batchFull.awaitNanos(left);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            long upTo = appended;
+            try {
+                out.flush();
+            } catch (IOException e) {
+                failure = e;
+                return;
+            }
+            pendingBytes = 0;
+            lock.unlock();
+            try {
+                file.getFD().sync();
+            } catch (IOException e) {
+                failure = e;
+            } finally {
+                lock.lock();
+            }
+            if (failure == null) {
+                synced = upTo;
+            }
+        } finally {
+            leading = false;
+            batchSynced.signalAll();
+        }
+    }
+
+    /**
+     * Syncs what is pending, so every appended record is durable, and closes the file.
+     */
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            while (leading) {
+                batchSynced.awaitUninterruptibly();
+            }
+            if (failure == null) {
+                try {
+                    out.flush();
+                    file.getFD().sync();
+                    synced = appended;
+                } catch (IOException e) {
+                    failure = e;
+                }
+            }
+            pendingBytes = 0;
+            batchSynced.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        file.close();
+        if (failure != null) {
+            throw new IOException("Log write failed", failure);
+        }
+    }
+
+    /**
+     * Closes the log and removes its file, once the records are persisted elsewhere.
+     */
+    public void delete() throws IOException {
+        close();
+        Files.delete(path);
+    }
+
+    /**
+     * Hands the records of a log file to {@code consumer} in the order they were written,
+     * up to the first record torn by a crash or corrupted.
+     * <p>
+     * A value is read into a reused direct buffer, which is only valid during the call
+     * of the consumer: the consumer is to copy what it keeps.
+     *
+     * @throws IOException if the file is not a log
+     */
+    public static void replay(@NotNull Path path, @NotNull Consumer<Record> consumer) throws IOException {
+        long left = Files.size(path);
+        try (InputStream file = new BufferedInputStream(Files.newInputStream(path))) {
+            DataInputStream in = new DataInputStream(file);
+            if (left < Integer.BYTES || in.readInt() != MAGIC) {
+                throw new IOException("Not a write-ahead log: " + path);
+            }
+            left -= Integer.BYTES;
+            CRC32 actual = new CRC32();
+            DataInputStream record = new DataInputStream(new CheckedInputStream(file, actual));
+            byte[] chunk = new byte[COPY_CHUNK_SIZE];
+            ByteBuffer value = ByteBuffer.allocateDirect(0);
+            while (left >= FRAME_HEADER_SIZE) {
+                int size = in.readInt();
+                int checksum = in.readInt();
+                left -= FRAME_HEADER_SIZE;
+                if (size < RecordCodec.headSize(EMPTY) || size > left) {
+                    // A torn record, or a corrupted size
+                    return;
+                }
+                left -= size;
+                actual.reset();
+                int keySize = record.readInt();
+                if (keySize < 0 || keySize > size - RecordCodec.headSize(EMPTY)) {
+                    corrupted(path);
+                    return;
+                }
+                byte[] key = new byte[keySize];
+                record.readFully(key);
+                long timestamp = record.readLong();
+                int valueSize = record.readInt();
+                int framedSize = size - RecordCodec.headSize(key);
+                boolean removed = valueSize == RecordCodec.TOMBSTONE && framedSize == 0;
+                if (!removed && valueSize != framedSize) {
+                    corrupted(path);
+                    return;
+                }
+                if (!removed) {
+                    if (value.capacity() < valueSize) {
+                        value = ByteBuffer.allocateDirect(valueSize);
+                    }
+                    value.clear();
+                    while (value.position() < valueSize) {
+                        int read = Math.min(chunk.length, valueSize - value.position());
+                        record.readFully(chunk, 0, read);
+                        value.put(chunk, 0, read);
+                    }
+                    value.flip();
+                }
+                if ((int) actual.getValue() != checksum) {
+                    corrupted(path);
+                    return;
+                }
+                consumer.accept(new Record(key, removed ? Value.removed(timestamp) : Value.present(value, timestamp)));
+            }
+        }
+    }
+
+    private static void corrupted(Path path) {
+        System.err.println("Corrupted record in " + path + ", the rest of the log is skipped");
+    }
+}
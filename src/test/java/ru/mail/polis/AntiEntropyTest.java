@@ -0,0 +1,185 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import ru.mail.polis.klimova.MerkleTree;
+import ru.mail.polis.klimova.Service;
+import ru.mail.polis.klimova.ServiceConfig;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for {@link MerkleTree} and anti-entropy between two nodes
+ */
+class AntiEntropyTest extends TestBase {
+    private static final Duration TIMEOUT = Duration.ofMinutes(1);
+    private static final long INTERVAL = 200;
+    private static final int KEYS = 100;
+
+    private File data0;
+    private File data1;
+    private KVDao dao0;
+    private KVDao dao1;
+
+    @BeforeEach
+    void beforeEach() throws IOException {
+        data0 = Files.createTempDirectory();
+        data1 = Files.createTempDirectory();
+        dao0 = KVDaoFactory.create(data0);
+        dao1 = KVDaoFactory.create(data1);
+    }
+
+    @AfterEach
+    void afterEach() throws IOException {
+        dao0.close();
+        dao1.close();
+        Files.recursiveDelete(data0);
+        Files.recursiveDelete(data1);
+    }
+
+    @Test
+    void treeFindsDifferingBucket() {
+        final MerkleTree left = new MerkleTree();
+        final MerkleTree right = new MerkleTree();
+        for (int i = 0; i < KEYS; i++) {
+            final Record record = new Record(randomKey(), Value.present(randomValue(), i));
+            left.add(record);
+            right.add(record);
+        }
+        assertEquals(left.seal().getRoot(), right.seal().getRoot());
+
+        final byte[] key = randomKey();
+        final MerkleTree removed = new MerkleTree();
+        removed.add(new Record(key, Value.removed(1)));
+        final MerkleTree present = new MerkleTree();
+        present.add(new Record(key, Value.present(randomValue(), 1)));
+        assertNotEquals(removed.seal().getRoot(), present.seal().getRoot());
+
+        final long[] removedLeaves = removed.getLeaves();
+        final long[] presentLeaves = present.getLeaves();
+        for (int i = 0; i < MerkleTree.LEAVES; i++) {
+            assertEquals(i != MerkleTree.bucket(key), removedLeaves[i] == presentLeaves[i]);
+        }
+
+        // Only the nodes on the way from the root to the leaf differ
+        for (int index = 1; index < 2 * MerkleTree.LEAVES; index++) {
+            boolean onPath = false;
+            for (int node = MerkleTree.LEAVES + MerkleTree.bucket(key); node > 0; node /= 2) {
+                onPath |= node == index;
+            }
+            assertEquals(!onPath, removed.getNode(index) == present.getNode(index));
+        }
+    }
+
+    @Test
+    void directValueDigest() {
+        final byte[] key = randomKey();
+        final byte[] value = randomValue();
+        final ByteBuffer direct = ByteBuffer.allocateDirect(value.length + 1);
+        direct.put((byte) 0).put(value).flip().position(1);
+
+        final MerkleTree heap = new MerkleTree();
+        heap.add(new Record(key, Value.present(value, 1)));
+        final MerkleTree offHeap = new MerkleTree();
+        offHeap.add(new Record(key, Value.present(direct, 1)));
+        assertEquals(heap.seal().getRoot(), offHeap.seal().getRoot());
+    }
+
+    @Test
+    void syncBothWays() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final int port0 = randomPort();
+            final int port1 = randomPort();
+            final Set<String> topology = new LinkedHashSet<>(Arrays.asList(endpoint(port0), endpoint(port1)));
+
+            // Diverge the nodes behind the services' back
+            final byte[] written = randomKey();
+            final byte[] value = randomValue();
+            dao0.upsert(written, value);
+            final byte[] removed = randomKey();
+            dao0.upsert(removed, randomValue());
+            dao1.upsert(removed, randomValue());
+            Thread.sleep(10);
+            dao1.remove(removed);
+
+            final Service service0 = new Service(port0, dao0, topology, config());
+            final Service service1 = new Service(port1, dao1, topology, config());
+            service0.start();
+            service1.start();
+            try {
+                while (!exists(dao1, written) || !dao0.getValue(removed).isRemoved()) {
+                    Thread.sleep(INTERVAL);
+                }
+                assertArrayEquals(value, dao1.get(written));
+                assertThrows(NoSuchElementException.class, () -> dao0.get(removed));
+            } finally {
+                service0.stop();
+                service1.stop();
+            }
+        });
+    }
+
+    @Test
+    void syncInPages() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final int port0 = randomPort();
+            final int port1 = randomPort();
+            final Set<String> topology = new LinkedHashSet<>(Arrays.asList(endpoint(port0), endpoint(port1)));
+
+            // Several pages of records, each larger than a heap body
+            final List<byte[]> keys = new ArrayList<>();
+            final List<byte[]> values = new ArrayList<>();
+            for (int i = 0; i < 12; i++) {
+                keys.add(randomKey());
+                values.add(randomValue(256 * 1024));
+                dao0.upsert(keys.get(i), values.get(i));
+            }
+
+            final Service service0 = new Service(port0, dao0, topology, config());
+            final Service service1 = new Service(port1, dao1, topology, config());
+            service0.start();
+            service1.start();
+            try {
+                for (int i = 0; i < keys.size(); i++) {
+                    while (!exists(dao1, keys.get(i))) {
+                        Thread.sleep(INTERVAL);
+                    }
+                    assertArrayEquals(values.get(i), dao1.get(keys.get(i)));
+                }
+            } finally {
+                service0.stop();
+                service1.stop();
+            }
+        });
+    }
+
+    private ServiceConfig config() {
+        return new ServiceConfig(
+                1, 1, 2, 16,
+                null, 1000, ServiceConfig.DEFAULT_MAX_HINTS_BYTES,
+                INTERVAL, 0,
+                ServiceConfig.DEFAULT_MAX_BODY_LENGTH);
+    }
+
+    private static boolean exists(final KVDao dao, final byte[] key) throws IOException {
+        try {
+            dao.getValue(key);
+            return true;
+        } catch (NoSuchElementException e) {
+            return false;
+        }
+    }
+}
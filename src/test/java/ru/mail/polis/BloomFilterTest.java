@@ -0,0 +1,38 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+
+import ru.mail.polis.klimova.BloomFilter;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests for {@link BloomFilter}
+ */
+class BloomFilterTest extends TestBase {
+    private static final int KEYS = 10_000;
+
+    @Test
+    void noFalseNegativesAndFewFalsePositives() {
+        final long[] hashes = new long[KEYS];
+        final ByteBuffer[] keys = new ByteBuffer[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = ByteBuffer.wrap(("present" + i).getBytes());
+            hashes[i] = BloomFilter.hash(keys[i]);
+        }
+        final BloomFilter filter = BloomFilter.create(hashes, KEYS);
+
+        for (final ByteBuffer key : keys) {
+            assertTrue(filter.mightContain(key));
+        }
+        int falsePositives = 0;
+        for (int i = 0; i < KEYS; i++) {
+            if (filter.mightContain(ByteBuffer.wrap(("absent" + i).getBytes()))) {
+                falsePositives++;
+            }
+        }
+        assertTrue(falsePositives < KEYS * 3 / 100, "Too many false positives: " + falsePositives);
+    }
+}
@@ -0,0 +1,109 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.NoSuchElementException;
+
+import ru.mail.polis.klimova.CachingDao;
+import ru.mail.polis.klimova.LSMDao;
+import ru.mail.polis.klimova.ValueCache;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Hot key cache tests for {@link CachingDao}
+ */
+class CachingDaoTest extends TestBase {
+    private static final long CAPACITY = 256 * 1024;
+    private static final int VALUE_LENGTH = 1024;
+
+    private File data;
+    private LSMDao storage;
+    private ValueCache cache;
+    private KVDao dao;
+
+    @BeforeEach
+    void beforeEach() throws IOException {
+        data = Files.createTempDirectory();
+        storage = new LSMDao(data, Long.MAX_VALUE, 2);
+        cache = new ValueCache(CAPACITY, true);
+        dao = new CachingDao(storage, cache);
+    }
+
+    @AfterEach
+    void afterEach() throws IOException {
+        dao.close();
+        Files.recursiveDelete(data);
+    }
+
+    @Test
+    void hitAndInvalidate() throws IOException {
+        final byte[] key = randomKey();
+        final byte[] value = randomValue();
+        dao.upsert(key, value);
+        assertArrayEquals(value, dao.get(key));
+
+        // Written past the cache, so only a hit returns the old value
+        storage.upsert(key, randomValue());
+        assertArrayEquals(value, dao.get(key));
+        assertEquals(1, cache.getHits());
+
+        final byte[] updated = randomValue();
+        dao.upsert(key, updated);
+        assertArrayEquals(updated, dao.get(key));
+    }
+
+    @Test
+    void absentAndRemoved() throws IOException {
+        final byte[] absent = randomKey();
+        assertThrows(NoSuchElementException.class, () -> dao.get(absent));
+        storage.upsert(absent, randomValue());
+        assertThrows(NoSuchElementException.class, () -> dao.get(absent));
+
+        final byte[] removed = randomKey();
+        dao.upsert(removed, randomValue());
+        dao.remove(removed);
+        assertTrue(dao.getValue(removed).isRemoved());
+        storage.upsert(removed, randomValue());
+        assertTrue(dao.getValue(removed).isRemoved());
+        assertEquals(2, cache.getHits());
+    }
+
+    @Test
+    void hotKeysSurviveScan() throws IOException {
+        final int hotKeys = 32;
+        for (int i = 0; i < hotKeys; i++) {
+            dao.upsert(key("hot", i), randomValue(VALUE_LENGTH));
+        }
+        for (int round = 0; round < 8; round++) {
+            for (int i = 0; i < hotKeys; i++) {
+                dao.get(key("hot", i));
+            }
+        }
+
+        // Every cold key is read once, ten times the capacity in total
+        final int coldKeys = (int) (10 * CAPACITY / VALUE_LENGTH);
+        for (int i = 0; i < coldKeys; i++) {
+            dao.upsert(key("cold", i), randomValue(VALUE_LENGTH));
+            dao.get(key("cold", i));
+            assertTrue(cache.sizeInBytes() <= CAPACITY);
+        }
+
+        final long hits = cache.getHits();
+        for (int i = 0; i < hotKeys; i++) {
+            dao.get(key("hot", i));
+        }
+        assertEquals(hits + hotKeys, cache.getHits());
+    }
+
+    private static byte[] key(final String prefix, final int i) {
+        return (prefix + i).getBytes();
+    }
+}
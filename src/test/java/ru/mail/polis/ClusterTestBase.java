@@ -22,6 +22,7 @@ import one.nio.http.Response;
 import one.nio.net.ConnectionString;
 import org.jetbrains.annotations.NotNull;
 
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
@@ -110,4 +111,43 @@ abstract class ClusterTestBase extends TestBase {
             final int from) throws Exception {
         return client(node).put(path(key, ack, from), data);
     }
+
+    Response range(
+            final int node,
+            @NotNull final String start,
+            @NotNull final String end) throws Exception {
+        return client(node).get("/v0/entities?start=" + start + "&end=" + end);
+    }
+
+    @NotNull
+    String metrics(final int node) throws Exception {
+        final Response response = client(node).get("/v0/metrics");
+        if (response.getStatus() != 200) {
+            throw new IllegalStateException("Metrics are not available: " + response.getStatus());
+        }
+        return new String(response.getBody(), StandardCharsets.UTF_8);
+    }
+
+    @NotNull
+    private String batchPath(
+            final int ack,
+            final int from) {
+        return "/v0/batch?replicas=" + ack + "/" + from;
+    }
+
+    Response batchGet(
+            final int node,
+            @NotNull final byte[] keys,
+            final int ack,
+            final int from) throws Exception {
+        return client(node).post(batchPath(ack, from), keys);
+    }
+
+    Response batchUpsert(
+            final int node,
+            @NotNull final byte[] entries,
+            final int ack,
+            final int from) throws Exception {
+        return client(node).put(batchPath(ack, from), entries);
+    }
 }
@@ -0,0 +1,105 @@
+package ru.mail.polis;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+
+import ru.mail.polis.klimova.DBDao;
+import ru.mail.polis.klimova.StorageConfig;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+/**
+ * Schema upgrades of {@link DBDao}
+ */
+class DBDaoTest extends TestBase {
+    private File data;
+
+    @BeforeEach
+    void beforeEach() throws IOException {
+        data = Files.createTempDirectory();
+    }
+
+    @AfterEach
+    void afterEach() throws IOException {
+        Files.recursiveDelete(data);
+    }
+
+    @Test
+    void addRawSizeColumn() throws Exception {
+        final byte[] oldKey = randomKey();
+        final byte[] oldValue = randomValue();
+        // The table as it was before values were compressed
+        final JdbcDataSource dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:" + data.getPath() + "/db;mode=MySQL;DB_CLOSE_DELAY=0");
+        try (Connection connection = dataSource.getConnection();
+             Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE KVSTORAGE(kv_key VARBINARY NOT NULL, kv_value BLOB, "
+                    + "kv_timestamp BIGINT, kv_deleted boolean)");
+            statement.execute("ALTER TABLE KVSTORAGE ADD PRIMARY KEY (kv_key)");
+            insert(connection, oldKey, oldValue);
+        }
+
+        final byte[] newKey = randomKey();
+        final byte[] newValue = new byte[4 * StorageConfig.DEFAULT_COMPRESSION_THRESHOLD];
+        Arrays.fill(newValue, (byte) 'a');
+        try (KVDao dao = new DBDao(data, StorageConfig.defaults())) {
+            assertArrayEquals(oldValue, dao.get(oldKey));
+            dao.upsert(newKey, newValue);
+        }
+        try (KVDao dao = new DBDao(data, StorageConfig.defaults())) {
+            assertArrayEquals(oldValue, dao.get(oldKey));
+            assertArrayEquals(newValue, dao.get(newKey));
+        }
+    }
+
+    @Test
+    void convertTextKeysAndShortValues() throws Exception {
+        final byte[] oldKey = {'k', (byte) 0x80, (byte) 0xFF, 0};
+        final byte[] oldValue = randomValue();
+        // The table as it was before keys were binary, the key bytes are set as they were then
+        final JdbcDataSource dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:" + data.getPath() + "/db;mode=MySQL;DB_CLOSE_DELAY=0");
+        try (Connection connection = dataSource.getConnection();
+             Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE KVSTORAGE(kv_key VARCHAR (256) NOT NULL, kv_value blob (1024), "
+                    + "kv_timestamp BIGINT, kv_deleted boolean)");
+            statement.execute("ALTER TABLE KVSTORAGE ADD PRIMARY KEY (kv_key)");
+            insert(connection, oldKey, oldValue);
+        }
+
+        final byte[] longKey = new byte[1024];
+        Arrays.fill(longKey, (byte) 0xFE);
+        final byte[] largeValue = randomValue(64 * 1024);
+        try (KVDao dao = new DBDao(data, StorageConfig.defaults())) {
+            assertArrayEquals(oldValue, dao.get(oldKey));
+            dao.upsert(longKey, largeValue);
+        }
+        try (KVDao dao = new DBDao(data, StorageConfig.defaults())) {
+            assertArrayEquals(oldValue, dao.get(oldKey));
+            assertArrayEquals(largeValue, dao.get(longKey));
+        }
+    }
+
+    private static void insert(
+            final Connection connection,
+            final byte[] key,
+            final byte[] value) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(
+                "INSERT INTO KVSTORAGE(kv_key, kv_value, kv_timestamp, kv_deleted) VALUES (?, ?, ?, FALSE)")) {
+            statement.setBytes(1, key);
+            statement.setBytes(2, value);
+            statement.setLong(3, System.currentTimeMillis());
+            statement.execute();
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import ru.mail.polis.klimova.HashRing;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Key placement tests for {@link HashRing}
+ */
+class HashRingTest extends TestBase {
+    private static final int NODES = 5;
+    private static final int KEYS = 10_000;
+
+    private static List<String> hosts() {
+        final List<String> hosts = new ArrayList<>();
+        for (int i = 0; i < NODES; i++) {
+            hosts.add(endpoint(8080 + i));
+        }
+        return hosts;
+    }
+
+    @Test
+    void sameRingForAnyOrder() {
+        final List<String> hosts = hosts();
+        final HashRing ring = new HashRing(hosts);
+        Collections.reverse(hosts);
+        final HashRing reversed = new HashRing(hosts);
+        for (int i = 0; i < 100; i++) {
+            final byte[] key = randomKey();
+            assertEquals(ring.owners(key, NODES), reversed.owners(key, NODES));
+        }
+    }
+
+    @Test
+    void distinctNestedOwners() {
+        final HashRing ring = new HashRing(hosts());
+        for (int i = 0; i < 100; i++) {
+            final byte[] key = randomKey();
+            final List<String> all = ring.owners(key, NODES + 1);
+            assertEquals(NODES, all.size());
+            assertEquals(NODES, new HashSet<>(all).size());
+            for (int from = 1; from <= NODES; from++) {
+                assertEquals(all.subList(0, from), ring.owners(key, from));
+            }
+        }
+    }
+
+    @Test
+    void evenSpread() {
+        final HashRing ring = new HashRing(hosts());
+        final Map<String, Integer> primaries = new HashMap<>();
+        for (int i = 0; i < KEYS; i++) {
+            primaries.merge(ring.owners(randomId().getBytes(), 1).get(0), 1, Integer::sum);
+        }
+        assertEquals(NODES, primaries.size());
+        for (final int count : primaries.values()) {
+            assertTrue(count > KEYS / NODES / 2, "Too few keys on a node: " + count);
+            assertTrue(count < KEYS / NODES * 2, "Too many keys on a node: " + count);
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package ru.mail.polis;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import ru.mail.polis.klimova.HintStore;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Delivery and limits of {@link HintStore}
+ */
+class HintStoreTest extends TestBase {
+    private static final String HOST = "http://localhost:8080";
+    private static final long MAX_BYTES = 1024 * 1024;
+
+    private File dir;
+
+    @BeforeEach
+    void beforeEach() throws IOException {
+        dir = Files.createTempDirectory();
+    }
+
+    @AfterEach
+    void afterEach() throws IOException {
+        Files.recursiveDelete(dir);
+    }
+
+    @NotNull
+    private static List<byte[]> replay(
+            @NotNull final HintStore hints,
+            final int limit) throws IOException {
+        final List<byte[]> delivered = new ArrayList<>();
+        hints.replay(HOST, (key, value) -> {
+            if (delivered.size() == limit) {
+                return false;
+            }
+            delivered.add(key);
+            return true;
+        });
+        return delivered;
+    }
+
+    @Test
+    void partialReplayKeepsTheRest() throws IOException {
+        try (HintStore hints = new HintStore(dir.toPath(), MAX_BYTES)) {
+            for (int i = 0; i < 3; i++) {
+                hints.add(HOST, new byte[]{(byte) i}, Value.present(randomValue(), i));
+            }
+
+            assertEquals(1, replay(hints, 1).size());
+            assertTrue(hints.hasHints(HOST));
+
+            final List<byte[]> rest = replay(hints, Integer.MAX_VALUE);
+            assertEquals(2, rest.size());
+            assertArrayEquals(new byte[]{1}, rest.get(0));
+            assertArrayEquals(new byte[]{2}, rest.get(1));
+            assertFalse(hints.hasHints(HOST));
+            assertEquals(0, hints.sizeInBytes());
+        }
+    }
+
+    @Test
+    void addedDuringReplay() throws IOException {
+        try (HintStore hints = new HintStore(dir.toPath(), MAX_BYTES)) {
+            hints.add(HOST, new byte[]{0}, Value.removed(1));
+            final List<byte[]> delivered = new ArrayList<>();
+            hints.replay(HOST, (key, value) -> {
+                try {
+                    hints.add(HOST, new byte[]{1}, Value.removed(2));
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+                return delivered.add(key);
+            });
+            assertEquals(1, delivered.size());
+
+            final List<byte[]> next = replay(hints, Integer.MAX_VALUE);
+            assertEquals(1, next.size());
+            assertArrayEquals(new byte[]{1}, next.get(0));
+        }
+    }
+
+    @Test
+    void fullStoreDropsHints() throws IOException {
+        try (HintStore hints = new HintStore(dir.toPath(), 1000)) {
+            for (int i = 0; i < 20; i++) {
+                hints.add(HOST, new byte[]{(byte) i}, Value.present(randomValue(100), i));
+            }
+            assertTrue(hints.sizeInBytes() <= 1000);
+            assertEquals(20 - replay(hints, Integer.MAX_VALUE).size(), hints.getDropped());
+            assertEquals(0, hints.sizeInBytes());
+        }
+    }
+
+    @Test
+    void tornTailIsCut() throws IOException {
+        try (HintStore hints = new HintStore(dir.toPath(), MAX_BYTES)) {
+            hints.add(HOST, new byte[]{0}, Value.present(randomValue(), 1));
+            hints.add(HOST, new byte[]{1}, Value.present(randomValue(), 2));
+        }
+        final File[] files = dir.listFiles();
+        assertEquals(1, files.length);
+        try (FileOutputStream out = new FileOutputStream(files[0], true)) {
+            out.write(new byte[]{0, 0, 0, 42, 1, 2});
+        }
+
+        try (HintStore hints = new HintStore(dir.toPath(), MAX_BYTES)) {
+            hints.add(HOST, new byte[]{2}, Value.removed(3));
+            assertEquals(3, replay(hints, Integer.MAX_VALUE).size());
+            assertFalse(hints.hasHints(HOST));
+        }
+    }
+
+    @Test
+    void garbageTailIsCut() throws IOException {
+        try (HintStore hints = new HintStore(dir.toPath(), MAX_BYTES)) {
+            hints.add(HOST, new byte[]{0}, Value.present(randomValue(), 1));
+        }
+        final File[] files = dir.listFiles();
+        assertEquals(1, files.length);
+        try (FileOutputStream out = new FileOutputStream(files[0], true)) {
+            out.write(randomValue(4096));
+            out.write(new byte[4096]);
+        }
+
+        try (HintStore hints = new HintStore(dir.toPath(), MAX_BYTES)) {
+            hints.add(HOST, new byte[]{1}, Value.removed(2));
+            final List<byte[]> delivered = replay(hints, Integer.MAX_VALUE);
+            assertEquals(2, delivered.size());
+            assertArrayEquals(new byte[]{0}, delivered.get(0));
+            assertArrayEquals(new byte[]{1}, delivered.get(1));
+            assertEquals(0, hints.sizeInBytes());
+        }
+    }
+
+    @Test
+    void zeroTailIsCut() throws IOException {
+        try (HintStore hints = new HintStore(dir.toPath(), MAX_BYTES)) {
+            hints.add(HOST, new byte[]{0}, Value.present(randomValue(), 1));
+        }
+        final File[] files = dir.listFiles();
+        try (FileOutputStream out = new FileOutputStream(files[0], true)) {
+            out.write(new byte[4096]);
+        }
+
+        try (HintStore hints = new HintStore(dir.toPath(), MAX_BYTES)) {
+            final List<byte[]> delivered = replay(hints, Integer.MAX_VALUE);
+            assertEquals(1, delivered.size());
+            assertArrayEquals(new byte[]{0}, delivered.get(0));
+        }
+    }
+}
@@ -24,12 +24,15 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.NoSuchElementException;
 
 import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 /**
  * Functional unit tests for {@link KVDao} implementations
@@ -125,6 +128,19 @@ class KVDaoTest extends TestBase {
         assertArrayEquals(value, dao.get(key.clone()));
     }
 
+    @Test
+    void compressibleValue() throws IOException {
+        final byte[] key = randomKey();
+        final StringBuilder text = new StringBuilder();
+        while (text.length() < 100 * 1024) {
+            text.append("{\"id\":").append(text.length()).append(",\"state\":\"active\"},");
+        }
+        final byte[] value = text.toString().getBytes(StandardCharsets.UTF_8);
+        dao.upsert(key, value);
+        assertArrayEquals(value, dao.get(key));
+        assertArrayEquals(value, dao.getValue(key).getData());
+    }
+
     @Test
     void upsert() throws IOException {
         final byte[] key = randomKey();
@@ -148,4 +164,48 @@ class KVDaoTest extends TestBase {
         dao.remove(key);
         assertThrows(NoSuchElementException.class, () -> dao.get(key));
     }
+
+    @Test
+    void range() throws IOException {
+        final byte[][] keys = new byte[5][];
+        final byte[][] values = new byte[keys.length][];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = ("range-" + i).getBytes(StandardCharsets.UTF_8);
+            values[i] = randomValue();
+            dao.upsert(keys[i], values[i]);
+        }
+        dao.remove(keys[2]);
+
+        final Iterator<Record> records = dao.range(keys[1], keys[4]);
+        for (int i = 1; i < 4; i++) {
+            assertTrue(records.hasNext());
+            final Record record = records.next();
+            assertArrayEquals(keys[i], record.getKey());
+            if (i == 2) {
+                assertTrue(record.getValue().isRemoved());
+            } else {
+                assertArrayEquals(values[i], record.getValue().getData());
+            }
+        }
+        assertFalse(records.hasNext());
+    }
+
+    @Test
+    void mergeAll() throws IOException {
+        final byte[] newer = randomKey();
+        final byte[] older = randomKey();
+        final byte[] value = randomValue();
+        dao.merge(newer, Value.present(value, 2));
+        dao.merge(older, Value.present(value, 1));
+
+        dao.mergeAll(Arrays.asList(
+                new Record(newer, Value.removed(1)),
+                new Record(older, Value.removed(2)),
+                new Record(older, Value.present(randomValue(), 1))));
+        assertArrayEquals(value, dao.get(newer));
+        assertThrows(NoSuchElementException.class, () -> dao.get(older));
+        assertEquals(2, dao.getUpdateTimeMillis(older));
+
+        dao.mergeAll(Collections.emptyList());
+    }
 }
@@ -0,0 +1,66 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+
+import ru.mail.polis.klimova.KeyDistribution;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Shape tests for {@link KeyDistribution}
+ */
+class KeyDistributionTest {
+    private static final int KEYS = 10_000;
+    private static final int SAMPLES = 200_000;
+
+    @Test
+    void uniform() {
+        final int[] counts = sample(KeyDistribution.of("uniform", KEYS));
+        for (final int count : counts) {
+            assertTrue(count < SAMPLES / KEYS * 3);
+        }
+    }
+
+    @Test
+    void zipfian() {
+        final int[] counts = sample(KeyDistribution.of("zipfian", KEYS));
+        long top = 0;
+        for (int i = 0; i < KEYS / 100; i++) {
+            top += counts[i];
+        }
+        // Over half of the requests ask for the 1% most popular keys
+        assertTrue(top > SAMPLES / 2, Long.toString(top));
+        assertTrue(counts[0] > counts[1] && counts[1] > counts[10] && counts[10] > counts[1000]);
+    }
+
+    @Test
+    void latest() {
+        final KeyDistribution latest = KeyDistribution.of("latest", KEYS);
+        assertEquals(KEYS, latest.nextWrite());
+        assertEquals(KEYS + 1, latest.nextWrite());
+        int recent = 0;
+        for (int i = 0; i < SAMPLES; i++) {
+            final long key = latest.next();
+            assertTrue(key >= 0 && key <= KEYS + 1);
+            if (key > KEYS + 1 - KEYS / 100) {
+                recent++;
+            }
+        }
+        assertTrue(recent > SAMPLES / 2, Integer.toString(recent));
+    }
+
+    @Test
+    void unknown() {
+        assertThrows(IllegalArgumentException.class, () -> KeyDistribution.of("pareto", KEYS));
+    }
+
+    private static int[] sample(final KeyDistribution distribution) {
+        final int[] counts = new int[KEYS];
+        for (int i = 0; i < SAMPLES; i++) {
+            counts[(int) distribution.next()]++;
+        }
+        return counts;
+    }
+}
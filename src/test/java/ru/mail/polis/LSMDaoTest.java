@@ -0,0 +1,331 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+
+import ru.mail.polis.klimova.LSMDao;
+import ru.mail.polis.klimova.StorageConfig;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Flush and compaction tests for {@link LSMDao}
+ */
+class LSMDaoTest extends TestBase {
+    private static final long FLUSH_THRESHOLD = 16 * 1024;
+    private static final int COMPACTION_THRESHOLD = 2;
+    private static final int KEYS = 500;
+
+    private File data;
+
+    @BeforeEach
+    void beforeEach() throws IOException {
+        data = Files.createTempDirectory();
+    }
+
+    @AfterEach
+    void afterEach() throws IOException {
+        Files.recursiveDelete(data);
+    }
+
+    @Test
+    void flushAndCompact() throws IOException {
+        final Map<String, byte[]> expected = new HashMap<>();
+        try (KVDao dao = new LSMDao(data, FLUSH_THRESHOLD, COMPACTION_THRESHOLD)) {
+            for (int i = 0; i < KEYS; i++) {
+                final byte[] value = randomValue();
+                dao.upsert(key(i), value);
+                expected.put(Integer.toString(i), value);
+            }
+            // Overwrite and delete keys which are already on disk
+            for (int i = 0; i < KEYS; i += 2) {
+                final byte[] value = randomValue();
+                dao.upsert(key(i), value);
+                expected.put(Integer.toString(i), value);
+            }
+            for (int i = 1; i < KEYS; i += 4) {
+                dao.remove(key(i));
+                expected.remove(Integer.toString(i));
+            }
+            check(dao, expected);
+        }
+
+        final String[] tables = data.list((dir, name) -> name.endsWith(".db"));
+        assertTrue(tables != null && tables.length <= COMPACTION_THRESHOLD + 2);
+
+        try (KVDao dao = new LSMDao(data, FLUSH_THRESHOLD, COMPACTION_THRESHOLD)) {
+            check(dao, expected);
+        }
+    }
+
+    @Test
+    void recoverFromLog() throws Exception {
+        final Map<String, byte[]> expected = new ConcurrentHashMap<>();
+        // Not closed, as if the process crashed
+        final KVDao crashed = new LSMDao(data, Long.MAX_VALUE, COMPACTION_THRESHOLD);
+        final Thread[] writers = new Thread[4];
+        for (int t = 0; t < writers.length; t++) {
+            final int first = t;
+            writers[t] = new Thread(() -> {
+                for (int i = first; i < KEYS; i += writers.length) {
+                    final byte[] value = randomValue();
+                    try {
+                        crashed.upsert(key(i), value);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    expected.put(Integer.toString(i), value);
+                }
+            });
+            writers[t].start();
+        }
+        for (final Thread writer : writers) {
+            writer.join();
+        }
+        crashed.remove(key(0));
+        expected.remove("0");
+
+        try (KVDao dao = new LSMDao(data, FLUSH_THRESHOLD, COMPACTION_THRESHOLD)) {
+            check(dao, expected);
+        }
+    }
+
+    @Test
+    void corruptedLogRecordStopsReplay() throws Exception {
+        final Map<String, byte[]> expected = new HashMap<>();
+        // Not closed, as if the process crashed
+        final KVDao crashed = new LSMDao(data, Long.MAX_VALUE, COMPACTION_THRESHOLD);
+        for (int i = 0; i < 10; i++) {
+            final byte[] value = randomValue();
+            crashed.upsert(key(i), value);
+            expected.put(Integer.toString(i), value);
+        }
+        final File[] logs = data.listFiles((dir, name) -> name.endsWith(".log"));
+        assertEquals(1, logs.length);
+        try (RandomAccessFile log = new RandomAccessFile(logs[0], "rw")) {
+            // Flip a byte in the value of the last write
+            log.seek(log.length() - 1);
+            final int last = log.read();
+            log.seek(log.length() - 1);
+            log.write(last ^ 0xFF);
+        }
+        expected.remove("9");
+
+        try (KVDao dao = new LSMDao(data, FLUSH_THRESHOLD, COMPACTION_THRESHOLD)) {
+            check(dao, expected);
+            assertThrows(NoSuchElementException.class, () -> dao.get(key(9)));
+        }
+    }
+
+    @Test
+    void logWithoutMagicIsRejected() throws IOException {
+        try (RandomAccessFile log = new RandomAccessFile(new File(data, "1.log"), "rw")) {
+            log.write(randomValue());
+        }
+        assertThrows(IOException.class, () -> new LSMDao(data, FLUSH_THRESHOLD, COMPACTION_THRESHOLD));
+    }
+
+    @Test
+    void purgeExpiredTombstones() throws IOException {
+        final Map<String, byte[]> expected = new HashMap<>();
+        // No grace period and no timer, so only an explicit collection purges
+        final StorageConfig config = new StorageConfig(
+                FLUSH_THRESHOLD,
+                Integer.MAX_VALUE,
+                0,
+                1024 * 1024,
+                0,
+                Long.MAX_VALUE,
+                StorageConfig.DEFAULT_COMPRESSION_THRESHOLD,
+                0,
+                false);
+        try (KVDao dao = new LSMDao(data, config)) {
+            for (int i = 0; i < KEYS; i++) {
+                final byte[] value = randomValue();
+                dao.upsert(key(i), value);
+                expected.put(Integer.toString(i), value);
+            }
+        }
+        // Kept in one memtable, so no flush lets a background compaction purge them
+        try (KVDao dao = new LSMDao(data, Long.MAX_VALUE, Integer.MAX_VALUE)) {
+            for (int i = 0; i < KEYS; i += 2) {
+                dao.remove(key(i));
+                expected.remove(Integer.toString(i));
+            }
+        }
+
+        try (LSMDao dao = new LSMDao(data, config)) {
+            dao.collectGarbage();
+            assertEquals(KEYS / 2, dao.getPurgedTombstones());
+            assertTrue(dao.getReclaimedBytes() > 0);
+            check(dao, expected);
+            for (int i = 0; i < KEYS; i += 2) {
+                final byte[] key = key(i);
+                assertThrows(NoSuchElementException.class, () -> dao.getUpdateTimeMillis(key));
+            }
+
+            // Nothing is left to purge
+            dao.collectGarbage();
+            assertEquals(KEYS / 2, dao.getPurgedTombstones());
+        }
+    }
+
+    @Test
+    void leftoversOfCompactionAreDeleted() throws IOException {
+        final Map<String, byte[]> expected = new HashMap<>();
+        final StorageConfig config = new StorageConfig(
+                FLUSH_THRESHOLD,
+                Integer.MAX_VALUE,
+                0,
+                1024 * 1024,
+                0,
+                Long.MAX_VALUE,
+                StorageConfig.DEFAULT_COMPRESSION_THRESHOLD,
+                0,
+                false);
+        try (KVDao dao = new LSMDao(data, config)) {
+            for (int i = 0; i < KEYS; i++) {
+                final byte[] value = randomValue();
+                dao.upsert(key(i), value);
+                expected.put(Integer.toString(i), value);
+            }
+        }
+        // Kept in one memtable, so no flush lets a background compaction purge them
+        try (KVDao dao = new LSMDao(data, Long.MAX_VALUE, Integer.MAX_VALUE)) {
+            for (int i = 0; i < KEYS; i += 2) {
+                dao.remove(key(i));
+                expected.remove(Integer.toString(i));
+            }
+        }
+        final File sources = Files.createTempDirectory();
+        try {
+            for (final File table : data.listFiles((dir, name) -> name.endsWith(".db"))) {
+                java.nio.file.Files.copy(table.toPath(), new File(sources, table.getName()).toPath());
+            }
+            try (LSMDao dao = new LSMDao(data, config)) {
+                dao.collectGarbage();
+                assertEquals(KEYS / 2, dao.getPurgedTombstones());
+            }
+            // As if the compaction crashed before it deleted the tables it merged
+            for (final File table : sources.listFiles()) {
+                java.nio.file.Files.copy(table.toPath(), new File(data, table.getName()).toPath());
+            }
+        } finally {
+            Files.recursiveDelete(sources);
+        }
+
+        try (KVDao dao = new LSMDao(data, config)) {
+            check(dao, expected);
+            for (int i = 0; i < KEYS; i += 2) {
+                final byte[] key = key(i);
+                assertThrows(NoSuchElementException.class, () -> dao.getUpdateTimeMillis(key));
+            }
+        }
+        assertEquals(1, data.list((dir, name) -> name.endsWith(".db")).length);
+    }
+
+    @Test
+    void tableWithoutMagicIsRejected() throws IOException {
+        try (KVDao dao = new LSMDao(data, FLUSH_THRESHOLD, Integer.MAX_VALUE)) {
+            for (int i = 0; i < KEYS; i++) {
+                dao.upsert(key(i), randomValue());
+            }
+        }
+        // Cut the flags, the version and the magic off
+        for (final File table : data.listFiles((dir, name) -> name.endsWith(".db"))) {
+            try (RandomAccessFile file = new RandomAccessFile(table, "rw")) {
+                file.setLength(file.length() - 3 * Integer.BYTES);
+            }
+        }
+
+        assertThrows(IOException.class, () -> new LSMDao(data, FLUSH_THRESHOLD, Integer.MAX_VALUE));
+    }
+
+    @Test
+    void compressValues() throws IOException {
+        final Map<String, byte[]> expected = new HashMap<>();
+        long rawBytes = 0;
+        try (KVDao dao = new LSMDao(data, FLUSH_THRESHOLD, COMPACTION_THRESHOLD)) {
+            for (int i = 0; i < KEYS; i++) {
+                // Mostly compressible payloads, every tenth one is random and kept raw
+                final byte[] value = i % 10 == 0 ? randomValue() : document(i, i == 1 ? 2000 : 20);
+                dao.upsert(key(i), value);
+                expected.put(Integer.toString(i), value);
+                rawBytes += value.length;
+            }
+            check(dao, expected);
+        }
+
+        long storedBytes = 0;
+        for (final File table : data.listFiles((dir, name) -> name.endsWith(".db"))) {
+            storedBytes += table.length();
+        }
+        assertTrue(storedBytes < rawBytes / 2, storedBytes + " bytes stored of " + rawBytes);
+
+        try (KVDao dao = new LSMDao(data, FLUSH_THRESHOLD, COMPACTION_THRESHOLD)) {
+            check(dao, expected);
+        }
+    }
+
+    private static byte[] document(final int id, final int items) {
+        final StringBuilder result = new StringBuilder("{\"id\":" + id + ",\"items\":[");
+        for (int i = 0; i < items; i++) {
+            result.append(i == 0 ? "" : ",").append("{\"name\":\"item-").append(i)
+                    .append("\",\"owner\":\"").append(randomId()).append("\",\"enabled\":true}");
+        }
+        return result.append("]}").toString().getBytes();
+    }
+
+    @Test
+    void manySmallValues() throws IOException {
+        // Without the heap share of the memtable their index alone would take more than the heap of the tests
+        final int count = 1_000_000;
+        final int batchSize = 1000;
+        try (KVDao dao = new LSMDao(data, Long.MAX_VALUE, COMPACTION_THRESHOLD)) {
+            final List<Record> batch = new ArrayList<>(batchSize);
+            for (int i = 0; i < count; i++) {
+                batch.add(new Record(key(i), Value.present(new byte[]{(byte) i}, i)));
+                if (batch.size() == batchSize) {
+                    dao.mergeAll(batch);
+                    batch.clear();
+                }
+            }
+            for (int i = 0; i < count; i += count / KEYS) {
+                assertArrayEquals(new byte[]{(byte) i}, dao.get(key(i)));
+            }
+        }
+    }
+
+    private static byte[] key(final int i) {
+        return ("key" + i).getBytes();
+    }
+
+    private static void check(
+            final KVDao dao,
+            final Map<String, byte[]> expected) throws IOException {
+        for (int i = 0; i < KEYS; i++) {
+            final byte[] key = key(i);
+            final byte[] value = expected.get(Integer.toString(i));
+            if (value == null) {
+                assertThrows(NoSuchElementException.class, () -> dao.get(key));
+            } else {
+                assertArrayEquals(value, dao.get(key));
+            }
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+
+import ru.mail.polis.klimova.LatencyHistogram;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Precision tests for {@link LatencyHistogram}
+ */
+class LatencyHistogramTest {
+    private static final int VALUES = 1_000_000;
+
+    @Test
+    void smallValuesExact() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 200; i++) {
+            histogram.record(i);
+        }
+        assertEquals(100, histogram.getValueAtPercentile(50));
+        assertEquals(198, histogram.getValueAtPercentile(99));
+        assertEquals(200, histogram.getValueAtPercentile(100));
+        assertEquals(100.5, histogram.getMean(), 1e-9);
+    }
+
+    @Test
+    void percentilesWithinOnePercent() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= VALUES; i++) {
+            histogram.record(i);
+        }
+        assertEquals(VALUES, histogram.getCount());
+        assertEquals(VALUES, histogram.getMax());
+        for (final double percentile : new double[]{1, 10, 50, 90, 99, 99.9, 99.99}) {
+            final double exact = percentile / 100 * VALUES;
+            final long value = histogram.getValueAtPercentile(percentile);
+            assertTrue(Math.abs(value - exact) <= exact / 100, percentile + "%: " + value + " for " + exact);
+        }
+        assertEquals(VALUES, histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    void hugeValuesTrimmed() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(Long.MAX_VALUE);
+        histogram.record(0);
+        assertEquals(2, histogram.getCount());
+        assertEquals(0, histogram.getValueAtPercentile(50));
+        assertEquals(histogram.getMax(), histogram.getValueAtPercentile(100));
+        assertThrows(IllegalArgumentException.class, () -> histogram.record(-1));
+    }
+
+    @Test
+    void add() {
+        final LatencyHistogram first = new LatencyHistogram();
+        final LatencyHistogram second = new LatencyHistogram();
+        for (int i = 0; i < 1000; i++) {
+            first.record(10);
+            second.record(10_000);
+        }
+        first.add(second);
+        assertEquals(2000, first.getCount());
+        assertEquals(10, first.getValueAtPercentile(50));
+        assertEquals(10_000, first.getValueAtPercentile(51), 100);
+        assertEquals(10_000, first.getMax());
+    }
+
+    @Test
+    void printPercentiles() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 10_000; i++) {
+            histogram.record(i);
+        }
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        histogram.printPercentiles(new PrintStream(bytes, true), 1000.0);
+        final String[] lines = new String(bytes.toByteArray(), StandardCharsets.UTF_8).split("\n");
+        assertTrue(lines[2].trim().startsWith("0.001 0.000000000000"), lines[2]);
+        assertTrue(lines[lines.length - 4].trim().matches("10\\.000 1\\.000000000000 +10000"), lines[lines.length - 4]);
+        assertTrue(lines[lines.length - 2].contains("Total count    =        10000"), lines[lines.length - 2]);
+    }
+}
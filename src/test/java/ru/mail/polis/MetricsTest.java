@@ -0,0 +1,55 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import ru.mail.polis.klimova.Metrics;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Prometheus text format of {@link Metrics}
+ */
+class MetricsTest {
+    @Test
+    void format() {
+        final Metrics metrics = new Metrics();
+        final Metrics.Timer timer = metrics.timer("test_seconds", "Latency", "path", "/a\"b\\c");
+        assertSame(timer, metrics.timer("test_seconds", "Latency", "path", "/a\"b\\c"));
+        for (int i = 1; i <= 100; i++) {
+            timer.recordSince(System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(i));
+        }
+        metrics.counter("test_total", "Requests", "status", "200").add(3);
+        metrics.gauge("test_bytes", "Size", () -> 42);
+
+        final String[] lines = metrics.format().split("\n");
+        assertEquals(14, lines.length);
+        assertEquals("# HELP test_bytes Size", lines[0]);
+        assertEquals("# TYPE test_bytes gauge", lines[1]);
+        assertEquals("test_bytes 42", lines[2]);
+        assertEquals("# TYPE test_seconds summary", lines[4]);
+        final String labels = "{path=\"/a\\\"b\\\\c\"";
+        assertEquals("test_seconds" + labels + ",quantile=\"0.5\"}", lines[5].substring(0, lines[5].indexOf(' ')));
+        assertEquals(0.05, value(lines[5]), 0.001);
+        assertEquals(0.099, value(lines[7]), 0.001);
+        assertEquals("test_seconds_count" + labels + "} 100", lines[10]);
+        assertEquals(5.05, value(lines[9]), 0.01);
+        assertEquals("# TYPE test_total counter", lines[12]);
+        assertEquals("test_total{status=\"200\"} 3", lines[13]);
+    }
+
+    private static double value(final String line) {
+        return Double.parseDouble(line.substring(line.lastIndexOf(' ') + 1));
+    }
+
+    @Test
+    void typeMismatch() {
+        final Metrics metrics = new Metrics();
+        metrics.counter("test_total", "Requests");
+        assertThrows(IllegalArgumentException.class, () -> metrics.timer("test_total", "Requests"));
+        assertThrows(IllegalArgumentException.class, () -> metrics.counter("test_other", "Requests", "odd"));
+    }
+}
@@ -0,0 +1,172 @@
+package ru.mail.polis;
+
+import one.nio.net.ConnectionString;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ru.mail.polis.klimova.ReplicaClient;
+import ru.mail.polis.klimova.StorageSession;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+
+/**
+ * Reconnects of {@link ReplicaClient} to a node that closes its connections, and its off-heap bodies
+ */
+class ReplicaClientTest extends TestBase {
+    private static final Duration TIMEOUT = Duration.ofSeconds(10);
+    private static final byte[] OK = "HTTP/1.1 200 OK\r\nContent-Length: 0\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    @Test
+    void closedConnectionIsReplaced() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            // Answers once on every connection and closes it
+            try (Node node = new Node(OK)) {
+                final ReplicaClient client = new ReplicaClient(new ConnectionString("http://localhost:" + node.port()));
+                try {
+                    assertEquals(200, client.put("/v0/internal/batch", ByteBuffer.wrap(randomValue())).getStatus());
+                    // Let the close reach the client
+                    Thread.sleep(100);
+                    assertEquals(200, client.put("/v0/internal/batch", ByteBuffer.wrap(randomValue())).getStatus());
+                } finally {
+                    client.close();
+                }
+                node.stop();
+                assertEquals(2, node.requests.get());
+            }
+        });
+    }
+
+    @Test
+    void receivedRequestIsNotResent() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            // Reads the request and closes the connection without an answer
+            try (Node node = new Node(null)) {
+                final ReplicaClient client = new ReplicaClient(new ConnectionString("http://localhost:" + node.port()));
+                try {
+                    assertThrows(IOException.class,
+                            () -> client.put("/v0/internal/batch", ByteBuffer.wrap(randomValue())));
+                } finally {
+                    client.close();
+                }
+                node.stop();
+                assertEquals(1, node.requests.get());
+            }
+        });
+    }
+
+    /**
+     * Also run with raw socket calls off, as without the one-nio native library, see {@code testHeapSockets}
+     */
+    @Test
+    void largeBodies() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final byte[] value = randomValue(4 * StorageSession.HEAP_BODY_LIMIT);
+            final ByteArrayOutputStream answer = new ByteArrayOutputStream();
+            answer.write(("HTTP/1.1 200 OK\r\nContent-Length: " + value.length + "\r\n\r\n")
+                    .getBytes(StandardCharsets.US_ASCII));
+            answer.write(value);
+            try (Node node = new Node(answer.toByteArray())) {
+                final ReplicaClient client = new ReplicaClient(new ConnectionString("http://localhost:" + node.port()));
+                try {
+                    final ByteBuffer body = ByteBuffer.allocateDirect(value.length);
+                    body.put(value).flip();
+                    assertArrayEquals(value, client.put("/v0/internal/batch", body).getBody());
+                } finally {
+                    client.close();
+                }
+                node.stop();
+                assertArrayEquals(value, node.body);
+            }
+        });
+    }
+
+    private static class Node implements AutoCloseable {
+        private final ServerSocket server;
+        private final Thread thread;
+        private final AtomicInteger requests = new AtomicInteger();
+        private volatile byte[] body;
+
+        /**
+         * @param answer response to every request, {@code null} for none
+         */
+        Node(final byte[] answer) throws IOException {
+            server = new ServerSocket(0);
+            thread = new Thread(() -> {
+                while (!server.isClosed()) {
+                    try (Socket socket = server.accept()) {
+                        body = readRequest(new BufferedInputStream(socket.getInputStream()));
+                        requests.incrementAndGet();
+                        if (answer != null) {
+                            socket.getOutputStream().write(answer);
+                        }
+                    } catch (IOException e) {
+                        // Closed
+                    }
+                }
+            });
+            thread.start();
+        }
+
+        int port() {
+            return server.getLocalPort();
+        }
+
+        private static byte[] readRequest(final InputStream in) throws IOException {
+            int contentLength = 0;
+            while (true) {
+                final String line = readLine(in);
+                if (line.isEmpty()) {
+                    break;
+                }
+                if (line.regionMatches(true, 0, "Content-Length: ", 0, 16)) {
+                    contentLength = Integer.parseInt(line.substring(16));
+                }
+            }
+            final byte[] body = new byte[contentLength];
+            for (int i = 0; i < contentLength; i++) {
+                final int b = in.read();
+                if (b < 0) {
+                    throw new IOException("Truncated body");
+                }
+                body[i] = (byte) b;
+            }
+            return body;
+        }
+
+        private static String readLine(final InputStream in) throws IOException {
+            final ByteArrayOutputStream line = new ByteArrayOutputStream();
+            for (int b = in.read(); b != '\n'; b = in.read()) {
+                if (b < 0) {
+                    throw new IOException("Truncated head");
+                }
+                if (b != '\r') {
+                    line.write(b);
+                }
+            }
+            return new String(line.toByteArray(), StandardCharsets.US_ASCII);
+        }
+
+        void stop() throws IOException, InterruptedException {
+            server.close();
+            thread.join();
+        }
+
+        @Override
+        public void close() throws IOException {
+            server.close();
+        }
+    }
+}
@@ -24,12 +24,24 @@ import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
+import ru.mail.polis.klimova.RecordCodec;
+
 import static org.junit.jupiter.api.Assertions.*;
 
 /**
@@ -95,6 +107,151 @@ class SingleNodeTest extends TestBase {
         return client.put(path(key), data);
     }
 
+    @Test
+    void range() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final List<byte[]> keys = new ArrayList<>();
+            final List<byte[]> values = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                final String key = "range-" + i;
+                final byte[] value = randomValue();
+                assertEquals(201, upsert(key, value).getStatus());
+                if (i == 3) {
+                    assertEquals(202, delete(key).getStatus());
+                } else {
+                    keys.add(key.getBytes());
+                    values.add(value);
+                }
+            }
+            assertEquals(201, upsert("range.", randomValue()).getStatus());
+
+            final Response response = client.get("/v0/entities?start=range-&end=range.");
+            assertEquals(200, response.getStatus());
+            assertRecords(keys, values, response.getBody());
+            assertEquals(400, client.get("/v0/entities").getStatus());
+        });
+    }
+
+    @Test
+    void binaryKeys() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            // Keys are ordered as unsigned bytes, so 7F goes before 80 and FF
+            final byte[] low = randomValue();
+            final byte[] high = randomValue();
+            final byte[] highest = randomValue();
+            assertEquals(201, upsert("%01%FF", highest).getStatus());
+            assertEquals(201, upsert("%01%80%00", high).getStatus());
+            assertEquals(201, upsert("%01%7F", low).getStatus());
+
+            final Response value = get("%01%80%00");
+            assertEquals(200, value.getStatus());
+            assertArrayEquals(high, value.getBody());
+
+            final Response range = client.get("/v0/entities?start=%01&end=%01%FF");
+            assertEquals(200, range.getStatus());
+            assertRecords(
+                    Arrays.asList(new byte[]{1, 0x7F}, new byte[]{1, (byte) 0x80, 0}),
+                    Arrays.asList(low, high),
+                    range.getBody());
+        });
+    }
+
+    @Test
+    void rangeOfKeysWithNewlines() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            // The bytes of a key can't be told from a separator, so the records carry their lengths
+            final byte[] first = randomValue();
+            final byte[] second = new byte[]{'\n', '\r', '\n'};
+            assertEquals(201, upsert("%02%0A", first).getStatus());
+            assertEquals(201, upsert("%02%0A%0A", second).getStatus());
+
+            final Response range = client.get("/v0/entities?start=%02&end=%03");
+            assertEquals(200, range.getStatus());
+            assertRecords(
+                    Arrays.asList(new byte[]{2, '\n'}, new byte[]{2, '\n', '\n'}),
+                    Arrays.asList(first, second),
+                    range.getBody());
+        });
+    }
+
+    @Test
+    void pipelinedAfterRange() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            // More than the node queues at once, so the stream has to wait for the reader
+            final List<byte[]> keys = new ArrayList<>();
+            final List<byte[]> values = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                final String key = "stream-" + i;
+                final byte[] value = randomValue(1024 * 1024);
+                assertEquals(201, upsert(key, value).getStatus());
+                keys.add(key.getBytes());
+                values.add(value);
+            }
+
+            try (Socket socket = new Socket("localhost", port)) {
+                socket.getOutputStream().write(("GET /v0/entities?start=stream-&end=stream. HTTP/1.1\r\n\r\n"
+                        + "GET /v0/status HTTP/1.1\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+                Thread.sleep(200);
+                final DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                assertEquals("HTTP/1.1 200 OK", readLine(in));
+                while (!readLine(in).isEmpty()) {
+                    // Headers
+                }
+                final ByteArrayOutputStream body = new ByteArrayOutputStream();
+                for (int size = Integer.parseInt(readLine(in), 16); size > 0; size = Integer.parseInt(readLine(in), 16)) {
+                    final byte[] chunk = new byte[size];
+                    in.readFully(chunk);
+                    body.write(chunk);
+                    assertEquals("", readLine(in));
+                }
+                assertEquals("", readLine(in));
+                assertRecords(keys, values, body.toByteArray());
+
+                // The next response comes only after the whole stream
+                assertEquals("HTTP/1.1 200 OK", readLine(in));
+            }
+        });
+    }
+
+    @NotNull
+    private static String readLine(@NotNull final InputStream in) throws IOException {
+        final ByteArrayOutputStream line = new ByteArrayOutputStream();
+        for (int b = in.read(); b != '\n'; b = in.read()) {
+            if (b < 0) {
+                throw new EOFException();
+            }
+            if (b != '\r') {
+                line.write(b);
+            }
+        }
+        return new String(line.toByteArray(), StandardCharsets.US_ASCII);
+    }
+
+    private static void assertRecords(
+            @NotNull final List<byte[]> keys,
+            @NotNull final List<byte[]> values,
+            @NotNull final byte[] body) throws IOException {
+        final List<Record> records = RecordCodec.readAll(body);
+        assertEquals(keys.size(), records.size());
+        for (int i = 0; i < records.size(); i++) {
+            assertArrayEquals(keys.get(i), records.get(i).getKey());
+            assertArrayEquals(values.get(i), records.get(i).getValue().getData());
+        }
+    }
+
+    @Test
+    void largeValue() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final String key = randomId();
+            final byte[] value = randomValue(4 * 1024 * 1024);
+            assertEquals(201, upsert(key, value).getStatus());
+
+            final Response response = get(key);
+            assertEquals(200, response.getStatus());
+            assertArrayEquals(value, response.getBody());
+        });
+    }
+
     @Test
     void emptyKey() {
         assertTimeoutPreemptively(TIMEOUT, () -> {
@@ -272,6 +429,25 @@ class SingleNodeTest extends TestBase {
         });
     }
 
+    @Test
+    void metrics() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final String key = randomId();
+            assertEquals(201, upsert(key, randomValue()).getStatus());
+            assertEquals(200, get(key).getStatus());
+
+            final Response response = client.get("/v0/metrics");
+            assertEquals(200, response.getStatus());
+            final String metrics = new String(response.getBody(), StandardCharsets.UTF_8);
+            assertTrue(metrics.contains("# TYPE kv_request_seconds summary\n"), metrics);
+            assertTrue(metrics.contains("kv_request_seconds{method=\"GET\",quantile=\"0.99\"} "), metrics);
+            assertTrue(metrics.contains("kv_request_seconds_count{method=\"PUT\"} "), metrics);
+            assertTrue(metrics.contains("kv_requests_total{method=\"GET\",status=\"200\"} "), metrics);
+            assertTrue(metrics.contains("kv_dao_seconds{operation=\"merge\",quantile=\"0.999\"} "), metrics);
+            assertTrue(metrics.contains("kv_dao_errors_total{operation=\"get_value\"} 0\n"), metrics);
+        });
+    }
+
     @Test
     void delete() {
         assertTimeoutPreemptively(TIMEOUT, () -> {
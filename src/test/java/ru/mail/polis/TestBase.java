@@ -57,7 +57,12 @@ abstract class TestBase {
 
     @NotNull
     static byte[] randomValue() {
-        final byte[] result = new byte[VALUE_LENGTH];
+        return randomValue(VALUE_LENGTH);
+    }
+
+    @NotNull
+    static byte[] randomValue(final int length) {
+        final byte[] result = new byte[length];
         ThreadLocalRandom.current().nextBytes(result);
         return result;
     }
@@ -16,7 +16,9 @@
 
 package ru.mail.polis;
 
+import one.nio.http.HttpClient;
 import one.nio.http.Response;
+import one.nio.net.ConnectionString;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -24,11 +26,21 @@ import org.junit.jupiter.api.Test;
 import java.io.File;
 import java.io.IOException;
 import java.time.Duration;
+import java.util.AbstractMap;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
+import ru.mail.polis.klimova.BatchCodec;
+import ru.mail.polis.klimova.RecordCodec;
+
 import static org.junit.jupiter.api.Assertions.*;
 
 /**
@@ -113,6 +125,36 @@ class ThreeNodeTest extends ClusterTestBase {
         });
     }
 
+    @Test
+    void moreRequestsThanWorkers() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            // Every node gets several times more client requests than it has workers,
+            // and every request waits for the other two nodes
+            final int concurrency = Runtime.getRuntime().availableProcessors() * 4 * 3 * 4;
+            final List<HttpClient> clients = new ArrayList<>();
+            for (final String endpoint : endpoints) {
+                clients.add(new HttpClient(new ConnectionString(
+                        endpoint + "?timeout=" + TIMEOUT.toMillis() + "&clientMaxPoolSize=" + concurrency)));
+            }
+            final ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+            try {
+                final List<Future<Integer>> statuses = new ArrayList<>();
+                for (int i = 0; i < concurrency * 4; i++) {
+                    final HttpClient client = clients.get(i % clients.size());
+                    statuses.add(executor.submit(() -> client.put(
+                            "/v0/entity?id=" + randomId() + "&replicas=3/3",
+                            randomValue()).getStatus()));
+                }
+                for (final Future<Integer> status : statuses) {
+                    assertEquals(201, status.get().intValue());
+                }
+            } finally {
+                executor.shutdownNow();
+                clients.forEach(HttpClient::close);
+            }
+        });
+    }
+
     @Test
     void overlapRead() {
         assertTimeoutPreemptively(TIMEOUT, () -> {
@@ -247,6 +289,77 @@ class ThreeNodeTest extends ClusterTestBase {
         });
     }
 
+    @Test
+    void readRepair() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final String key = randomId();
+            final byte[] value = randomValue();
+
+            // Stop node 1
+            stop(1, storage1);
+
+            // Insert
+            assertEquals(201, upsert(0, key, value, 2, 3).getStatus());
+
+            // Start node 1
+            storage1 = KVServiceFactory.create(port1, dao1, endpoints);
+            start(1, storage1);
+
+            // Read from all the replicas to trigger repair of node 1
+            Response response = get(0, key, 3, 3);
+            assertEquals(200, response.getStatus());
+            assertArrayEquals(value, response.getBody());
+
+            // Stop nodes 0 & 2
+            stop(0, storage0);
+            stop(2, storage2);
+
+            // Check node 1 got the value
+            for (int i = 0; i < 50; i++) {
+                response = get(1, key, 1, 3);
+                if (response.getStatus() == 200) {
+                    break;
+                }
+                Thread.sleep(100);
+            }
+            assertEquals(200, response.getStatus());
+            assertArrayEquals(value, response.getBody());
+
+            // Start nodes 0 & 2
+            storage0 = KVServiceFactory.create(port0, dao0, endpoints);
+            storage0.start();
+            storage2 = KVServiceFactory.create(port2, dao2, endpoints);
+            start(2, storage2);
+        });
+    }
+
+    @Test
+    void hintedHandoff() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final String key = randomId();
+            final byte[] value = randomValue();
+
+            // Stop node 1
+            stop(1, storage1);
+
+            // Insert
+            assertEquals(201, upsert(0, key, value, 2, 3).getStatus());
+
+            // Start node 1
+            storage1 = KVServiceFactory.create(port1, dao1, endpoints);
+            start(1, storage1);
+
+            // Check node 1 got the missed write without reading the other replicas
+            Response response = get(1, key, 1, 3);
+            for (int i = 0; i < 50 && response.getStatus() != 200; i++) {
+                Thread.sleep(100);
+                response = get(1, key, 1, 3);
+            }
+            assertEquals(200, response.getStatus());
+            assertArrayEquals(value, response.getBody());
+        });
+    }
+
     @Test
     void tolerateFailure() {
         assertTimeoutPreemptively(TIMEOUT, () -> {
@@ -392,4 +505,136 @@ class ThreeNodeTest extends ClusterTestBase {
             assertEquals(2, copies);
         });
     }
+
+    @Test
+    void batch() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final List<byte[]> keys = new ArrayList<>();
+            final List<Map.Entry<byte[], byte[]>> written = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                final byte[] key = randomId().getBytes();
+                keys.add(key);
+                written.add(new AbstractMap.SimpleImmutableEntry<>(key, randomValue()));
+            }
+            assertEquals(201, batchUpsert(0, BatchCodec.writeEntries(written), 2, 3).getStatus());
+
+            // Remove the first keys from another node
+            final List<Map.Entry<byte[], byte[]>> removed = new ArrayList<>();
+            for (int i = 0; i < 5; i++) {
+                removed.add(new AbstractMap.SimpleImmutableEntry<>(keys.get(i), null));
+            }
+            assertEquals(201, batchUpsert(1, BatchCodec.writeEntries(removed), 2, 3).getStatus());
+
+            stop(1, storage1);
+            final Response response = batchGet(2, BatchCodec.writeKeys(keys), 2, 3);
+            assertEquals(200, response.getStatus());
+            final List<Map.Entry<byte[], byte[]>> read = BatchCodec.readEntries(response.getBody());
+            assertEquals(keys.size(), read.size());
+            for (int i = 0; i < keys.size(); i++) {
+                assertArrayEquals(keys.get(i), read.get(i).getKey());
+                if (i < 5) {
+                    assertNull(read.get(i).getValue());
+                } else {
+                    assertArrayEquals(written.get(i).getValue(), read.get(i).getValue());
+                }
+            }
+            assertEquals(504, batchGet(2, BatchCodec.writeKeys(keys), 3, 3).getStatus());
+        });
+    }
+
+    @Test
+    void largeBatch() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            // Bodies over the heap limit both from the client and between the nodes
+            final List<byte[]> keys = new ArrayList<>();
+            final List<Map.Entry<byte[], byte[]>> written = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                final byte[] key = randomId().getBytes();
+                keys.add(key);
+                written.add(new AbstractMap.SimpleImmutableEntry<>(key, randomValue(8 * 1024)));
+            }
+            assertEquals(201, batchUpsert(0, BatchCodec.writeEntries(written), 3, 3).getStatus());
+
+            final List<byte[]> lookedUp = new ArrayList<>(keys);
+            for (int i = 0; i < 4000; i++) {
+                lookedUp.add(randomId().getBytes());
+            }
+            final Response response = batchGet(1, BatchCodec.writeKeys(lookedUp), 3, 3);
+            assertEquals(200, response.getStatus());
+            final List<Map.Entry<byte[], byte[]>> read = BatchCodec.readEntries(response.getBody());
+            assertEquals(lookedUp.size(), read.size());
+            for (int i = 0; i < keys.size(); i++) {
+                assertArrayEquals(written.get(i).getValue(), read.get(i).getValue());
+            }
+            assertNull(read.get(keys.size()).getValue());
+        });
+    }
+
+    @Test
+    void range() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            // Every key on a single node, more of them than a node sends at once
+            final List<Map.Entry<byte[], byte[]>> written = new ArrayList<>();
+            for (int i = 0; i < 3000; i++) {
+                final byte[] key = String.format("range-%04d", i).getBytes();
+                written.add(new AbstractMap.SimpleImmutableEntry<>(key, randomValue(16)));
+            }
+            assertEquals(201, batchUpsert(0, BatchCodec.writeEntries(written), 1, 1).getStatus());
+
+            // A value one node has missed the removal of
+            final byte[] removed = "range-removed".getBytes();
+            dao0.merge(removed, Value.present(randomValue(), 1));
+            dao2.merge(removed, Value.removed(2));
+
+            for (int node = 0; node < 3; node++) {
+                final Response response = range(node, "range-", "range.");
+                assertEquals(200, response.getStatus());
+                final List<Record> records = RecordCodec.readAll(response.getBody());
+                assertEquals(written.size(), records.size());
+                for (int i = 0; i < written.size(); i++) {
+                    assertArrayEquals(written.get(i).getKey(), records.get(i).getKey());
+                    assertArrayEquals(written.get(i).getValue(), records.get(i).getValue().getData());
+                }
+            }
+        });
+    }
+
+    @Test
+    void rangeWithNodeDown() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            stop(2, storage2);
+            // The keys only the stopped node has would be missing
+            assertEquals(504, range(0, "range-", "range.").getStatus());
+            assertEquals(504, range(1, "range-", "range.").getStatus());
+        });
+    }
+
+    @Test
+    void binaryKey() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            // Bytes 00 FF 80 and the reserved '+', '&' and '=' characters
+            final String key = "%00%FF%80%2B%26%3D" + randomId();
+            final byte[] value = randomValue();
+            assertEquals(201, upsert(0, key, value, 3, 3).getStatus());
+
+            final Response response = get(1, key, 3, 3);
+            assertEquals(200, response.getStatus());
+            assertArrayEquals(value, response.getBody());
+            assertEquals(404, get(2, "%00%FF%80+%26%3D" + key.substring(18), 1, 3).getStatus());
+        });
+    }
+
+    @Test
+    void largeValue() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final String key = randomId();
+            final byte[] value = randomValue(4 * 1024 * 1024);
+            assertEquals(201, upsert(0, key, value, 3, 3).getStatus());
+
+            // Every replica sends the value to the coordinator
+            final Response response = get(2, key, 3, 3);
+            assertEquals(200, response.getStatus());
+            assertArrayEquals(value, response.getBody());
+        });
+    }
 }
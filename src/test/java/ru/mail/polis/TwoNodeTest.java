@@ -208,6 +208,34 @@ class TwoNodeTest extends ClusterTestBase {
         });
     }
 
+    @Test
+    void replicaMetrics() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final String series = "{replica=\"" + endpoint(port1) + "\",operation=\"put\"}";
+
+            // Stop node 1
+            stop(1, storage1);
+
+            // Write to both
+            assertEquals(504, upsert(0, randomId(), randomValue(), 2, 2).getStatus());
+            String metrics = metrics(0);
+            assertTrue(metrics.contains("kv_replica_seconds_count" + series + " 1\n"), metrics);
+            assertTrue(metrics.contains("kv_replica_errors_total" + series + " 1\n"), metrics);
+            assertTrue(metrics.contains("kv_requests_total{method=\"PUT\",status=\"504\"} 1\n"), metrics);
+
+            // Start node 1
+            storage1 = KVServiceFactory.create(port1, dao1, endpoints);
+            start(1, storage1);
+
+            // Write to both again
+            assertEquals(201, upsert(0, randomId(), randomValue(), 2, 2).getStatus());
+            metrics = metrics(0);
+            assertTrue(metrics.contains("kv_replica_seconds_count" + series + " 2\n"), metrics);
+            assertTrue(metrics.contains("kv_replica_errors_total" + series + " 1\n"), metrics);
+            assertTrue(metrics.contains("kv_requests_total{method=\"PUT\",status=\"201\"} 1\n"), metrics);
+        });
+    }
+
     @Test
     void respectRF() {
         assertTimeoutPreemptively(TIMEOUT, () -> {